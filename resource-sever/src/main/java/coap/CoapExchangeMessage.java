@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package coap;
+
+import java.nio.ByteBuffer;
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.californium.core.server.resources.CoapExchange;
+
+import com.upokecenter.cbor.CBORException;
+import com.upokecenter.cbor.CBORObject;
+import com.upokecenter.cbor.CBORType;
+
+import ace.Constants;
+import ace.Message;
+import exception.AceException;
+
+/**
+ * A lightweight Message wrapping a <code>CoapExchange</code> directly.
+ * 
+ * Unlike <code>CoapReq</code> it does not copy the request, and the 
+ * parameters are only decoded from the payload when they are first asked
+ * for.  The payload is the array received by Californium, or a slice of 
+ * the buffer a blockwise upload was reassembled in.  A slice is read in 
+ * place through <code>getPayloadArray()</code>, only 
+ * <code>getRawPayload()</code> copies it.
+ */
+public class CoapExchangeMessage implements Message {
+    
+    /**
+     * The wrapped exchange
+     */
+    private final CoapExchange exchange;
+    
+    /**
+     * The array holding the payload of the request
+     */
+    private final byte[] payload;
+    
+    /**
+     * The offset of the payload in the array
+     */
+    private final int offset;
+    
+    /**
+     * The length of the payload in bytes
+     */
+    private final int length;
+    
+    /**
+     * The parameters in the payload, decoded on first use, empty if the
+     * payload is not a CBOR map of ACE parameters
+     */
+    private Map<Short, CBORObject> parameters = null;
+    
+    /**
+     * Constructor, using the payload of the request.
+     * 
+     * @param exchange  the exchange
+     */
+    public CoapExchangeMessage(CoapExchange exchange) {
+        this(exchange, exchange.getRequestPayload());
+    }
+    
+    /**
+     * Constructor.
+     * 
+     * @param exchange  the exchange
+     * @param payload  the payload to use instead of the one of the request,
+     *     e.g. a reassembled upload or one token of a batch
+     */
+    public CoapExchangeMessage(CoapExchange exchange, byte[] payload) {
+        this(exchange, payload, 0, (payload == null) ? 0 : payload.length);
+    }
+    
+    /**
+     * Constructor for a payload that is a slice of a larger array, e.g. 
+     * of a reassembly buffer.  The array must not be modified while the 
+     * message is processed.
+     * 
+     * @param exchange  the exchange
+     * @param payload  the array holding the payload
+     * @param offset  the offset of the payload in the array
+     * @param length  the length of the payload in bytes
+     */
+    public CoapExchangeMessage(CoapExchange exchange, byte[] payload, 
+            int offset, int length) {
+        if (payload != null && (offset < 0 || length < 0 
+                || length > payload.length - offset)) {
+            throw new IndexOutOfBoundsException();
+        }
+        this.exchange = exchange;
+        this.payload = payload;
+        this.offset = offset;
+        this.length = length;
+    }
+    
+    /**
+     * @return  a read-only view of the payload
+     */
+    public ByteBuffer getPayloadBuffer() {
+        return ByteBuffer.wrap(this.payload, this.offset, this.length)
+                .slice().asReadOnlyBuffer();
+    }
+    
+    /**
+     * @return  the array holding the payload, to read it in place
+     */
+    public byte[] getPayloadArray() {
+        return this.payload;
+    }
+    
+    /**
+     * @return  the offset of the payload in the array
+     */
+    public int getPayloadOffset() {
+        return this.offset;
+    }
+    
+    /**
+     * @return  the length of the payload in bytes
+     */
+    public int getPayloadLength() {
+        return this.length;
+    }
+    
+    /**
+     * Decode the parameters from the payload if not done yet.
+     * 
+     * @return  the parameters, empty if there are none
+     */
+    private synchronized Map<Short, CBORObject> params() {
+        if (this.parameters == null) {
+            this.parameters = Collections.emptyMap();
+            if (this.payload != null && this.length > 0) {
+                try {
+                    CBORObject cbor = CBORObject.DecodeFromBytes(
+                            getRawPayload());
+                    if (cbor.getType().equals(CBORType.Map)) {
+                        this.parameters = Collections.unmodifiableMap(
+                                Constants.getParams(cbor));
+                    }
+                } catch (CBORException | AceException e) {
+                    //Not CBOR or not ACE parameters, so no parameters
+                }
+            }
+        }
+        return this.parameters;
+    }
+
+    @Override
+    public int getMessageCode() {
+        return this.exchange.getRequestCode().value;
+    }
+
+    /**
+     * A payload that is a slice of a larger array is copied here, use
+     * <code>getPayloadArray()</code> to read it in place.
+     */
+    @Override
+    public byte[] getRawPayload() {
+        if (this.payload == null 
+                || (this.offset == 0 && this.length == this.payload.length)) {
+            return this.payload;
+        }
+        return Arrays.copyOfRange(this.payload, this.offset, 
+                this.offset + this.length);
+    }
+
+    @Override
+    public String getSenderId() {
+        Principal p = this.exchange.advanced().getRequest()
+                .getSenderIdentity();
+        if (p == null) {
+            return null;
+        }
+        return p.getName();
+    }
+
+    @Override
+    public Set<Short> getParameterNames() {
+        Map<Short, CBORObject> params = params();
+        return params.isEmpty() ? null : params.keySet();
+    }
+
+    @Override
+    public CBORObject getParameter(Short name) {
+        return params().get(name);
+    }
+
+    @Override
+    public Map<Short, CBORObject> getParameters() {
+        Map<Short, CBORObject> params = params();
+        return params.isEmpty() ? null : params;
+    }
+
+    @Override
+    public Message successReply(int code, CBORObject payload) {
+        return CoapReq.success(code, payload);
+    }
+
+    @Override
+    public Message failReply(int failureReason, CBORObject payload) {
+        return CoapReq.failure(failureReason, payload);
+    }
+}
@@ -133,6 +133,22 @@ public class CoapReq implements Message {
 
     @Override
     public Message successReply(int code, CBORObject payload) {
+        return success(code, payload);
+    }
+
+    @Override
+    public Message failReply(int failureReason, CBORObject payload) {
+        return failure(failureReason, payload);
+    }
+    
+    /**
+     * Create a success reply to an ACE request received over CoAP.
+     * 
+     * @param code  the ACE success code
+     * @param payload  the payload of the reply
+     * @return  the reply
+     */
+    static CoapRes success(int code, CBORObject payload) {
         ResponseCode coapCode = null;
         switch (code) {
         case Message.CREATED :
@@ -147,8 +163,14 @@ public class CoapReq implements Message {
         return res;
     }
 
-    @Override
-    public Message failReply(int failureReason, CBORObject payload) {
+    /**
+     * Create a failure reply to an ACE request received over CoAP.
+     * 
+     * @param failureReason  the ACE failure code
+     * @param payload  the payload of the reply
+     * @return  the reply
+     */
+    static CoapRes failure(int failureReason, CBORObject payload) {
         ResponseCode coapCode = null;
         switch (failureReason) {
         case Message.FAIL_UNAUTHORIZED :
@@ -31,25 +31,31 @@
  *******************************************************************************/
 package cwt;
 
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.bouncycastle.crypto.InvalidCipherTextException;
 
+import com.upokecenter.cbor.CBORException;
 import com.upokecenter.cbor.CBORObject;
+import com.upokecenter.cbor.CBORType;
 
-import COSE.AlgorithmID;
 import COSE.Attribute;
 import COSE.CoseException;
 import COSE.Encrypt0Message;
 import COSE.EncryptMessage;
 import COSE.HeaderKeys;
-import COSE.KeyKeys;
 import COSE.MAC0Message;
 import COSE.MACMessage;
 import COSE.Message;
+import COSE.MessageTag;
 import COSE.OneKey;
 import COSE.Recipient;
 import COSE.Sign1Message;
@@ -58,6 +64,8 @@ import COSE.Signer;
 import ace.AccessToken;
 import ace.Constants;
 import exception.AceException;
+import utility.IngestionMetrics;
+import utility.IngestionMetrics.Stage;
 
 /**
  * Implements CWTs.
@@ -67,15 +75,43 @@ import exception.AceException;
  */
 public class CWT implements AccessToken {
 
-	private Map<Short, CBORObject> claims;	
+	/**
+	 * The claims of this CWT
+	 */
+	private ClaimsView claims;	
+	
+	/**
+	 * The claims decoded from a COSE payload, null if this CWT was
+	 * created from a map of claims
+	 */
+	private CwtClaims decoded = null;
+	
+	/**
+	 * The default pool for batch verification, one thread per core
+	 */
+	private static class BatchPool {
+	    private static final ForkJoinPool POOL = new ForkJoinPool(
+	            Runtime.getRuntime().availableProcessors());
+	}
 	
 	/**
-	 * Creates a new CWT without a COSE wrapper.
+	 * Creates a new CWT without a COSE wrapper.  The claims are copied,
+	 * unless they are a <code>ClaimsView</code>.
 	 * 
 	 * @param claims  the map of claims.
 	 */
 	public CWT(Map<Short, CBORObject> claims) {
-		this.claims = new HashMap<> (claims);
+		this.claims = ClaimsView.of(claims);
+	}
+	
+	/**
+	 * Creates a CWT from decoded claims.
+	 * 
+	 * @param decoded  the decoded claims
+	 */
+	private CWT(CwtClaims decoded) {
+	    this.decoded = decoded;
+	    this.claims = ClaimsView.of(decoded);
 	}
 	
 	/**
@@ -91,21 +127,136 @@ public class CWT implements AccessToken {
 	 */
 	public static CWT processCOSE(byte[] COSE_CWT, CwtCryptoCtx ctx) 
 			throws CoseException, AceException, Exception {
-		Message coseRaw = Message.DecodeFromBytes(COSE_CWT);
+		long start = System.nanoTime();
+		SymmetricEngine engine = ctx.getSymmetricEngine();
+		boolean signature = SignatureVerifier.appliesTo(ctx);
+		CBORObject cose = null;
+		Message coseRaw = null;
+		if (engine != null || signature) {
+		    cose = CBORObject.DecodeFromBytes(COSE_CWT);
+		} else {
+		    coseRaw = Message.DecodeFromBytes(COSE_CWT);
+		}
+		start = IngestionMetrics.record(Stage.COSE, start);
+		return process(cose, coseRaw, engine, ctx, start);
+	}
+	
+	/**
+	 * Parse and validate the COSE wrapper of a CWT that is a slice of a
+	 * larger array, e.g. of a reassembly buffer, without copying it.
+	 * 
+	 * @param data  the array holding the COSE object containing the CWT
+	 * @param offset  the offset of the COSE object in the array
+	 * @param length  the length of the COSE object in bytes
+	 * @param ctx  the crypto context
+	 * @return  the CWT object wrapped by the COSE object
+	 * @throws CoseException 
+	 * @throws AceException 
+	 *
+	 * @throws Exception 
+	 */
+	public static CWT processCOSE(byte[] data, int offset, int length, 
+	        CwtCryptoCtx ctx) throws CoseException, AceException, Exception {
+	    if (offset == 0 && length == data.length) {
+	        return processCOSE(data, ctx);
+	    }
+	    long start = System.nanoTime();
+	    SymmetricEngine engine = ctx.getSymmetricEngine();
+	    ByteArrayInputStream in 
+	        = new ByteArrayInputStream(data, offset, length);
+	    CBORObject cose = CBORObject.Read(in);
+	    if (in.available() > 0) {
+	        throw new CBORException("Superfluous data after COSE object");
+	    }
+	    Message coseRaw = null;
+	    if (engine == null && !SignatureVerifier.appliesTo(ctx)) {
+	        coseRaw = decodeMessage(cose);
+	        cose = null;
+	    }
+	    start = IngestionMetrics.record(Stage.COSE, start);
+	    return process(cose, coseRaw, engine, ctx, start);
+	}
+	
+	/**
+	 * Verify or decrypt the COSE wrapper of a CWT and decode its claims.
+	 * 
+	 * @param cose  the COSE object decoded for the fast paths, or null
+	 * @param coseRaw  the COSE object decoded by the COSE library, or null
+	 *     if <code>cose</code> is given
+	 * @param engine  the symmetric engine of the crypto context, or null
+	 * @param ctx  the crypto context
+	 * @param start  the time the COSE stage ended
+	 * @return  the CWT object wrapped by the COSE object
+	 * @throws CoseException 
+	 * @throws AceException 
+	 *
+	 * @throws Exception 
+	 */
+	private static CWT process(CBORObject cose, Message coseRaw, 
+	        SymmetricEngine engine, CwtCryptoCtx ctx, long start) 
+	        throws CoseException, AceException, Exception {
+		byte[] content;
+		try {
+		    content = verify(cose, coseRaw, engine, ctx);
+		} finally {
+		    //Failed verifications are timed too
+		    start = IngestionMetrics.record(Stage.VERIFY, start);
+		}
+		CWT cwt = new CWT(CwtClaims.decode(content));
+		IngestionMetrics.record(Stage.CLAIMS, start);
+		return cwt;
+	}
+	
+	/**
+	 * Verify or decrypt the COSE wrapper of a CWT.
+	 * 
+	 * @param cose  the COSE object decoded for the fast paths, or null
+	 * @param coseRaw  the COSE object decoded by the COSE library, or null
+	 *     if <code>cose</code> is given
+	 * @param engine  the symmetric engine of the crypto context, or null
+	 * @param ctx  the crypto context
+	 * @return  the verified or decrypted content
+	 * @throws CoseException 
+	 * @throws AceException 
+	 *
+	 * @throws Exception 
+	 */
+	private static byte[] verify(CBORObject cose, Message coseRaw, 
+	        SymmetricEngine engine, CwtCryptoCtx ctx) 
+	        throws CoseException, AceException, Exception {
+		if (cose != null) {
+		    byte[] content = (engine != null) ? engine.process(cose) 
+		            : SignatureVerifier.process(cose, ctx);
+		    if (content != null) {
+		        return content;
+		    }
+		    //Not handled here, fall back to the COSE library
+		    coseRaw = decodeMessage(cose);
+		}
 		
 		if (coseRaw instanceof SignMessage) {
 			SignMessage signed = (SignMessage)coseRaw;
-			//Check all signers, if kid is present compare that first
-			CBORObject myKid = ctx.getPublicKey().get(
-					CBORObject.FromObject(HeaderKeys.KID));
+			//Check only the signers our key applies to, looked up by kid
 			for (Signer s : signed.getSignerList()) {
-				CBORObject kid = s.findAttribute(HeaderKeys.KID);
-				if (myKid == null || myKid.equals(kid)) {
-					s.setKey(ctx.getPublicKey());
+			    if (ctx.getKeyRing() != null) {
+			        for (KeyRing.Entry e : ctx.getKeyRing().lookup(
+			                s.findAttribute(HeaderKeys.KID), 
+			                s.findAttribute(HeaderKeys.Algorithm))) {
+			            if (e.getPublicKey() != null) {
+			                s.setKey(e.getPublicKey());
+			                if (signed.validate(s)) {
+			                    return signed.GetContent();
+			                }
+			            }
+			        }
+			        continue;
+			    }
+				OneKey key = ctx.getPublicKey(
+				        s.findAttribute(HeaderKeys.KID));
+				if (key != null) {
+					s.setKey(key);
 					if(signed.validate(s)) {
-						return new CWT(Constants.getParams(
-								CBORObject.DecodeFromBytes(
-										signed.GetContent())));
+						return signed.GetContent();
 					}
 				}
 			}
@@ -113,32 +264,31 @@ public class CWT implements AccessToken {
 			
 		} else if (coseRaw instanceof Sign1Message) {
 			Sign1Message signed = (Sign1Message)coseRaw;
+			if (ctx.getKeyRing() != null) {
+			    for (KeyRing.Entry e : lookup(ctx.getKeyRing(), signed)) {
+			        if (e.getPublicKey() != null 
+			                && signed.validate(e.getPublicKey())) {
+			            return signed.GetContent();
+			        }
+			    }
+			    throw new AceException("No valid signature found");
+			}
 			if (signed.validate(ctx.getPublicKey())) {
-				return new CWT(Constants.getParams(
-					CBORObject.DecodeFromBytes(signed.GetContent())));
+				return signed.GetContent();
 			}
 			
 		} else if (coseRaw instanceof MACMessage) {
 			MACMessage maced = (MACMessage)coseRaw;
-			for (Recipient me : ctx.getRecipients()) {
-				CBORObject myKid = me.findAttribute(HeaderKeys.KID);
-				CBORObject myAlg = me.findAttribute(HeaderKeys.Algorithm);
-				CBORObject key = CBORObject.NewMap();
-				key.Add(KeyKeys.KeyType.AsCBOR(), KeyKeys.KeyType_Octet);
-				key.Add(KeyKeys.Octet_K.AsCBOR(), CBORObject.FromObject(
-		        		me.getKey(AlgorithmID.FromCBOR(myAlg))));
-				for (Recipient r : maced.getRecipientList()) {
-					if (myKid == null || myKid.equals(
-							r.findAttribute(HeaderKeys.KID)))	{
-						if (myAlg.equals(r.findAttribute(HeaderKeys.Algorithm))) {
-						    OneKey coseKey = new OneKey(key);
-						    r.SetKey(coseKey);			    
-						    if (maced.Validate(r)) {
-						        return new CWT(Constants.getParams(
-						                CBORObject.DecodeFromBytes(
-						                        maced.GetContent())));
-						    }
-						}
+			//Only try our recipients with a matching kid
+			for (Recipient r : maced.getRecipientList()) {
+				CBORObject alg = r.findAttribute(HeaderKeys.Algorithm);
+				for (RecipientKey me : ctx.getRecipientKeys(
+				        r.findAttribute(HeaderKeys.KID))) {
+					if (me.getAlg() != null && me.getAlg().equals(alg)) {
+					    r.SetKey(me.getKey());			    
+					    if (maced.Validate(r)) {
+					        return maced.GetContent();
+					    }
 					}
 				}
 			}
@@ -146,32 +296,31 @@ public class CWT implements AccessToken {
 			
 		} else if (coseRaw instanceof MAC0Message) {
 			MAC0Message maced = (MAC0Message)coseRaw;
+			if (ctx.getKeyRing() != null) {
+			    for (KeyRing.Entry e : lookup(ctx.getKeyRing(), maced)) {
+			        if (e.getSymmetricKey() != null 
+			                && maced.Validate(e.getSymmetricKey())) {
+			            return maced.GetContent();
+			        }
+			    }
+			    throw new AceException("No valid MAC found");
+			}
 			if (maced.Validate(ctx.getKey())) {
-				return new CWT(Constants.getParams(
-						CBORObject.DecodeFromBytes(maced.GetContent())));
+				return maced.GetContent();
 			}
 			
 		} else if (coseRaw instanceof EncryptMessage) {
 			EncryptMessage encrypted = (EncryptMessage)coseRaw;
-			for (Recipient me : ctx.getRecipients()) {
-				CBORObject myKid = me.findAttribute(HeaderKeys.KID);
-				CBORObject myAlg = me.findAttribute(HeaderKeys.Algorithm);
-				CBORObject key = CBORObject.NewMap();
-				key.Add(KeyKeys.KeyType.AsCBOR(), KeyKeys.KeyType_Octet);
-				key.Add(KeyKeys.Octet_K.AsCBOR(), CBORObject.FromObject(
-		        		me.getKey(AlgorithmID.FromCBOR(myAlg))));
-				for (Recipient r : encrypted.getRecipientList()) {
-					if (myKid == null || myKid.equals(
-							r.findAttribute(HeaderKeys.KID)))	{
-						if (myAlg.equals(r.findAttribute(HeaderKeys.Algorithm))) {
-						    OneKey coseKey = new OneKey(key);
-							r.SetKey(coseKey);
-							byte[] plaintext = processDecrypt(encrypted, r);
-							if (plaintext != null) {
-								return new CWT(Constants.getParams(
-										CBORObject.DecodeFromBytes(
-												plaintext)));
-							}
+			//Only try our recipients with a matching kid
+			for (Recipient r : encrypted.getRecipientList()) {
+				CBORObject alg = r.findAttribute(HeaderKeys.Algorithm);
+				for (RecipientKey me : ctx.getRecipientKeys(
+				        r.findAttribute(HeaderKeys.KID))) {
+					if (me.getAlg() != null && me.getAlg().equals(alg)) {
+						r.SetKey(me.getKey());
+						byte[] plaintext = processDecrypt(encrypted, r);
+						if (plaintext != null) {
+							return plaintext;
 						}
 					}
 				}
@@ -180,13 +329,263 @@ public class CWT implements AccessToken {
 			
 		} else if (coseRaw instanceof Encrypt0Message) {
 			Encrypt0Message encrypted = (Encrypt0Message)coseRaw;
-			return new CWT(Constants.getParams(
-					CBORObject.DecodeFromBytes(encrypted.decrypt(
-							ctx.getKey()))));
+			if (ctx.getKeyRing() != null) {
+			    byte[] plaintext = decrypt(ctx.getKeyRing(), encrypted);
+			    if (plaintext != null) {
+			        return plaintext;
+			    }
+			    throw new AceException("No valid key for ciphertext found");
+			}
+			return encrypted.decrypt(ctx.getKey());
 		}
 		throw new AceException("Unknown or invalid COSE crypto wrapper");
 	}
 	
+	/**
+	 * Decode a COSE message from its CBOR object, so that a token already
+	 * decoded for a fast path is not decoded again.  Like 
+	 * <code>Message.DecodeFromBytes()</code>, this requires exactly one
+	 * COSE message tag.
+	 * 
+	 * @param cose  the decoded COSE message
+	 * @return  the COSE library object
+	 * @throws CoseException  if this is not a tagged COSE message
+	 */
+	private static Message decodeMessage(CBORObject cose) 
+	        throws CoseException {
+	    if (!cose.getType().equals(CBORType.Array) 
+	            || cose.GetTags().length != 1) {
+	        throw new CoseException("Message is not a COSE security Message");
+	    }
+	    if (cose.HasTag(MessageTag.Sign.value)) {
+	        return new DecodedSign(cose);
+	    } else if (cose.HasTag(MessageTag.Sign1.value)) {
+	        return new DecodedSign1(cose);
+	    } else if (cose.HasTag(MessageTag.MAC.value)) {
+	        return new DecodedMAC(cose);
+	    } else if (cose.HasTag(MessageTag.MAC0.value)) {
+	        return new DecodedMAC0(cose);
+	    } else if (cose.HasTag(MessageTag.Encrypt.value)) {
+	        return new DecodedEncrypt(cose);
+	    } else if (cose.HasTag(MessageTag.Encrypt0.value)) {
+	        return new DecodedEncrypt0(cose);
+	    }
+	    throw new CoseException(
+	            "Message is not recognized as a COSE security Object");
+	}
+	
+	/**
+	 * A COSE Sign message decoded from a CBOR object.
+	 */
+	private static class DecodedSign extends SignMessage {
+	    private DecodedSign(CBORObject cose) throws CoseException {
+	        DecodeFromCBORObject(cose);
+	    }
+	}
+	
+	/**
+	 * A COSE Sign1 message decoded from a CBOR object.
+	 */
+	private static class DecodedSign1 extends Sign1Message {
+	    private DecodedSign1(CBORObject cose) throws CoseException {
+	        DecodeFromCBORObject(cose);
+	    }
+	}
+	
+	/**
+	 * A COSE MAC message decoded from a CBOR object.
+	 */
+	private static class DecodedMAC extends MACMessage {
+	    private DecodedMAC(CBORObject cose) throws CoseException {
+	        DecodeFromCBORObject(cose);
+	    }
+	}
+	
+	/**
+	 * A COSE MAC0 message decoded from a CBOR object.
+	 */
+	private static class DecodedMAC0 extends MAC0Message {
+	    private DecodedMAC0(CBORObject cose) throws CoseException {
+	        DecodeFromCBORObject(cose);
+	    }
+	}
+	
+	/**
+	 * A COSE Encrypt message decoded from a CBOR object.
+	 */
+	private static class DecodedEncrypt extends EncryptMessage {
+	    private DecodedEncrypt(CBORObject cose) throws CoseException {
+	        DecodeFromCBORObject(cose);
+	    }
+	}
+	
+	/**
+	 * A COSE Encrypt0 message decoded from a CBOR object.
+	 */
+	private static class DecodedEncrypt0 extends Encrypt0Message {
+	    private DecodedEncrypt0(CBORObject cose) throws CoseException {
+	        DecodeFromCBORObject(cose);
+	    }
+	}
+	
+	/**
+	 * Parse and validate the COSE wrappers of a batch of CWTs in parallel,
+	 * using a pool with one thread per core.
+	 * 
+	 * @param tokens  the raw bytes of the COSE objects containing the CWTs
+	 * @param ctx  the crypto context
+	 * @return  the results, in the same order as the tokens
+	 */
+	public static List<VerificationResult> processCOSE(List<byte[]> tokens,
+	        CwtCryptoCtx ctx) {
+	    return processCOSE(tokens, ctx, BatchPool.POOL);
+	}
+	
+	/**
+	 * Parse and validate the COSE wrappers of a batch of CWTs in parallel.
+	 * 
+	 * A token that fails does not affect the others, its result holds 
+	 * the exception thrown by <code>processCOSE()</code>.
+	 * 
+	 * @param tokens  the raw bytes of the COSE objects containing the CWTs
+	 * @param ctx  the crypto context
+	 * @param pool  the pool to verify in, its parallelism bounds the 
+	 *     number of tokens verified at the same time
+	 * @return  the results, in the same order as the tokens
+	 */
+	public static List<VerificationResult> processCOSE(List<byte[]> tokens,
+	        CwtCryptoCtx ctx, ForkJoinPool pool) {
+	    VerificationResult[] results = new VerificationResult[tokens.size()];
+	    if (tokens.size() == 1) {
+	        results[0] = verifyOne(tokens.get(0), ctx);
+	    } else if (!tokens.isEmpty()) {
+	        pool.invoke(new BatchTask(new ArrayList<>(tokens), ctx, results, 
+	                0, results.length));
+	    }
+	    return Arrays.asList(results);
+	}
+	
+	/**
+	 * Verify a token of a batch.
+	 * 
+	 * @param token  the raw bytes of the COSE object
+	 * @param ctx  the crypto context
+	 * @return  the result
+	 */
+	private static VerificationResult verifyOne(byte[] token, 
+	        CwtCryptoCtx ctx) {
+	    try {
+	        return new VerificationResult(processCOSE(token, ctx), null);
+	    } catch (Exception e) {
+	        return new VerificationResult(null, e);
+	    }
+	}
+	
+	/**
+	 * Verifies a range of a batch, splitting it in halves until single
+	 * tokens remain.
+	 */
+	private static class BatchTask extends RecursiveAction {
+	    private static final long serialVersionUID = 1L;
+	    private final List<byte[]> tokens;
+	    private final CwtCryptoCtx ctx;
+	    private final VerificationResult[] results;
+	    private final int from;
+	    private final int to;
+	    
+	    private BatchTask(List<byte[]> tokens, CwtCryptoCtx ctx, 
+	            VerificationResult[] results, int from, int to) {
+	        this.tokens = tokens;
+	        this.ctx = ctx;
+	        this.results = results;
+	        this.from = from;
+	        this.to = to;
+	    }
+
+	    @Override
+	    protected void compute() {
+	        if (this.to - this.from == 1) {
+	            this.results[this.from] = verifyOne(
+	                    this.tokens.get(this.from), this.ctx);
+	            return;
+	        }
+	        int mid = (this.from + this.to) >>> 1;
+	        invokeAll(new BatchTask(this.tokens, this.ctx, this.results, 
+	                        this.from, mid),
+	                new BatchTask(this.tokens, this.ctx, this.results, 
+	                        mid, this.to));
+	    }
+	}
+	
+	/**
+	 * Find the keys of a key ring that apply to a COSE message, using
+	 * the kid and algorithm from the message's headers.
+	 * 
+	 * @param keyRing  the key ring
+	 * @param msg  the COSE message
+	 * @return  the keys to try
+	 */
+	private static List<KeyRing.Entry> lookup(KeyRing keyRing, Message msg) {
+	    return keyRing.lookup(msg.findAttribute(HeaderKeys.KID), 
+	            msg.findAttribute(HeaderKeys.Algorithm));
+	}
+	
+	/**
+	 * Decrypt an Encrypt0 object, e.g. from a cnf claim, with the key or 
+	 * key ring of a crypto context.  Uses the pre-keyed engines of the
+	 * context if possible.
+	 * 
+	 * @param ctx  the crypto context
+	 * @param encrypt0  the Encrypt0 object
+	 * @return  the plaintext
+	 * @throws CoseException  if the object is malformed or no key applies
+	 * @throws InvalidCipherTextException  if decryption fails
+	 * @throws AceException  if decryption fails
+	 */
+	public static byte[] decrypt(CwtCryptoCtx ctx, CBORObject encrypt0) 
+	        throws CoseException, InvalidCipherTextException, AceException {
+	    SymmetricEngine engine = ctx.getEncrypt0Engine(
+	            SymmetricEngine.findAlg(encrypt0));
+	    if (engine != null) {
+	        byte[] plaintext = engine.process(encrypt0);
+	        if (plaintext != null) {
+	            return plaintext;
+	        }
+	    }
+	    Encrypt0Message msg = new Encrypt0Message();
+	    msg.DecodeFromCBORObject(encrypt0);
+	    if (ctx.getKeyRing() != null) {
+	        byte[] plaintext = decrypt(ctx.getKeyRing(), msg);
+	        if (plaintext == null) {
+	            throw new CoseException("No valid key found");
+	        }
+	        return plaintext;
+	    }
+	    return msg.decrypt(ctx.getKey());
+	}
+	
+	/**
+	 * Decrypt an Encrypt0 message with the first matching key of a 
+	 * key ring.
+	 * 
+	 * @param keyRing  the key ring
+	 * @param msg  the encrypted message
+	 * @return  the plaintext or null if no key could decrypt the message
+	 */
+	public static byte[] decrypt(KeyRing keyRing, Encrypt0Message msg) {
+	    for (KeyRing.Entry e : lookup(keyRing, msg)) {
+	        if (e.getSymmetricKey() == null) {
+	            continue;
+	        }
+	        try {
+	            return msg.decrypt(e.getSymmetricKey());
+	        } catch (CoseException | InvalidCipherTextException ex) {
+	            //Try the next key
+	        }
+	    }
+	    return null;
+	}
+	
 	private static byte[] processDecrypt(EncryptMessage m, Recipient r) {
 		try {
 			return m.decrypt(r);
@@ -320,10 +719,10 @@ public class CWT implements AccessToken {
 	}
 	
 	/**
-	 * @return a copy of the claims in this CWT.
+	 * @return  the claims in this CWT, as immutable view.
 	 */
-	public Map<Short, CBORObject> getClaims() {
-	    return new HashMap<>(this.claims);
+	public ClaimsView getClaims() {
+	    return this.claims;
 	}
 	
 	/**
@@ -336,6 +735,11 @@ public class CWT implements AccessToken {
 	@Override
 	public boolean isValid(long now) {
 		//Check nbf and exp for the found match
+	    if (this.decoded != null) {
+	        return !(this.decoded.has(Constants.NBF) 
+	                    && this.decoded.getNbf() > now)
+	                && !expired(now);
+	    }
 		CBORObject nbfO = this.claims.get(Constants.NBF);
 		if (nbfO != null &&  nbfO.AsInt64()	> now) {
 			return false;
@@ -357,6 +761,10 @@ public class CWT implements AccessToken {
 	 */
 	@Override
 	public boolean expired(long now) {
+	    if (this.decoded != null) {
+	        return this.decoded.has(Constants.EXP) 
+	                && this.decoded.getExp() < now;
+	    }
 		CBORObject expO = this.claims.get(Constants.EXP);
 		if (expO != null && expO.AsInt64() < now) {
 			//Token has expired
@@ -372,7 +780,7 @@ public class CWT implements AccessToken {
 
     @Override
     public String getCti() throws AceException {
-        CBORObject cti = this.claims.get(Constants.CTI);
+        CBORObject cti = getClaim(Constants.CTI);
         if (cti == null) {
             throw new AceException("Token has no cti");
         }
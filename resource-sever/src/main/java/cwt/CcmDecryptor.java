@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package cwt;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Cipher;
+
+import org.bouncycastle.crypto.BlockCipher;
+
+import exception.AceException;
+
+/**
+ * AES-CCM decryption as specified in RFC 3610, built on an AES block
+ * function that is keyed once and then reused for every message.
+ * 
+ * BouncyCastle's <code>CCMBlockCipher</code> keys its CBC-MAC and CTR 
+ * ciphers again for every message, i.e. rebuilds the AES key schedule
+ * each time, and the JDK has no CCM mode at all.  Instances are not 
+ * thread safe, <code>SymmetricEngine</code> keeps one per thread.
+ *
+ */
+class CcmDecryptor {
+    
+    /**
+     * The AES block size in bytes
+     */
+    private static final int BLOCK = 16;
+    
+    /**
+     * The AES block function, either a keyed BouncyCastle engine or a keyed
+     * JCA cipher in ECB mode
+     */
+    private final BlockCipher engine;
+    
+    /**
+     * The JCA cipher in ECB mode, null if the BouncyCastle engine is used
+     */
+    private final Cipher ecb;
+    
+    /**
+     * The length of the authentication tag in bytes
+     */
+    private final int tagLength;
+    
+    /**
+     * The length of the nonce in bytes
+     */
+    private final int nonceLength;
+    
+    /**
+     * Constructor.
+     * 
+     * @param engine  an AES engine keyed for encryption
+     * @param ecb  a JCA AES cipher in ECB mode keyed for encryption, used 
+     *     if <code>engine</code> is null
+     * @param tagLength  the length of the tag in bytes
+     * @param nonceLength  the length of the nonce in bytes (7 to 13)
+     */
+    CcmDecryptor(BlockCipher engine, Cipher ecb, int tagLength, 
+            int nonceLength) {
+        this.engine = engine;
+        this.ecb = ecb;
+        this.tagLength = tagLength;
+        this.nonceLength = nonceLength;
+    }
+    
+    /**
+     * Decrypt and verify a message.
+     * 
+     * @param nonce  the nonce
+     * @param aad  the additional authenticated data
+     * @param ciphertext  the ciphertext followed by the tag
+     * 
+     * @return  the plaintext
+     * @throws AceException  if the input is malformed or the tag is invalid
+     */
+    byte[] decrypt(byte[] nonce, byte[] aad, byte[] ciphertext) 
+            throws AceException {
+        int l = 15 - this.nonceLength;
+        int len = ciphertext.length - this.tagLength;
+        if (nonce.length != this.nonceLength || len < 0 
+                || (l < 4 && len >= (1 << (8 * l)))) {
+            throw new AceException("Decryption failed");
+        }
+        byte[] counter = new byte[BLOCK];
+        byte[] stream = new byte[BLOCK];
+        counter[0] = (byte)(l - 1);
+        System.arraycopy(nonce, 0, counter, 1, this.nonceLength);
+        
+        //Decrypt with the counter blocks A1, A2, ...
+        byte[] plaintext = new byte[len];
+        for (int i = 0; i < len; i += BLOCK) {
+            setCounter(counter, l, i / BLOCK + 1);
+            encrypt(counter, stream);
+            for (int j = 0; j < BLOCK && i + j < len; j++) {
+                plaintext[i + j] = (byte)(ciphertext[i + j] ^ stream[j]);
+            }
+        }
+        
+        //The received tag is encrypted with A0
+        setCounter(counter, l, 0);
+        encrypt(counter, stream);
+        byte[] received = new byte[this.tagLength];
+        for (int j = 0; j < this.tagLength; j++) {
+            received[j] = (byte)(ciphertext[len + j] ^ stream[j]);
+        }
+        
+        byte[] mac = cbcMac(nonce, aad, plaintext, l);
+        byte[] expected = new byte[this.tagLength];
+        System.arraycopy(mac, 0, expected, 0, this.tagLength);
+        if (!MessageDigest.isEqual(expected, received)) {
+            throw new AceException("Decryption failed");
+        }
+        return plaintext;
+    }
+    
+    /**
+     * Compute the CBC-MAC over the formatted nonce, AAD and plaintext.
+     * 
+     * @param nonce  the nonce
+     * @param aad  the additional authenticated data
+     * @param plaintext  the plaintext
+     * @param l  the size of the length field in bytes
+     * 
+     * @return  the last CBC-MAC block
+     */
+    private byte[] cbcMac(byte[] nonce, byte[] aad, byte[] plaintext, 
+            int l) {
+        byte[] x = new byte[BLOCK];
+        x[0] = (byte)(((aad.length > 0) ? 0x40 : 0) 
+                | (((this.tagLength - 2) / 2) << 3) | (l - 1));
+        System.arraycopy(nonce, 0, x, 1, this.nonceLength);
+        long len = plaintext.length;
+        for (int i = BLOCK - 1; i > this.nonceLength; i--) {
+            x[i] = (byte)len;
+            len >>>= 8;
+        }
+        encrypt(x, x);
+        
+        if (aad.length > 0) {
+            //The AAD is prefixed with its encoded length
+            byte[] prefix;
+            if (aad.length < 0xFF00) {
+                prefix = new byte[] {(byte)(aad.length >>> 8), 
+                        (byte)aad.length};
+            } else {
+                prefix = new byte[] {(byte)0xFF, (byte)0xFE, 
+                        (byte)(aad.length >>> 24), (byte)(aad.length >>> 16),
+                        (byte)(aad.length >>> 8), (byte)aad.length};
+            }
+            int pos = 0;
+            for (byte b : prefix) {
+                x[pos++] ^= b;
+            }
+            for (byte b : aad) {
+                if (pos == BLOCK) {
+                    encrypt(x, x);
+                    pos = 0;
+                }
+                x[pos++] ^= b;
+            }
+            encrypt(x, x);
+        }
+        
+        for (int i = 0; i < plaintext.length; i += BLOCK) {
+            for (int j = 0; j < BLOCK && i + j < plaintext.length; j++) {
+                x[j] ^= plaintext[i + j];
+            }
+            encrypt(x, x);
+        }
+        return x;
+    }
+    
+    /**
+     * Set the counter field of a counter block.
+     * 
+     * @param block  the counter block
+     * @param l  the size of the counter field in bytes
+     * @param value  the counter value
+     */
+    private static void setCounter(byte[] block, int l, int value) {
+        int v = value;
+        for (int i = BLOCK - 1; i >= BLOCK - l; i--) {
+            block[i] = (byte)v;
+            v >>>= 8;
+        }
+    }
+    
+    /**
+     * Encrypt one block with the keyed AES block function.
+     * 
+     * @param in  the input block
+     * @param out  the output block, may be the input block
+     */
+    private void encrypt(byte[] in, byte[] out) {
+        if (this.engine != null) {
+            this.engine.processBlock(in, 0, out, 0);
+            return;
+        }
+        try {
+            this.ecb.doFinal(in, 0, BLOCK, out, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package cwt;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.upokecenter.cbor.CBORObject;
+
+/**
+ * An immutable map of claims, that can be passed through the token 
+ * processing pipeline without defensive copies.
+ * 
+ * The claims are either backed by claims decoded from a CWT payload, or
+ * by a private copy of a map.  Adding claims, e.g. the results of an
+ * introspection, does not change a view but returns a new one, which 
+ * shares the claims of this view and only holds the added claims itself.
+ * 
+ * All mutating <code>Map</code> methods throw an 
+ * <code>UnsupportedOperationException</code>.
+ *
+ */
+public final class ClaimsView extends AbstractMap<Short, CBORObject> {
+    
+    /**
+     * The decoded claims, null if this view is backed by a map
+     */
+    private final CwtClaims decoded;
+    
+    /**
+     * The claims map, null if this view is backed by decoded claims
+     */
+    private final Map<Short, CBORObject> base;
+    
+    /**
+     * The claims added on top of the backing claims, may be empty
+     */
+    private final Map<Short, CBORObject> overlay;
+    
+    /**
+     * The keys of all claims
+     */
+    private final Set<Short> keys;
+    
+    /**
+     * The claims decoded from the payload so far
+     */
+    private final Map<Short, CBORObject> decodedValues;
+    
+    /**
+     * Constructor.
+     * 
+     * @param decoded  the decoded claims or null
+     * @param base  the claims map or null
+     * @param overlay  the added claims
+     * @param decodedValues  the claims decoded so far, shared between
+     *     views of the same decoded claims
+     */
+    private ClaimsView(CwtClaims decoded, Map<Short, CBORObject> base,
+            Map<Short, CBORObject> overlay, 
+            Map<Short, CBORObject> decodedValues) {
+        this.decoded = decoded;
+        this.base = base;
+        this.overlay = overlay;
+        this.decodedValues = decodedValues;
+        Set<Short> all = new LinkedHashSet<>(
+                (decoded != null) ? decoded.keySet() : base.keySet());
+        all.addAll(overlay.keySet());
+        this.keys = Collections.unmodifiableSet(all);
+    }
+    
+    /**
+     * Create a view of decoded claims.
+     * 
+     * @param decoded  the decoded claims
+     * @return  the view
+     */
+    public static ClaimsView of(CwtClaims decoded) {
+        return new ClaimsView(decoded, null, 
+                Collections.<Short, CBORObject>emptyMap(), 
+                new ConcurrentHashMap<Short, CBORObject>());
+    }
+    
+    /**
+     * Create a view of a map of claims.  Views are returned as they are, 
+     * other maps are copied once.
+     * 
+     * @param claims  the claims
+     * @return  the view
+     */
+    public static ClaimsView of(Map<Short, CBORObject> claims) {
+        if (claims instanceof ClaimsView) {
+            return (ClaimsView)claims;
+        }
+        return new ClaimsView(null, 
+                Collections.unmodifiableMap(new HashMap<>(claims)),
+                Collections.<Short, CBORObject>emptyMap(), null);
+    }
+    
+    /**
+     * Create a view with additional claims, replacing those of this view
+     * that have the same keys.  This view is not changed.
+     * 
+     * @param claims  the claims to add, may be null
+     * @return  the new view, or this view if there is nothing to add
+     */
+    public ClaimsView with(Map<Short, CBORObject> claims) {
+        if (claims == null || claims.isEmpty()) {
+            return this;
+        }
+        Map<Short, CBORObject> added = new HashMap<>(this.overlay);
+        added.putAll(claims);
+        return new ClaimsView(this.decoded, this.base, 
+                Collections.unmodifiableMap(added), this.decodedValues);
+    }
+    
+    /**
+     * Create a view with an additional claim.  This view is not changed.
+     * 
+     * @param key  the claim key
+     * @param value  the claim value
+     * @return  the new view
+     */
+    public ClaimsView with(Short key, CBORObject value) {
+        return with(Collections.singletonMap(key, value));
+    }
+    
+    @Override
+    public CBORObject get(Object key) {
+        CBORObject value = this.overlay.get(key);
+        if (value != null || !(key instanceof Short)) {
+            return value;
+        }
+        if (this.base != null) {
+            return this.base.get(key);
+        }
+        if (!this.decoded.has((Short)key)) {
+            return null;
+        }
+        value = this.decodedValues.get(key);
+        if (value == null) {
+            value = this.decoded.get((Short)key);
+            this.decodedValues.put((Short)key, value);
+        }
+        return value;
+    }
+    
+    @Override
+    public boolean containsKey(Object key) {
+        return this.keys.contains(key);
+    }
+    
+    @Override
+    public int size() {
+        return this.keys.size();
+    }
+    
+    @Override
+    public Set<Short> keySet() {
+        return this.keys;
+    }
+    
+    @Override
+    public Set<Map.Entry<Short, CBORObject>> entrySet() {
+        return new AbstractSet<Map.Entry<Short, CBORObject>>() {
+            @Override
+            public Iterator<Map.Entry<Short, CBORObject>> iterator() {
+                final Iterator<Short> it = ClaimsView.this.keys.iterator();
+                return new Iterator<Map.Entry<Short, CBORObject>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<Short, CBORObject> next() {
+                        Short key = it.next();
+                        return new AbstractMap.SimpleImmutableEntry<>(
+                                key, get(key));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return ClaimsView.this.keys.size();
+            }
+        };
+    }
+    
+    /**
+     * @return  the decoded claims backing this view, null if this view
+     *     is backed by a map
+     */
+    public CwtClaims getDecoded() {
+        return this.decoded;
+    }
+}
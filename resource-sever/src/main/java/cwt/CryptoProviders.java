@@ -0,0 +1,260 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package cwt;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.security.Signature;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+/**
+ * Selects the JCA provider used for each cryptographic primitive of the
+ * token verification fast paths (<code>SymmetricEngine</code> and 
+ * <code>SignatureVerifier</code>).
+ * 
+ * If no provider is set for a primitive, the built-in default is used: the
+ * JCA lookup order for HMAC, BouncyCastle's lightweight engines for 
+ * AES-GCM and AES-CCM, and the COSE library for ECDSA.  Engines created
+ * before a change pick up the new provider on their next use.
+ * 
+ * Usage:
+ * <pre>
+ * CryptoProviders.setProvider(Primitive.AES_GCM, "SunJCE");
+ * CryptoProviders.setProvider(Primitive.AES_CCM, new BouncyCastleProvider());
+ * </pre>
+ * or <code>CryptoProviders.selectDefaults()</code> to prefer the JDK 
+ * providers, which use AES and SHA intrinsics on most platforms.
+ *
+ */
+public class CryptoProviders {
+    
+    /**
+     * The primitives that can be served by a provider
+     */
+    public enum Primitive {
+        /**
+         * HMAC with SHA-256, SHA-384 and SHA-512
+         */
+        HMAC("HmacSHA256"),
+        /**
+         * AES in Galois/Counter Mode
+         */
+        AES_GCM("AES/GCM/NoPadding"),
+        /**
+         * AES in Counter with CBC-MAC mode.  Only the AES block cipher of
+         * the provider is used, the mode is done by 
+         * <code>CcmDecryptor</code>
+         */
+        AES_CCM("AES/ECB/NoPadding"),
+        /**
+         * ECDSA signature verification
+         */
+        ECDSA("SHA256withECDSA");
+        
+        /**
+         * The JCA algorithm used to check if a provider supports this
+         */
+        private final String jcaName;
+        
+        private Primitive(String jcaName) {
+            this.jcaName = jcaName;
+        }
+    }
+    
+    /**
+     * The configured providers
+     */
+    private static final Map<Primitive, Provider> providers 
+        = new EnumMap<>(Primitive.class);
+    
+    /**
+     * Incremented on every change of the configuration
+     */
+    private static final AtomicLong version = new AtomicLong();
+    
+    private CryptoProviders() {
+        //Static methods only
+    }
+    
+    /**
+     * Set the provider for a primitive.
+     * 
+     * @param primitive  the primitive
+     * @param provider  the provider, null to use the built-in default
+     * 
+     * @throws NoSuchAlgorithmException  if the provider does not 
+     *     implement the primitive
+     */
+    public static synchronized void setProvider(Primitive primitive, 
+            Provider provider) throws NoSuchAlgorithmException {
+        if (provider != null && !supports(provider, primitive)) {
+            throw new NoSuchAlgorithmException(provider.getName() 
+                    + " does not implement " + primitive.jcaName);
+        }
+        if (provider == null) {
+            providers.remove(primitive);
+        } else {
+            providers.put(primitive, provider);
+        }
+        version.incrementAndGet();
+    }
+    
+    /**
+     * Set the provider for a primitive by name.  The provider must be 
+     * installed.
+     * 
+     * @param primitive  the primitive
+     * @param name  the provider name, e.g. "SunJCE" or "BC"
+     * 
+     * @throws NoSuchAlgorithmException  if the provider is not installed or
+     *     does not implement the primitive
+     */
+    public static void setProvider(Primitive primitive, String name) 
+            throws NoSuchAlgorithmException {
+        Provider provider = Security.getProvider(name);
+        if (provider == null) {
+            throw new NoSuchAlgorithmException(
+                    "Provider not installed: " + name);
+        }
+        setProvider(primitive, provider);
+    }
+    
+    /**
+     * Use the JDK providers for all primitives they implement ("SunJCE"
+     * for HMAC, AES-GCM and AES-CCM, "SunEC" for ECDSA) and the built-in 
+     * defaults for the others.
+     */
+    public static synchronized void selectDefaults() {
+        String[] jdk = {"SunJCE", "SunEC"};
+        for (Primitive p : Primitive.values()) {
+            providers.remove(p);
+            for (String name : jdk) {
+                Provider provider = Security.getProvider(name);
+                if (provider != null && supports(provider, p)) {
+                    providers.put(p, provider);
+                    break;
+                }
+            }
+        }
+        version.incrementAndGet();
+    }
+    
+    /**
+     * @param primitive  the primitive
+     * @return  the provider for this primitive, null if the built-in 
+     *     default is used
+     */
+    public static synchronized Provider getProvider(Primitive primitive) {
+        return providers.get(primitive);
+    }
+    
+    /**
+     * @return  a number that changes whenever the configuration changes
+     */
+    public static long getVersion() {
+        return version.get();
+    }
+    
+    /**
+     * Get a MAC engine from the HMAC provider.
+     * 
+     * @param algorithm  the JCA algorithm name, e.g. "HmacSHA256"
+     * @return  the MAC engine
+     * @throws GeneralSecurityException
+     */
+    public static Mac getMac(String algorithm) 
+            throws GeneralSecurityException {
+        Provider provider = getProvider(Primitive.HMAC);
+        return (provider == null) ? Mac.getInstance(algorithm) 
+                : Mac.getInstance(algorithm, provider);
+    }
+    
+    /**
+     * Get a cipher from the provider of an AEAD primitive.
+     * 
+     * @param primitive  AES_GCM or AES_CCM
+     * @return  the cipher, in ECB mode for AES_CCM, or null if the 
+     *     built-in default is used
+     * @throws GeneralSecurityException
+     */
+    public static Cipher getCipher(Primitive primitive) 
+            throws GeneralSecurityException {
+        Provider provider = getProvider(primitive);
+        return (provider == null) ? null 
+                : Cipher.getInstance(primitive.jcaName, provider);
+    }
+    
+    /**
+     * Get a signature engine from the ECDSA provider.
+     * 
+     * @param algorithm  the JCA algorithm name, e.g. "SHA256withECDSA"
+     * @return  the signature engine, or null if the built-in default 
+     *     is used
+     * @throws GeneralSecurityException
+     */
+    public static Signature getSignature(String algorithm) 
+            throws GeneralSecurityException {
+        Provider provider = getProvider(Primitive.ECDSA);
+        return (provider == null) ? null 
+                : Signature.getInstance(algorithm, provider);
+    }
+    
+    /**
+     * @param provider  the provider
+     * @param primitive  the primitive
+     * @return  true if the provider implements the primitive
+     */
+    private static boolean supports(Provider provider, Primitive primitive) {
+        switch (primitive) {
+        case HMAC:
+            return provider.getService("Mac", primitive.jcaName) != null;
+        case ECDSA:
+            return provider.getService("Signature", primitive.jcaName) 
+                    != null;
+        default:
+            //Check that the provider implements the mode, not just AES
+            try {
+                Cipher.getInstance(primitive.jcaName, provider);
+                return true;
+            } catch (GeneralSecurityException e) {
+                return false;
+            }
+        }
+    }
+}
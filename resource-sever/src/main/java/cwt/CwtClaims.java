@@ -0,0 +1,667 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package cwt;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.upokecenter.cbor.CBORException;
+import com.upokecenter.cbor.CBORObject;
+
+import ace.Constants;
+import exception.AceException;
+
+/**
+ * The claims of a CWT, decoded in a single pass over the encoded claims map
+ * without building a <code>CBORObject</code> tree.
+ * 
+ * The claims the RS uses (iss, sub, aud, exp, nbf, iat, cti, scope) are 
+ * kept in plain fields if they have the expected type, all other claims 
+ * are kept as slices of the encoded payload and only decoded when they
+ * are asked for.
+ * 
+ * The payload must be well-formed CBOR by the same rules as enforced by
+ * <code>TokenGuard</code>, so that the slices can later be decoded by 
+ * the CBOR library.  Text strings must be valid UTF-8, which the CBOR 
+ * library does not check for definite length strings.  Slices that 
+ * contain tags are decoded by the CBOR library right away, since it 
+ * gives some tags a meaning beyond well-formedness, e.g. bignums.
+ * 
+ * Instances are immutable.
+ *
+ */
+public class CwtClaims {
+    
+    /**
+     * The maximum nesting depth of claim values
+     */
+    private static final int MAX_DEPTH = 16;
+    
+    /**
+     * Marks an indefinite length item
+     */
+    private static final long INDEFINITE = -1L;
+    
+    /**
+     * The encoded claims map
+     */
+    private final byte[] payload;
+    
+    /**
+     * Bit i is set if claim i is held in one of the fields below
+     */
+    private int compact = 0;
+    
+    /**
+     * The iss claim
+     */
+    private String iss = null;
+    
+    /**
+     * The sub claim
+     */
+    private String sub = null;
+    
+    /**
+     * The aud claim, if it is a single text string
+     */
+    private String aud = null;
+    
+    /**
+     * The exp claim
+     */
+    private long exp = 0;
+    
+    /**
+     * The nbf claim
+     */
+    private long nbf = 0;
+    
+    /**
+     * The iat claim
+     */
+    private long iat = 0;
+    
+    /**
+     * The cti claim
+     */
+    private byte[] cti = null;
+    
+    /**
+     * The scope claim, if it is a text string
+     */
+    private String scope = null;
+    
+    /**
+     * The keys of the claims kept as slices of the payload
+     */
+    private short[] rawKeys = new short[4];
+    
+    /**
+     * The start offsets of the claims kept as slices of the payload
+     */
+    private int[] rawStart = new int[4];
+    
+    /**
+     * The end offsets of the claims kept as slices of the payload
+     */
+    private int[] rawEnd = new int[4];
+    
+    /**
+     * The number of claims kept as slices of the payload
+     */
+    private int rawCount = 0;
+    
+    /**
+     * The keys of all claims, in the order of the payload
+     */
+    private final Set<Short> keys = new LinkedHashSet<>();
+    
+    /**
+     * The read position while decoding
+     */
+    private int pos = 0;
+    
+    /**
+     * The major type of the last head read while decoding
+     */
+    private int major;
+    
+    /**
+     * Whether a tag was skipped since the start of the current claim
+     */
+    private boolean tagged;
+    
+    /**
+     * The UTF-8 decoder reporting malformed input, created on first use
+     */
+    private CharsetDecoder utf8 = null;
+    
+    /**
+     * Constructor.
+     * 
+     * @param payload  the encoded claims map
+     */
+    private CwtClaims(byte[] payload) {
+        this.payload = payload;
+    }
+    
+    /**
+     * Decode the claims of a CWT.  The payload is not copied and must not
+     * be modified afterwards.
+     * 
+     * @param payload  the encoded claims map
+     * 
+     * @return  the claims
+     * 
+     * @throws AceException  if the payload is not a well-formed CBOR map
+     *     with integer keys
+     */
+    public static CwtClaims decode(byte[] payload) throws AceException {
+        CwtClaims claims = new CwtClaims(payload);
+        claims.readMap();
+        return claims;
+    }
+    
+    /**
+     * @param key  the claim key
+     * @return  true if this claim is present
+     */
+    public boolean has(short key) {
+        return this.keys.contains(key);
+    }
+    
+    /**
+     * @return  the keys of all claims
+     */
+    public Set<Short> keySet() {
+        return Collections.unmodifiableSet(this.keys);
+    }
+    
+    /**
+     * @return  the number of claims
+     */
+    public int size() {
+        return this.keys.size();
+    }
+    
+    /**
+     * Get a claim as CBOR object.
+     * 
+     * @param key  the claim key
+     * @return  the value of the claim or null if it is not present
+     */
+    public CBORObject get(short key) {
+        if (isCompact(key)) {
+            switch (key) {
+            case Constants.ISS:
+                return CBORObject.FromObject(this.iss);
+            case Constants.SUB:
+                return CBORObject.FromObject(this.sub);
+            case Constants.AUD:
+                return CBORObject.FromObject(this.aud);
+            case Constants.EXP:
+                return CBORObject.FromObject(this.exp);
+            case Constants.NBF:
+                return CBORObject.FromObject(this.nbf);
+            case Constants.IAT:
+                return CBORObject.FromObject(this.iat);
+            case Constants.CTI:
+                return CBORObject.FromObject(this.cti.clone());
+            case Constants.SCOPE:
+                return CBORObject.FromObject(this.scope);
+            default:
+                return null;
+            }
+        }
+        for (int i = 0; i < this.rawCount; i++) {
+            if (this.rawKeys[i] == key) {
+                return CBORObject.DecodeFromBytes(Arrays.copyOfRange(
+                        this.payload, this.rawStart[i], this.rawEnd[i]));
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * @return  all claims as a new map
+     */
+    public Map<Short, CBORObject> toMap() {
+        Map<Short, CBORObject> map = new HashMap<>();
+        for (Short key : this.keys) {
+            map.put(key, get(key));
+        }
+        return map;
+    }
+    
+    /**
+     * @return  the iss claim if it is a text string, null otherwise
+     */
+    public String getIss() {
+        return this.iss;
+    }
+    
+    /**
+     * @return  the sub claim if it is a text string, null otherwise
+     */
+    public String getSub() {
+        return this.sub;
+    }
+    
+    /**
+     * @return  the aud claim if it is a single text string, null otherwise
+     */
+    public String getAud() {
+        return this.aud;
+    }
+    
+    /**
+     * @return  the scope claim if it is a text string, null otherwise
+     */
+    public String getScope() {
+        return this.scope;
+    }
+    
+    /**
+     * @return  the cti claim if it is a byte string, null otherwise
+     */
+    public byte[] getCti() {
+        return (this.cti == null) ? null : this.cti.clone();
+    }
+    
+    /**
+     * @return  the exp claim, only meaningful if <code>has(EXP)</code>
+     */
+    public long getExp() {
+        return time(Constants.EXP, this.exp);
+    }
+    
+    /**
+     * @return  the nbf claim, only meaningful if <code>has(NBF)</code>
+     */
+    public long getNbf() {
+        return time(Constants.NBF, this.nbf);
+    }
+    
+    /**
+     * @return  the iat claim, only meaningful if <code>has(IAT)</code>
+     */
+    public long getIat() {
+        return time(Constants.IAT, this.iat);
+    }
+    
+    /**
+     * Get a time claim, decoding it if it was not an integer, e.g. a 
+     * floating point value.
+     * 
+     * @param key  the claim key
+     * @param value  the value of the field holding the claim
+     * @return  the claim as integer, 0 if not present
+     */
+    private long time(short key, long value) {
+        if (isCompact(key)) {
+            return value;
+        }
+        CBORObject o = get(key);
+        return (o == null) ? 0 : o.AsInt64();
+    }
+    
+    /**
+     * @param key  the claim key
+     * @return  true if the claim is held in a field
+     */
+    private boolean isCompact(short key) {
+        return key > 0 && key < 32 && (this.compact & (1 << key)) != 0;
+    }
+    
+    /**
+     * Read the claims map.
+     * 
+     * @throws AceException
+     */
+    private void readMap() throws AceException {
+        long entries = readHead();
+        if (this.major != 5) {
+            throw new AceException("CBOR object is not a Map");
+        }
+        while (entries == INDEFINITE ? !readBreak() : entries-- > 0) {
+            long key = readHead();
+            if (this.major > 1 || key < 0) {
+                throw new AceException("CBOR key was not a Short");
+            }
+            key = (this.major == 1) ? -1 - key : key;
+            if (key < Short.MIN_VALUE || key > Short.MAX_VALUE) {
+                throw new AceException("CBOR key was not a Short");
+            }
+            if (!this.keys.add((short)key)) {
+                throw new AceException("Duplicate claim: " + key);
+            }
+            readClaim((short)key);
+        }
+        if (this.pos != this.payload.length) {
+            throw new AceException("Claims have trailing data");
+        }
+    }
+    
+    /**
+     * Read the value of a claim into its field, or keep it as slice if 
+     * it is an unknown claim or does not have the expected type.
+     * 
+     * @param key  the claim key
+     * @throws AceException
+     */
+    private void readClaim(short key) throws AceException {
+        int start = this.pos;
+        switch (key) {
+        case Constants.ISS:
+            this.iss = readText(key);
+            break;
+        case Constants.SUB:
+            this.sub = readText(key);
+            break;
+        case Constants.AUD:
+            this.aud = readText(key);
+            break;
+        case Constants.SCOPE:
+            this.scope = readText(key);
+            break;
+        case Constants.EXP:
+            this.exp = readTime(key);
+            break;
+        case Constants.NBF:
+            this.nbf = readTime(key);
+            break;
+        case Constants.IAT:
+            this.iat = readTime(key);
+            break;
+        case Constants.CTI:
+            long len = readHead();
+            if (this.major == 2 && len != INDEFINITE) {
+                this.cti = Arrays.copyOfRange(this.payload, this.pos, 
+                        this.pos + (int)len);
+                this.pos += (int)len;
+                this.compact |= 1 << key;
+            }
+            break;
+        default:
+            break;
+        }
+        if (!isCompact(key)) {
+            this.pos = start;
+            this.tagged = false;
+            skip(0);
+            if (this.tagged) {
+                checkTags(start, this.pos);
+            }
+            addRaw(key, start, this.pos);
+        }
+    }
+    
+    /**
+     * Let the CBOR library decode a claim that contains tags, so that 
+     * its later decoding in <code>get()</code> cannot fail.
+     * 
+     * @param start  the start offset of the claim
+     * @param end  the end offset of the claim
+     * @throws AceException  if the CBOR library rejects the claim
+     */
+    private void checkTags(int start, int end) throws AceException {
+        try {
+            CBORObject.DecodeFromBytes(
+                    Arrays.copyOfRange(this.payload, start, end));
+        } catch (CBORException e) {
+            throw new AceException("Claims are not valid CBOR: " 
+                    + e.getMessage());
+        }
+    }
+    
+    /**
+     * Read a text string claim.
+     * 
+     * @param key  the claim key
+     * @return  the text or null if the value is not a definite length
+     *     text string
+     * @throws AceException
+     */
+    private String readText(short key) throws AceException {
+        long len = readHead();
+        if (this.major != 3 || len == INDEFINITE) {
+            return null;
+        }
+        String text = utf8((int)len);
+        this.compact |= 1 << key;
+        return text;
+    }
+    
+    /**
+     * Decode the UTF-8 content of a text string and move past it.
+     * 
+     * @param len  the length of the content in bytes
+     * @return  the text
+     * @throws AceException  if the content is not valid UTF-8
+     */
+    private String utf8(int len) throws AceException {
+        if (this.utf8 == null) {
+            this.utf8 = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT);
+        }
+        try {
+            String text = this.utf8.decode(
+                    ByteBuffer.wrap(this.payload, this.pos, len)).toString();
+            this.pos += len;
+            return text;
+        } catch (CharacterCodingException e) {
+            throw new AceException("Claims contain invalid UTF-8");
+        }
+    }
+    
+    /**
+     * Read an integer time claim, which may have the epoch date tag.
+     * 
+     * @param key  the claim key
+     * @return  the time, only valid if the claim is now compact
+     * @throws AceException
+     */
+    private long readTime(short key) throws AceException {
+        long value = readHead();
+        if (this.major == 6 && value == 1) {
+            value = readHead();
+        }
+        if (this.major > 1 || value < 0) {
+            return 0;
+        }
+        this.compact |= 1 << key;
+        return (this.major == 1) ? -1 - value : value;
+    }
+    
+    /**
+     * Keep a claim as slice of the payload.
+     * 
+     * @param key  the claim key
+     * @param start  the start offset
+     * @param end  the end offset
+     */
+    private void addRaw(short key, int start, int end) {
+        if (this.rawCount == this.rawKeys.length) {
+            int n = 2 * this.rawCount;
+            this.rawKeys = Arrays.copyOf(this.rawKeys, n);
+            this.rawStart = Arrays.copyOf(this.rawStart, n);
+            this.rawEnd = Arrays.copyOf(this.rawEnd, n);
+        }
+        this.rawKeys[this.rawCount] = key;
+        this.rawStart[this.rawCount] = start;
+        this.rawEnd[this.rawCount] = end;
+        this.rawCount++;
+    }
+    
+    /**
+     * Skip one data item.
+     * 
+     * @param depth  the nesting depth of the item
+     * @throws AceException
+     */
+    private void skip(int depth) throws AceException {
+        if (depth > MAX_DEPTH) {
+            throw new AceException("Claims exceed maximum nesting depth");
+        }
+        long arg = readHead();
+        int type = this.major;
+        switch (type) {
+        case 2:
+        case 3:
+            if (arg == INDEFINITE) {
+                //Only definite length chunks of the same type
+                while (!readBreak()) {
+                    long len = readHead();
+                    if (this.major != type || len == INDEFINITE) {
+                        throw new AceException(
+                                "Invalid chunk in indefinite length string");
+                    }
+                    skipString(type, len);
+                }
+            } else {
+                skipString(type, arg);
+            }
+            break;
+        case 4:
+            while (arg == INDEFINITE ? !readBreak() : arg-- > 0) {
+                skip(depth + 1);
+            }
+            break;
+        case 5:
+            //Skip whole entries, so a break cannot follow a key
+            while (arg == INDEFINITE ? !readBreak() : arg-- > 0) {
+                skip(depth + 1);
+                skip(depth + 1);
+            }
+            break;
+        case 6:
+            this.tagged = true;
+            skip(depth + 1);
+            break;
+        default:
+            break;
+        }
+    }
+    
+    /**
+     * Skip the content of a definite length string, checking that text 
+     * is valid UTF-8.
+     * 
+     * @param type  the major type of the string
+     * @param len  the length of the content in bytes
+     * @throws AceException
+     */
+    private void skipString(int type, long len) throws AceException {
+        if (type == 3) {
+            utf8((int)len);
+        } else {
+            this.pos += (int)len;
+        }
+    }
+    
+    /**
+     * Consume a break if it is the next byte.
+     * 
+     * @return  true if there was a break
+     * @throws AceException
+     */
+    private boolean readBreak() throws AceException {
+        if (this.pos >= this.payload.length) {
+            throw new AceException("Claims are truncated");
+        }
+        if ((this.payload[this.pos] & 0xFF) == 0xFF) {
+            this.pos++;
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Read the head of a data item and set its major type.  For strings,
+     * arrays and maps, checks that the length fits in the payload.
+     * 
+     * @return  the argument of the head, INDEFINITE for indefinite lengths
+     *     or a negative value for unsigned integers that do not fit
+     * @throws AceException
+     */
+    private long readHead() throws AceException {
+        if (this.pos >= this.payload.length) {
+            throw new AceException("Claims are truncated");
+        }
+        int initial = this.payload[this.pos++] & 0xFF;
+        this.major = initial >>> 5;
+        int info = initial & 0x1F;
+        long arg;
+        if (info < 24) {
+            arg = info;
+        } else if (info < 28) {
+            int len = 1 << (info - 24);
+            if (len > this.payload.length - this.pos) {
+                throw new AceException("Claims are truncated");
+            }
+            arg = 0;
+            for (int i = 0; i < len; i++) {
+                arg = (arg << 8) | (this.payload[this.pos++] & 0xFF);
+            }
+            if (arg == INDEFINITE) {
+                //Too large for a long, never a valid length
+                arg = Long.MIN_VALUE;
+            }
+        } else if (info == 31 && this.major >= 2 && this.major <= 5) {
+            return INDEFINITE;
+        } else {
+            throw new AceException("Claims are not well-formed CBOR");
+        }
+        if (this.major == 7 && info == 24 && arg < 32) {
+            //Simple values below 32 have the one byte encoding only
+            throw new AceException("Claims are not well-formed CBOR");
+        }
+        if (this.major >= 2 && this.major <= 5 
+                && (arg < 0 || arg > this.payload.length - this.pos)) {
+            //Strings need that many bytes, arrays and maps at least 
+            //that many items of one byte each
+            throw new AceException("Claims are truncated");
+        }
+        return arg;
+    }
+}
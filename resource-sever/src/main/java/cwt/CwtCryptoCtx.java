@@ -33,10 +33,14 @@ package cwt;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.upokecenter.cbor.CBORObject;
 
+import COSE.KeyKeys;
 import COSE.MessageTag;
 import COSE.OneKey;
 import COSE.Recipient;
@@ -64,16 +68,70 @@ public class CwtCryptoCtx {
 	
 	private List<Recipient> recipients = Collections.emptyList();
 	
+	/**
+	 * The prepared key material of the recipients, for verifying
+	 */
+	private List<RecipientKey> recipientKeys = Collections.emptyList();
+	
+	/**
+	 * Maps the kid of a recipient to the recipients that can 
+	 * process a message recipient with that kid (including those that
+	 * have no kid)
+	 */
+	private Map<KidIndex, List<RecipientKey>> kid2recipients 
+	    = Collections.emptyMap();
+	
+	/**
+	 * The recipients without a kid, which match any message recipient
+	 */
+	private List<RecipientKey> noKidRecipients = Collections.emptyList();
+	
 	private byte[] rawSymmetricKey = null;
 
 	private OneKey publicKey = null;
 	
+	/**
+	 * Maps the kid of the public key to the key, empty if the 
+	 * public key has no kid
+	 */
+	private Map<KidIndex, OneKey> kid2publicKey = Collections.emptyMap();
+	
 	private CBORObject alg = null;
 	
+	/**
+	 * The keys for verifying or decrypting, null if this context has a 
+	 * single key
+	 */
+	private KeyRing keyRing = null;
+	
+	/**
+	 * The pre-keyed engines for MAC0 and Encrypt0, null if the algorithm
+	 * is not supported by the fast path
+	 */
+	private SymmetricEngine symmetricEngine = null;
+	
+	/**
+	 * The pre-keyed engines for decrypting Encrypt0 objects with the 
+	 * symmetric key, e.g. in cnf claims, by algorithm
+	 */
+	private Map<CBORObject, SymmetricEngine> encrypt0Engines 
+	    = new ConcurrentHashMap<>();
+	
+	/**
+	 * Use the symmetric fast path if available
+	 */
+	private boolean symmetricFastPath = true;
+	
 	protected CwtCryptoCtx(MessageTag what, byte[] key, CBORObject alg) {
 	    this.what = what;
 		this.rawSymmetricKey = key;
 		this.alg = alg;
+		//Keys of the wrong size are left to the COSE library, which 
+		//rejects them
+		if (key != null && SymmetricEngine.supports(what, alg)
+		        && SymmetricEngine.fitsKey(what, alg, key)) {
+		    this.symmetricEngine = new SymmetricEngine(what, key, alg);
+		}
 	}
 	
 	protected CwtCryptoCtx(MessageTag what, OneKey publicKey, 
@@ -82,6 +140,19 @@ public class CwtCryptoCtx {
 		this.publicKey = publicKey;
 		this.privatekey = privateKey;
 		this.alg = alg;
+		if (publicKey != null) {
+		    CBORObject kid = publicKey.get(KeyKeys.KeyId);
+		    if (kid != null) {
+		        this.kid2publicKey = Collections.singletonMap(
+		                kidIndex(kid), publicKey);
+		    }
+		}
+	}
+
+	protected CwtCryptoCtx(MessageTag what, KeyRing keyRing, CBORObject alg) {
+	    this.what = what;
+	    this.keyRing = keyRing;
+	    this.alg = alg;
 	}
 
 	protected CwtCryptoCtx(MessageTag what, List<Recipient> recipients, 
@@ -89,6 +160,27 @@ public class CwtCryptoCtx {
 	    this.what = what;
 		this.recipients = new ArrayList<>();
 		this.recipients.addAll(recipients);
+		this.recipientKeys = new ArrayList<>();
+		this.kid2recipients = new HashMap<>();
+		this.noKidRecipients = new ArrayList<>();
+		for (Recipient r : this.recipients) {
+		    RecipientKey key = new RecipientKey(r);
+		    this.recipientKeys.add(key);
+		    if (key.getKid() == null) {
+		        this.noKidRecipients.add(key);
+		    } else {
+		        List<RecipientKey> keys = this.kid2recipients.get(
+		                kidIndex(key.getKid()));
+		        if (keys == null) {
+		            keys = new ArrayList<>();
+		            this.kid2recipients.put(kidIndex(key.getKid()), keys);
+		        }
+		        keys.add(key);
+		    }
+		}
+		for (List<RecipientKey> keys : this.kid2recipients.values()) {
+		    keys.addAll(this.noKidRecipients);
+		}
 		this.alg = alg;
 	}
 
@@ -127,6 +219,19 @@ public class CwtCryptoCtx {
 		return new CwtCryptoCtx(MessageTag.Encrypt0, rawSymmetrickey, alg);
 	}
 	
+	/**
+	 * Creates a context for decrypting Encrypt0 COSE messages with the 
+	 * symmetric keys of a key ring.  Encryption uses the primary key.
+	 * 
+	 * @param keyRing  the key ring
+	 * @param alg  the encryption algorithm (from AlgorithmID.*.ASCBOR())
+	 * 
+	 * @return  the matching context
+	 */
+	public static CwtCryptoCtx encrypt0(KeyRing keyRing, CBORObject alg) {
+	    return new CwtCryptoCtx(MessageTag.Encrypt0, keyRing, alg);
+	}
+	
 	/**
 	 * Creates a context for making or verifying MAC COSE messages.
 	 * 
@@ -150,6 +255,19 @@ public class CwtCryptoCtx {
 		return new CwtCryptoCtx(MessageTag.MAC0, rawSymmetricKey, alg);
 	}
 	
+	/**
+	 * Creates a context for verifying MAC0 COSE messages with the 
+	 * symmetric keys of a key ring.  MACing uses the primary key.
+	 * 
+	 * @param keyRing  the key ring
+	 * @param alg  the algorithm
+	 * 
+	 * @return  the matching context
+	 */
+	public static CwtCryptoCtx mac0(KeyRing keyRing, CBORObject alg) {
+	    return new CwtCryptoCtx(MessageTag.MAC0, keyRing, alg);
+	}
+	
 	/**
 	 * Create a context for making Sign COSE messages.
 	 * 
@@ -173,9 +291,24 @@ public class CwtCryptoCtx {
 		return new CwtCryptoCtx(MessageTag.Sign, publicKey, null, alg);
 	}
 	
+	/**
+	 * Create a context for verifying Sign COSE Messages with the public 
+	 * keys of a key ring.
+	 * 
+	 * @param keyRing  the key ring
+	 * @param alg   the signature algorithm (from AlgorithmID.*.ASCBOR())
+	 * @return  the matching context
+	 */
+	public static CwtCryptoCtx signVerify(KeyRing keyRing, CBORObject alg) {
+	    return new CwtCryptoCtx(MessageTag.Sign, keyRing, alg);
+	}
+	
 	/**
 	 * Creates a context for verifying Sign1 COSE messages.
 	 * 
+	 * For EdDSA use <code>EdDSAVerifier.EDDSA</code> as algorithm and an
+	 * OKP key on the curve Ed25519.
+	 * 
 	 * @param publicKey  the public key of the signer
 	 * @param alg  the signing algorithm (from  AlgorithmID.*.ASCBOR())
 	 * 
@@ -185,6 +318,19 @@ public class CwtCryptoCtx {
 			return new CwtCryptoCtx(MessageTag.Sign1, publicKey, null, alg);
 	}
 	
+	/**
+	 * Creates a context for verifying Sign1 COSE messages with the public
+	 * keys of a key ring.
+	 * 
+	 * @param keyRing  the key ring
+	 * @param alg  the signing algorithm (from  AlgorithmID.*.ASCBOR())
+	 * 
+	 * @return  the matching context
+	 */
+	public static CwtCryptoCtx sign1Verify(KeyRing keyRing, CBORObject alg) {
+	    return new CwtCryptoCtx(MessageTag.Sign1, keyRing, alg);
+	}
+	
 	/**
 	 * Creates a context for signing Sign1 COSE messages.
 	 * 
@@ -219,9 +365,13 @@ public class CwtCryptoCtx {
 	}
 
 	/**
-	 * @return  the symmetric key
+	 * @return  the symmetric key, or the primary key of the key ring
 	 */
 	public byte[] getKey() {
+	    if (this.keyRing != null) {
+	        KeyRing.Entry primary = this.keyRing.getPrimary();
+	        return (primary == null) ? null : primary.getSymmetricKey();
+	    }
 		return this.rawSymmetricKey;
 	}
 	
@@ -231,14 +381,119 @@ public class CwtCryptoCtx {
 	public List<Recipient> getRecipients() {
 		return this.recipients;
 	}
+	
+	/**
+	 * @return  the prepared key material of the recipients
+	 */
+	public List<RecipientKey> getRecipientKeys() {
+	    return this.recipientKeys;
+	}
+	
+	/**
+	 * Get the recipients that can process a message recipient with the
+	 * given kid, i.e. those having that kid and those having no kid.
+	 * 
+	 * @param kid  the kid of the message recipient, can be null
+	 * 
+	 * @return  the matching recipients, may be empty
+	 */
+	public List<RecipientKey> getRecipientKeys(CBORObject kid) {
+	    if (kid != null) {
+	        List<RecipientKey> keys = this.kid2recipients.get(kidIndex(kid));
+	        if (keys != null) {
+	            return keys;
+	        }
+	    }
+	    return this.noKidRecipients;
+	}
 
 	/**
-	 * @return  the public key
+	 * @return  the public key, or the primary key of the key ring
 	 */
 	public OneKey getPublicKey() {
+	    if (this.keyRing != null) {
+	        KeyRing.Entry primary = this.keyRing.getPrimary();
+	        return (primary == null) ? null : primary.getPublicKey();
+	    }
 		return this.publicKey;
 	}
 	
+	/**
+	 * @return  the pre-keyed engine for MAC0 or Encrypt0 messages, null if
+	 *     not available or disabled
+	 */
+	public SymmetricEngine getSymmetricEngine() {
+	    return this.symmetricFastPath ? this.symmetricEngine : null;
+	}
+	
+	/**
+	 * Get a pre-keyed engine for decrypting Encrypt0 objects with the 
+	 * symmetric key of this context, independent of the message type of
+	 * this context.
+	 * 
+	 * @param alg  the content encryption algorithm
+	 * @return  the engine or null if this context has no single symmetric
+	 *     key, the algorithm is not supported or the fast path is disabled
+	 */
+	public SymmetricEngine getEncrypt0Engine(CBORObject alg) {
+	    if (!this.symmetricFastPath || this.rawSymmetricKey == null 
+	            || !SymmetricEngine.supports(MessageTag.Encrypt0, alg)
+	            || !SymmetricEngine.fitsKey(MessageTag.Encrypt0, alg, 
+	                    this.rawSymmetricKey)) {
+	        return null;
+	    }
+	    SymmetricEngine engine = this.encrypt0Engines.get(alg);
+	    if (engine == null) {
+	        engine = new SymmetricEngine(MessageTag.Encrypt0, 
+	                this.rawSymmetricKey, alg);
+	        this.encrypt0Engines.put(alg, engine);
+	    }
+	    return engine;
+	}
+	
+	/**
+	 * Enable or disable the fast path for MAC0 and Encrypt0 messages, 
+	 * e.g. for comparing it to the COSE library.
+	 * 
+	 * @param enabled  true to use the fast path if available
+	 */
+	public void setSymmetricFastPath(boolean enabled) {
+	    this.symmetricFastPath = enabled;
+	}
+	
+	/**
+	 * @return  the key ring or null if this context has a single key
+	 */
+	public KeyRing getKeyRing() {
+	    return this.keyRing;
+	}
+	
+	/**
+	 * Get the public key for verifying a signer with the given kid.
+	 * 
+	 * @param kid  the kid of the signer, can be null
+	 * 
+	 * @return  the public key if it has this kid or no kid at all, 
+	 *     null otherwise
+	 */
+	public OneKey getPublicKey(CBORObject kid) {
+	    if (this.publicKey == null || this.kid2publicKey.isEmpty()) {
+	        return this.publicKey;
+	    }
+	    return (kid == null) ? null : this.kid2publicKey.get(kidIndex(kid));
+	}
+	
+	/**
+	 * Create the index used for looking up keys by kid.
+	 * 
+	 * @param kid  the kid
+	 * 
+	 * @return  the index wrapping the kid bytes
+	 */
+	static KidIndex kidIndex(CBORObject kid) {
+	    return new KidIndex(kid);
+	}
+	
 	/**
 	 * @return  the message type
 	 */
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package cwt;
+
+import org.bouncycastle.crypto.params.Ed25519PublicKeyParameters;
+import org.bouncycastle.crypto.signers.Ed25519Signer;
+
+import com.upokecenter.cbor.CBORObject;
+import com.upokecenter.cbor.CBORType;
+
+import COSE.OneKey;
+
+/**
+ * Verifies EdDSA (Ed25519) signatures for <code>SignatureVerifier</code>.
+ * 
+ * The COSE library used by this project does not support EdDSA, so 
+ * these signatures are verified with BouncyCastle's Ed25519 
+ * implementation.  Public keys are COSE keys of type OKP with the curve 
+ * Ed25519.
+ *
+ */
+public class EdDSAVerifier {
+    
+    /**
+     * The COSE algorithm identifier of EdDSA
+     */
+    public static final CBORObject EDDSA = CBORObject.FromObject(-8);
+    
+    /**
+     * The COSE key type OKP
+     */
+    public static final CBORObject KEY_TYPE_OKP = CBORObject.FromObject(1);
+    
+    /**
+     * The COSE curve identifier of Ed25519
+     */
+    public static final CBORObject CURVE_ED25519 = CBORObject.FromObject(6);
+    
+    /**
+     * COSE key label of the key type
+     */
+    private static final CBORObject KTY = CBORObject.FromObject(1);
+    
+    /**
+     * COSE key label of the OKP curve
+     */
+    private static final CBORObject CRV = CBORObject.FromObject(-1);
+    
+    /**
+     * COSE key label of the OKP public key
+     */
+    private static final CBORObject X = CBORObject.FromObject(-2);
+    
+    private EdDSAVerifier() {
+        //Static methods only
+    }
+    
+    /**
+     * Checks if a COSE key is an Ed25519 public key.
+     * 
+     * @param key  the COSE key
+     * @return  true if it is an OKP key on Ed25519 with a 32 byte 
+     *     public key
+     */
+    public static boolean isEd25519(OneKey key) {
+        CBORObject map = key.AsCBOR();
+        CBORObject x = map.get(X);
+        return KEY_TYPE_OKP.equals(map.get(KTY)) 
+                && CURVE_ED25519.equals(map.get(CRV))
+                && x != null && x.getType().equals(CBORType.ByteString)
+                && x.GetByteString().length 
+                    == Ed25519PublicKeyParameters.KEY_SIZE;
+    }
+    
+    /**
+     * Verify an Ed25519 signature.
+     * 
+     * @param key  the public key
+     * @param toBeSigned  the signed data
+     * @param signature  the signature
+     * 
+     * @return  true if the signature is valid
+     */
+    public static boolean verify(OneKey key, byte[] toBeSigned, 
+            byte[] signature) {
+        if (!isEd25519(key)) {
+            return false;
+        }
+        Ed25519Signer verifier = new Ed25519Signer();
+        verifier.init(false, new Ed25519PublicKeyParameters(
+                key.AsCBOR().get(X).GetByteString(), 0));
+        verifier.update(toBeSigned, 0, toBeSigned.length);
+        return verifier.verifySignature(signature);
+    }
+}
@@ -0,0 +1,362 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package cwt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.KeyKeys;
+import COSE.OneKey;
+
+/**
+ * A set of keys for verifying or decrypting COSE messages from the AS,
+ * allowing keys to be rotated without downtime.
+ * 
+ * New keys are added as active keys, the most recently added active key
+ * is the primary key.  Keys that are being phased out can be marked as 
+ * retiring, they are still used for verification but are tried after 
+ * the active keys.  Keys are looked up by the kid in the COSE header of
+ * a message.  Messages without a kid make the ring try all of its keys,
+ * messages with a kid that matches no key make it try the keys without
+ * kid, like <code>CwtCryptoCtx.getRecipientKeys()</code>.  Both are 
+ * counted as a fallback.
+ * 
+ * Lookups are lock-free, changes to the ring replace the internal index
+ * with a new copy.
+ *
+ */
+public class KeyRing {
+    
+    /**
+     * The status of a key in the ring
+     */
+    public enum Status {
+        /**
+         * The key is in use
+         */
+        ACTIVE,
+        /**
+         * The key is being phased out, but still accepted
+         */
+        RETIRING
+    }
+    
+    /**
+     * A key in the ring.
+     */
+    public static class Entry {
+        
+        /**
+         * The key identifier, may be null
+         */
+        private final CBORObject kid;
+        
+        /**
+         * The algorithm the key is used with
+         */
+        private final CBORObject alg;
+        
+        /**
+         * The raw symmetric key or null
+         */
+        private final byte[] symmetricKey;
+        
+        /**
+         * The public key or null
+         */
+        private final OneKey publicKey;
+        
+        /**
+         * The status of the key
+         */
+        private final Status status;
+        
+        private Entry(CBORObject kid, CBORObject alg, byte[] symmetricKey,
+                OneKey publicKey, Status status) {
+            this.kid = kid;
+            this.alg = alg;
+            this.symmetricKey = symmetricKey;
+            this.publicKey = publicKey;
+            this.status = status;
+        }
+        
+        /**
+         * @return  the key identifier or null if the key has none
+         */
+        public CBORObject getKid() {
+            return this.kid;
+        }
+        
+        /**
+         * @return  the algorithm the key is used with
+         */
+        public CBORObject getAlg() {
+            return this.alg;
+        }
+        
+        /**
+         * @return  the raw symmetric key or null if this is a public key
+         */
+        public byte[] getSymmetricKey() {
+            return this.symmetricKey;
+        }
+        
+        /**
+         * @return  the public key or null if this is a symmetric key
+         */
+        public OneKey getPublicKey() {
+            return this.publicKey;
+        }
+        
+        /**
+         * @return  the status of the key
+         */
+        public Status getStatus() {
+            return this.status;
+        }
+        
+        private Entry withStatus(Status newStatus) {
+            return new Entry(this.kid, this.alg, this.symmetricKey, 
+                    this.publicKey, newStatus);
+        }
+    }
+    
+    /**
+     * All keys, active keys first, most recently added first
+     */
+    private volatile List<Entry> entries = Collections.emptyList();
+    
+    /**
+     * The keys without kid, in the same order
+     */
+    private volatile List<Entry> noKidEntries = Collections.emptyList();
+    
+    /**
+     * Maps the kid to the keys with that kid
+     */
+    private volatile Map<KidIndex, List<Entry>> kid2entries 
+        = Collections.emptyMap();
+    
+    /**
+     * The number of lookups that could not select the keys by kid
+     */
+    private final AtomicLong fallbacks = new AtomicLong();
+    
+    /**
+     * Incremented on every change of the ring
+     */
+    private final AtomicLong version = new AtomicLong();
+    
+    /**
+     * Add an active symmetric key.
+     * 
+     * @param kid  the key identifier, may be null
+     * @param alg  the algorithm the key is used with 
+     *     (from AlgorithmID.*.ASCBOR())
+     * @param key  the raw symmetric key
+     */
+    public synchronized void addSymmetricKey(CBORObject kid, CBORObject alg,
+            byte[] key) {
+        if (key == null || alg == null) {
+            throw new IllegalArgumentException("Key and algorithm required");
+        }
+        List<Entry> updated = new ArrayList<>(this.entries);
+        updated.add(0, new Entry(kid, alg, key, null, Status.ACTIVE));
+        update(updated);
+    }
+    
+    /**
+     * Add an active public key.  If no kid is given, the kid of the 
+     * COSE key is used.
+     * 
+     * @param kid  the key identifier, may be null
+     * @param alg  the algorithm the key is used with 
+     *     (from AlgorithmID.*.ASCBOR())
+     * @param key  the public key
+     */
+    public synchronized void addPublicKey(CBORObject kid, CBORObject alg,
+            OneKey key) {
+        if (key == null || alg == null) {
+            throw new IllegalArgumentException("Key and algorithm required");
+        }
+        CBORObject keyId = (kid == null) ? key.get(KeyKeys.KeyId) : kid;
+        List<Entry> updated = new ArrayList<>(this.entries);
+        updated.add(0, new Entry(keyId, alg, null, key, Status.ACTIVE));
+        update(updated);
+    }
+    
+    /**
+     * Mark the keys with the given kid as retiring.
+     * 
+     * @param kid  the key identifier
+     */
+    public synchronized void retire(CBORObject kid) {
+        List<Entry> updated = new ArrayList<>();
+        for (Entry e : this.entries) {
+            updated.add(kid.equals(e.getKid()) 
+                    ? e.withStatus(Status.RETIRING) : e);
+        }
+        update(updated);
+    }
+    
+    /**
+     * Remove the keys with the given kid from the ring.
+     * 
+     * @param kid  the key identifier
+     */
+    public synchronized void remove(CBORObject kid) {
+        List<Entry> updated = new ArrayList<>();
+        for (Entry e : this.entries) {
+            if (!kid.equals(e.getKid())) {
+                updated.add(e);
+            }
+        }
+        update(updated);
+    }
+    
+    /**
+     * Find the keys for a COSE message or signer.
+     * 
+     * @param kid  the kid from the COSE header, may be null
+     * @param alg  the algorithm from the COSE header, may be null
+     * 
+     * @return  the keys to try, active keys first, may be empty
+     */
+    public List<Entry> lookup(CBORObject kid, CBORObject alg) {
+        List<Entry> candidates = null;
+        if (kid == null) {
+            this.fallbacks.incrementAndGet();
+            candidates = this.entries;
+        } else {
+            candidates = this.kid2entries.get(CwtCryptoCtx.kidIndex(kid));
+            if (candidates == null) {
+                //An unknown kid, try the keys without kid
+                candidates = this.noKidEntries;
+                if (candidates.isEmpty()) {
+                    return candidates;
+                }
+                this.fallbacks.incrementAndGet();
+            }
+        }
+        if (alg == null) {
+            return candidates;
+        }
+        List<Entry> matches = new ArrayList<>(candidates.size());
+        for (Entry e : candidates) {
+            if (alg.equals(e.getAlg())) {
+                matches.add(e);
+            }
+        }
+        return matches;
+    }
+    
+    /**
+     * @return  the most recently added active key of the ring or null if
+     *     there is none
+     */
+    public Entry getPrimary() {
+        List<Entry> current = this.entries;
+        if (current.isEmpty() 
+                || current.get(0).getStatus() != Status.ACTIVE) {
+            return null;
+        }
+        return current.get(0);
+    }
+    
+    /**
+     * @return  all keys of the ring, active keys first, most recently 
+     *     added first
+     */
+    public List<Entry> getEntries() {
+        return this.entries;
+    }
+    
+    /**
+     * @return  the number of lookups without kid, that had to try all 
+     *     keys, or with an unknown kid, that had to try the keys without kid
+     */
+    public long getFallbackCount() {
+        return this.fallbacks.get();
+    }
+    
+    /**
+     * @return  a number that changes whenever keys are added, retired or
+     *     removed
+     */
+    public long getVersion() {
+        return this.version.get();
+    }
+    
+    /**
+     * Replace the index with one built from the given keys.
+     * 
+     * @param updated  the new list of keys
+     */
+    private void update(List<Entry> updated) {
+        List<Entry> sorted = new ArrayList<>(updated.size());
+        for (Entry e : updated) {
+            if (e.getStatus() == Status.ACTIVE) {
+                sorted.add(e);
+            }
+        }
+        for (Entry e : updated) {
+            if (e.getStatus() != Status.ACTIVE) {
+                sorted.add(e);
+            }
+        }
+        Map<KidIndex, List<Entry>> index = new HashMap<>();
+        List<Entry> noKid = new ArrayList<>();
+        for (Entry e : sorted) {
+            if (e.getKid() == null) {
+                noKid.add(e);
+            } else {
+                KidIndex kid = CwtCryptoCtx.kidIndex(e.getKid());
+                List<Entry> keys = index.get(kid);
+                if (keys == null) {
+                    keys = new ArrayList<>();
+                    index.put(kid, keys);
+                }
+                keys.add(e);
+            }
+        }
+        this.entries = Collections.unmodifiableList(sorted);
+        this.noKidEntries = Collections.unmodifiableList(noKid);
+        this.kid2entries = index;
+        this.version.incrementAndGet();
+    }
+}
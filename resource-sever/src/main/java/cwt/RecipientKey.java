@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package cwt;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.AlgorithmID;
+import COSE.CoseException;
+import COSE.HeaderKeys;
+import COSE.KeyKeys;
+import COSE.OneKey;
+import COSE.Recipient;
+
+/**
+ * The key material of a recipient of a MAC or Encrypt COSE message, 
+ * prepared once so that it can be reused for every incoming message.
+ *
+ */
+public class RecipientKey {
+
+    /**
+     * The key identifier of the recipient or null if it has none
+     */
+    private final CBORObject kid;
+    
+    /**
+     * The algorithm of the recipient
+     */
+    private final CBORObject alg;
+    
+    /**
+     * The symmetric key as COSE key or null if it could not be created
+     */
+    private final OneKey key;
+    
+    /**
+     * The reason why the key could not be created or null
+     */
+    private final String error;
+    
+    /**
+     * Prepare the key material of a recipient.
+     * 
+     * @param recipient  the recipient
+     */
+    public RecipientKey(Recipient recipient) {
+        this.kid = recipient.findAttribute(HeaderKeys.KID);
+        this.alg = recipient.findAttribute(HeaderKeys.Algorithm);
+        OneKey coseKey = null;
+        String reason = null;
+        if (this.alg == null) {
+            reason = "Recipient has no algorithm";
+        } else {
+            try {
+                CBORObject keyMap = CBORObject.NewMap();
+                keyMap.Add(KeyKeys.KeyType.AsCBOR(), KeyKeys.KeyType_Octet);
+                keyMap.Add(KeyKeys.Octet_K.AsCBOR(), CBORObject.FromObject(
+                        recipient.getKey(AlgorithmID.FromCBOR(this.alg))));
+                coseKey = new OneKey(keyMap);
+            } catch (CoseException e) {
+                reason = e.getMessage();
+            }
+        }
+        this.key = coseKey;
+        this.error = reason;
+    }
+    
+    /**
+     * @return  the key identifier of the recipient or null if it has none
+     */
+    public CBORObject getKid() {
+        return this.kid;
+    }
+    
+    /**
+     * @return  the algorithm of the recipient, may be null
+     */
+    public CBORObject getAlg() {
+        return this.alg;
+    }
+    
+    /**
+     * @return  the symmetric key of the recipient as COSE key
+     * 
+     * @throws CoseException  if the key could not be created from the 
+     *     recipient
+     */
+    public OneKey getKey() throws CoseException {
+        if (this.key == null) {
+            throw new CoseException(this.error);
+        }
+        return this.key;
+    }
+}
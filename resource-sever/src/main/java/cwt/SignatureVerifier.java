@@ -0,0 +1,380 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package cwt;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.upokecenter.cbor.CBORObject;
+import com.upokecenter.cbor.CBORType;
+
+import COSE.CoseException;
+import COSE.MessageTag;
+import COSE.OneKey;
+import cwt.CryptoProviders.Primitive;
+import exception.AceException;
+
+/**
+ * Verifies Sign1 and Sign COSE messages without the COSE library, for 
+ * the signature algorithms it does not support (EdDSA) and for ECDSA if 
+ * a provider is set for it in <code>CryptoProviders</code>.
+ * 
+ * Messages with other algorithms are left to the COSE library.
+ *
+ */
+public class SignatureVerifier {
+    
+    /**
+     * COSE header label of the algorithm
+     */
+    private static final CBORObject ALG = CBORObject.FromObject(1);
+    
+    /**
+     * COSE header label of the kid
+     */
+    private static final CBORObject KID = CBORObject.FromObject(4);
+    
+    /**
+     * The empty external AAD
+     */
+    private static final byte[] EMPTY = new byte[0];
+    
+    /**
+     * The Java public keys of the COSE keys used so far
+     */
+    private static final Map<OneKey, PublicKey> publicKeys 
+        = Collections.synchronizedMap(new WeakHashMap<OneKey, PublicKey>());
+    
+    private SignatureVerifier() {
+        //Static methods only
+    }
+    
+    /**
+     * Checks if a crypto context may need this verifier.
+     * 
+     * @param ctx  the crypto context
+     * @return  true if the context verifies Sign1 or Sign messages with
+     *     EdDSA or with ECDSA served by a configured provider
+     */
+    public static boolean appliesTo(CwtCryptoCtx ctx) {
+        if (ctx.getMessageType() != MessageTag.Sign1 
+                && ctx.getMessageType() != MessageTag.Sign) {
+            return false;
+        }
+        if (CryptoProviders.getProvider(Primitive.ECDSA) != null 
+                || EdDSAVerifier.EDDSA.equals(ctx.getAlg())) {
+            return true;
+        }
+        if (ctx.getKeyRing() != null) {
+            for (KeyRing.Entry e : ctx.getKeyRing().getEntries()) {
+                if (EdDSAVerifier.EDDSA.equals(e.getAlg())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Verify a Sign1 or Sign message if its algorithm is handled here.
+     * 
+     * @param cose  the decoded COSE message
+     * @param ctx  the crypto context
+     * 
+     * @return  the signed content, or null if the message must be 
+     *     verified by the COSE library
+     *     
+     * @throws AceException  if no valid signature was found
+     */
+    public static byte[] process(CBORObject cose, CwtCryptoCtx ctx) 
+            throws AceException {
+        MessageTag type = ctx.getMessageType();
+        CBORObject msg = cose;
+        if (msg.isTagged()) {
+            if (msg.GetTags().length != 1) {
+                return null;
+            }
+            if (msg.HasTag(MessageTag.Sign1.value)) {
+                type = MessageTag.Sign1;
+            } else if (msg.HasTag(MessageTag.Sign.value)) {
+                type = MessageTag.Sign;
+            } else {
+                return null;
+            }
+            msg = msg.UntagOne();
+        }
+        if (!msg.getType().equals(CBORType.Array) || msg.size() != 4
+                || !msg.get(0).getType().equals(CBORType.ByteString)
+                || !msg.get(1).getType().equals(CBORType.Map)
+                || !msg.get(2).getType().equals(CBORType.ByteString)) {
+            return null;
+        }
+        byte[] prot = msg.get(0).GetByteString();
+        CBORObject protMap = headers(prot);
+        if (protMap == null) {
+            return null;
+        }
+        byte[] payload = msg.get(2).GetByteString();
+        
+        if (type == MessageTag.Sign1) {
+            CBORObject alg = header(protMap, msg.get(1), ALG);
+            if (!handles(alg) 
+                    || !msg.get(3).getType().equals(CBORType.ByteString)) {
+                return null;
+            }
+            CBORObject toBeSigned = CBORObject.NewArray();
+            toBeSigned.Add("Signature1");
+            toBeSigned.Add(prot);
+            toBeSigned.Add(EMPTY);
+            toBeSigned.Add(payload);
+            byte[] tbs = toBeSigned.EncodeToBytes();
+            for (OneKey key : keys(ctx, 
+                    header(protMap, msg.get(1), KID), alg)) {
+                if (verify(key, alg, tbs, msg.get(3).GetByteString())) {
+                    return payload;
+                }
+            }
+            throw new AceException("No valid signature found");
+        }
+        
+        if (!msg.get(3).getType().equals(CBORType.Array)) {
+            return null;
+        }
+        boolean allHandled = true;
+        for (int i = 0; i < msg.get(3).size(); i++) {
+            CBORObject signer = msg.get(3).get(i);
+            if (!signer.getType().equals(CBORType.Array) 
+                    || signer.size() != 3
+                    || !signer.get(0).getType().equals(CBORType.ByteString)
+                    || !signer.get(1).getType().equals(CBORType.Map)
+                    || !signer.get(2).getType().equals(CBORType.ByteString)) {
+                continue;
+            }
+            byte[] signerProt = signer.get(0).GetByteString();
+            CBORObject signerProtMap = headers(signerProt);
+            CBORObject alg = (signerProtMap == null) ? null 
+                    : header(signerProtMap, signer.get(1), ALG);
+            if (!handles(alg)) {
+                allHandled = false;
+                continue;
+            }
+            CBORObject toBeSigned = CBORObject.NewArray();
+            toBeSigned.Add("Signature");
+            toBeSigned.Add(prot);
+            toBeSigned.Add(signerProt);
+            toBeSigned.Add(EMPTY);
+            toBeSigned.Add(payload);
+            byte[] tbs = toBeSigned.EncodeToBytes();
+            for (OneKey key : keys(ctx, 
+                    header(signerProtMap, signer.get(1), KID), alg)) {
+                if (verify(key, alg, tbs, signer.get(2).GetByteString())) {
+                    return payload;
+                }
+            }
+        }
+        if (allHandled) {
+            throw new AceException("No valid signature found");
+        }
+        //Let the COSE library try the remaining signers
+        return null;
+    }
+    
+    /**
+     * @param alg  the COSE algorithm
+     * @return  true if signatures with this algorithm are verified here
+     */
+    private static boolean handles(CBORObject alg) {
+        return EdDSAVerifier.EDDSA.equals(alg) || (ecdsaName(alg) != null
+                && CryptoProviders.getProvider(Primitive.ECDSA) != null);
+    }
+    
+    /**
+     * Verify a signature.
+     * 
+     * @param key  the public key
+     * @param alg  the COSE algorithm
+     * @param toBeSigned  the signed data
+     * @param signature  the COSE signature
+     * 
+     * @return  true if the signature is valid
+     */
+    private static boolean verify(OneKey key, CBORObject alg, 
+            byte[] toBeSigned, byte[] signature) {
+        if (EdDSAVerifier.EDDSA.equals(alg)) {
+            return EdDSAVerifier.verify(key, toBeSigned, signature);
+        }
+        try {
+            Signature verifier = CryptoProviders.getSignature(
+                    ecdsaName(alg));
+            if (verifier == null) {
+                return false;
+            }
+            verifier.initVerify(publicKey(key));
+            verifier.update(toBeSigned);
+            return verifier.verify(toDer(signature));
+        } catch (GeneralSecurityException | CoseException 
+                | IllegalArgumentException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * @param alg  the COSE algorithm
+     * @return  the JCA name of this ECDSA algorithm, null if it is not 
+     *     ECDSA
+     */
+    private static String ecdsaName(CBORObject alg) {
+        if (alg == null || !alg.isIntegral()) {
+            return null;
+        }
+        switch (alg.AsInt32()) {
+        case -7:
+            return "SHA256withECDSA";
+        case -35:
+            return "SHA384withECDSA";
+        case -36:
+            return "SHA512withECDSA";
+        default:
+            return null;
+        }
+    }
+    
+    /**
+     * Get the Java public key of a COSE key.
+     * 
+     * @param key  the COSE key
+     * @return  the public key
+     * @throws CoseException
+     */
+    private static PublicKey publicKey(OneKey key) throws CoseException {
+        PublicKey pk = publicKeys.get(key);
+        if (pk == null) {
+            pk = key.AsPublicKey();
+            publicKeys.put(key, pk);
+        }
+        return pk;
+    }
+    
+    /**
+     * Convert a COSE ECDSA signature (r and s concatenated) to DER.
+     * 
+     * @param signature  the COSE signature
+     * @return  the DER encoded signature
+     */
+    private static byte[] toDer(byte[] signature) {
+        if (signature.length == 0 || signature.length % 2 != 0) {
+            throw new IllegalArgumentException("Invalid ECDSA signature");
+        }
+        int n = signature.length / 2;
+        byte[] r = new BigInteger(1, 
+                Arrays.copyOfRange(signature, 0, n)).toByteArray();
+        byte[] s = new BigInteger(1, Arrays.copyOfRange(
+                signature, n, signature.length)).toByteArray();
+        int len = 2 + r.length + 2 + s.length;
+        int header = (len < 128) ? 2 : 3;
+        byte[] der = new byte[header + len];
+        int pos = 0;
+        der[pos++] = 0x30;
+        if (len >= 128) {
+            der[pos++] = (byte)0x81;
+        }
+        der[pos++] = (byte)len;
+        der[pos++] = 0x02;
+        der[pos++] = (byte)r.length;
+        System.arraycopy(r, 0, der, pos, r.length);
+        pos += r.length;
+        der[pos++] = 0x02;
+        der[pos++] = (byte)s.length;
+        System.arraycopy(s, 0, der, pos, s.length);
+        return der;
+    }
+    
+    /**
+     * Find the public keys to try for a signature.
+     * 
+     * @param ctx  the crypto context
+     * @param kid  the kid from the message headers, may be null
+     * @param alg  the algorithm from the message headers
+     * @return  the keys to try
+     */
+    private static List<OneKey> keys(CwtCryptoCtx ctx, CBORObject kid, 
+            CBORObject alg) {
+        List<OneKey> keys = new ArrayList<>();
+        if (ctx.getKeyRing() != null) {
+            for (KeyRing.Entry e : ctx.getKeyRing().lookup(kid, alg)) {
+                if (e.getPublicKey() != null) {
+                    keys.add(e.getPublicKey());
+                }
+            }
+        } else {
+            OneKey key = ctx.getPublicKey(kid);
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+    
+    /**
+     * Decode protected headers.
+     * 
+     * @param prot  the encoded protected headers
+     * @return  the header map, or null if they are not a map
+     */
+    private static CBORObject headers(byte[] prot) {
+        CBORObject map = (prot.length == 0) 
+                ? CBORObject.NewMap() : CBORObject.DecodeFromBytes(prot);
+        return map.getType().equals(CBORType.Map) ? map : null;
+    }
+    
+    /**
+     * Find a header, protected headers take precedence.
+     * 
+     * @param prot  the protected headers
+     * @param unprot  the unprotected headers
+     * @param label  the header label
+     * @return  the header value or null
+     */
+    private static CBORObject header(CBORObject prot, CBORObject unprot, 
+            CBORObject label) {
+        CBORObject value = prot.get(label);
+        return (value != null) ? value : unprot.get(label);
+    }
+}
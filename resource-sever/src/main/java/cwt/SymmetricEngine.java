@@ -0,0 +1,514 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package cwt;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.AEADBlockCipher;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import com.upokecenter.cbor.CBORObject;
+import com.upokecenter.cbor.CBORType;
+
+import COSE.MessageTag;
+import cwt.CryptoProviders.Primitive;
+import exception.AceException;
+
+/**
+ * A fast path for verifying MAC0 and decrypting Encrypt0 COSE messages
+ * with a single symmetric key.
+ * 
+ * Unlike the COSE library, which creates a new MAC or cipher (and key 
+ * schedule) for every message, this keeps one pre-keyed HMAC or AES 
+ * engine per thread and reuses it.  Only the algorithms listed in
+ * <code>supports()</code> are handled, with the IV in the headers and
+ * without external AAD; for anything else <code>process()</code> returns
+ * null and the caller falls back to the COSE library.
+ * 
+ * HMAC engines come from the provider set in <code>CryptoProviders</code>.
+ * AES-GCM uses the cipher of the provider set for it, otherwise 
+ * BouncyCastle's <code>GCMBlockCipher</code>, which keeps its key schedule
+ * between messages.  AES-CCM is done by <code>CcmDecryptor</code> on an 
+ * AES block function keyed once per thread, taken from the provider set
+ * for AES-CCM or BouncyCastle's <code>AESEngine</code>.
+ *
+ */
+public class SymmetricEngine {
+    
+    /**
+     * COSE header label of the algorithm
+     */
+    private static final CBORObject ALG = CBORObject.FromObject(1);
+    
+    /**
+     * COSE header label of the IV
+     */
+    private static final CBORObject IV = CBORObject.FromObject(5);
+    
+    /**
+     * The empty external AAD
+     */
+    private static final byte[] EMPTY = new byte[0];
+    
+    /**
+     * The message type this engine handles (MAC0 or Encrypt0)
+     */
+    private final MessageTag what;
+    
+    /**
+     * The algorithm this engine is keyed for
+     */
+    private final CBORObject alg;
+    
+    /**
+     * The JCA name of the HMAC algorithm, null for AEAD algorithms
+     */
+    private final String macName;
+    
+    /**
+     * The length of the (truncated) MAC or AEAD tag in bytes
+     */
+    private final int tagLength;
+    
+    /**
+     * The nonce length for AEAD algorithms
+     */
+    private final int nonceLength;
+    
+    /**
+     * The AEAD primitive, null for MAC algorithms
+     */
+    private final Primitive aead;
+    
+    /**
+     * The raw key
+     */
+    private final byte[] key;
+    
+    /**
+     * The key for JCA engines
+     */
+    private final SecretKeySpec keySpec;
+    
+    /**
+     * The pre-keyed HMAC engines, one per thread
+     */
+    private final ThreadLocal<KeyedMac> macs = new ThreadLocal<>();
+    
+    /**
+     * The pre-keyed AEAD ciphers, one per thread
+     */
+    private final ThreadLocal<KeyedCipher> ciphers = new ThreadLocal<>();
+    
+    /**
+     * An HMAC engine and the provider configuration it was created with.
+     */
+    private static class KeyedMac {
+        private final Mac mac;
+        private final long version;
+        
+        private KeyedMac(Mac mac, long version) {
+            this.mac = mac;
+            this.version = version;
+        }
+    }
+    
+    /**
+     * An AEAD cipher that remembers if its key schedule was set up, and 
+     * the provider configuration it was created with.  Exactly one of the
+     * lightweight GCM cipher, the JCA GCM cipher and the CCM decryptor is
+     * set.
+     */
+    private static class KeyedCipher {
+        private final AEADBlockCipher gcm;
+        private final Cipher jca;
+        private final CcmDecryptor ccm;
+        private final long version;
+        private boolean keyed = false;
+        
+        private KeyedCipher(AEADBlockCipher gcm, Cipher jca, 
+                CcmDecryptor ccm, long version) {
+            this.gcm = gcm;
+            this.jca = jca;
+            this.ccm = ccm;
+            this.version = version;
+        }
+    }
+    
+    /**
+     * Constructor.
+     * 
+     * @param what  the message type, MAC0 or Encrypt0
+     * @param key  the raw symmetric key
+     * @param alg  the algorithm (from AlgorithmID.*.ASCBOR())
+     * 
+     * @throws IllegalArgumentException  if the message type or algorithm is
+     *     not supported, or the key does not have the size the algorithm
+     *     requires
+     */
+    SymmetricEngine(MessageTag what, byte[] key, CBORObject alg) {
+        if (!supports(what, alg)) {
+            throw new IllegalArgumentException(
+                    "Unsupported message type or algorithm");
+        }
+        if (!fitsKey(what, alg, key)) {
+            throw new IllegalArgumentException("Key Size is incorrect");
+        }
+        this.what = what;
+        this.alg = alg;
+        this.key = key.clone();
+        int a = alg.AsInt32();
+        this.keySpec = new SecretKeySpec(this.key, (what == MessageTag.MAC0)
+                ? ((a == 6) ? "HmacSHA384" : (a == 7) ? "HmacSHA512" 
+                        : "HmacSHA256") 
+                : "AES");
+        if (what == MessageTag.MAC0) {
+            this.macName = (a == 6) ? "HmacSHA384" 
+                    : (a == 7) ? "HmacSHA512" : "HmacSHA256";
+            this.tagLength = (a == 4) ? 8 : (a == 5) ? 32 : (a == 6) ? 48 : 64;
+            this.nonceLength = 0;
+            this.aead = null;
+        } else {
+            this.macName = null;
+            if (a <= 3) { //AES-GCM
+                this.tagLength = 16;
+                this.nonceLength = 12;
+                this.aead = Primitive.AES_GCM;
+            } else { //AES-CCM, 16 or 64 bit length field, 64 or 128 bit tag
+                this.tagLength = (a < 30) ? 8 : 16;
+                this.nonceLength = (a == 10 || a == 11 || a == 30 || a == 31) 
+                        ? 13 : 7;
+                this.aead = Primitive.AES_CCM;
+            }
+        }
+    }
+    
+    /**
+     * Checks if a message type and algorithm can be handled by this 
+     * fast path.
+     * 
+     * @param what  the message type
+     * @param alg  the algorithm
+     * 
+     * @return  true for MAC0 with HMAC-SHA2 (4-7) and Encrypt0 with 
+     *     AES-GCM (1-3) or AES-CCM (10-13, 30-33)
+     */
+    static boolean supports(MessageTag what, CBORObject alg) {
+        if (alg == null || !alg.isIntegral()) {
+            return false;
+        }
+        int a = alg.AsInt32();
+        if (what == MessageTag.MAC0) {
+            return a >= 4 && a <= 7;
+        }
+        if (what == MessageTag.Encrypt0) {
+            return (a >= 1 && a <= 3) || (a >= 10 && a <= 13) 
+                    || (a >= 30 && a <= 33);
+        }
+        return false;
+    }
+    
+    /**
+     * Checks if a key has the size an algorithm requires.  Like the COSE
+     * library, AES keys must match the key size of the algorithm, HMAC
+     * keys can have any size.
+     * 
+     * @param what  the message type
+     * @param alg  the algorithm
+     * @param key  the raw key
+     * 
+     * @return  true if the key can be used with the algorithm
+     */
+    static boolean fitsKey(MessageTag what, CBORObject alg, byte[] key) {
+        if (key == null || key.length == 0) {
+            return false;
+        }
+        if (what == MessageTag.MAC0) {
+            return true;
+        }
+        switch (alg.AsInt32()) {
+        case 1: //A128GCM
+        case 10: //AES-CCM-16-64-128
+        case 12: //AES-CCM-64-64-128
+        case 30: //AES-CCM-16-128-128
+        case 32: //AES-CCM-64-128-128
+            return key.length == 16;
+        case 2: //A192GCM
+            return key.length == 24;
+        default: //A256GCM and AES-CCM-*-256
+            return key.length == 32;
+        }
+    }
+    
+    /**
+     * Find the algorithm of a COSE message without decoding it into a
+     * COSE library object.
+     * 
+     * @param cose  the decoded COSE message
+     * @return  the algorithm from the headers, or null if not found
+     */
+    static CBORObject findAlg(CBORObject cose) {
+        CBORObject msg = cose.isTagged() ? cose.Untag() : cose;
+        if (!msg.getType().equals(CBORType.Array) || msg.size() < 2
+                || !msg.get(0).getType().equals(CBORType.ByteString)
+                || !msg.get(1).getType().equals(CBORType.Map)) {
+            return null;
+        }
+        byte[] protBytes = msg.get(0).GetByteString();
+        CBORObject protMap = (protBytes.length == 0) 
+                ? CBORObject.NewMap() : CBORObject.DecodeFromBytes(protBytes);
+        if (!protMap.getType().equals(CBORType.Map)) {
+            return null;
+        }
+        return protMap.ContainsKey(ALG) 
+                ? protMap.get(ALG) : msg.get(1).get(ALG);
+    }
+    
+    /**
+     * Verify or decrypt a COSE message.
+     * 
+     * @param cose  the decoded COSE message
+     * 
+     * @return  the verified or decrypted content, or null if this
+     *     message cannot be handled by the fast path
+     *     
+     * @throws AceException  if the MAC is invalid or decryption fails
+     */
+    public byte[] process(CBORObject cose) throws AceException {
+        CBORObject msg = cose;
+        if (msg.isTagged()) {
+            if (msg.GetTags().length != 1 
+                    || !msg.HasTag(this.what.value)) {
+                return null;
+            }
+            msg = msg.UntagOne();
+        }
+        if (!msg.getType().equals(CBORType.Array)
+                || msg.size() != ((this.what == MessageTag.MAC0) ? 4 : 3)) {
+            return null;
+        }
+        CBORObject prot = msg.get(0);
+        CBORObject unprot = msg.get(1);
+        if (!prot.getType().equals(CBORType.ByteString) 
+                || !unprot.getType().equals(CBORType.Map)
+                || !msg.get(2).getType().equals(CBORType.ByteString)) {
+            return null;
+        }
+        byte[] protBytes = prot.GetByteString();
+        CBORObject protMap = (protBytes.length == 0) 
+                ? CBORObject.NewMap() : CBORObject.DecodeFromBytes(protBytes);
+        if (!protMap.getType().equals(CBORType.Map)) {
+            return null;
+        }
+        CBORObject msgAlg = protMap.ContainsKey(ALG) 
+                ? protMap.get(ALG) : unprot.get(ALG);
+        if (!this.alg.equals(msgAlg)) {
+            return null;
+        }
+        
+        if (this.what == MessageTag.MAC0) {
+            return verifyMac0(protBytes, msg.get(2).GetByteString(), 
+                    msg.get(3));
+        }
+        CBORObject iv = protMap.ContainsKey(IV) 
+                ? protMap.get(IV) : unprot.get(IV);
+        if (iv == null || !iv.getType().equals(CBORType.ByteString)
+                || iv.GetByteString().length != this.nonceLength) {
+            return null;
+        }
+        return decryptEncrypt0(protBytes, iv.GetByteString(), 
+                msg.get(2).GetByteString());
+    }
+    
+    /**
+     * Verify the tag of a MAC0 message.
+     * 
+     * @param protBytes  the protected headers
+     * @param payload  the payload
+     * @param tag  the tag
+     * 
+     * @return  the payload
+     * @throws AceException  if the tag is invalid
+     */
+    private byte[] verifyMac0(byte[] protBytes, byte[] payload, 
+            CBORObject tag) throws AceException {
+        if (!tag.getType().equals(CBORType.ByteString)) {
+            return null;
+        }
+        CBORObject toMac = CBORObject.NewArray();
+        toMac.Add("MAC0");
+        toMac.Add(protBytes);
+        toMac.Add(EMPTY);
+        toMac.Add(payload);
+        Mac mac = mac();
+        byte[] full = mac.doFinal(toMac.EncodeToBytes());
+        byte[] expected = tag.GetByteString();
+        if (expected.length != this.tagLength) {
+            throw new AceException("No valid MAC found");
+        }
+        byte[] truncated = full;
+        if (full.length != this.tagLength) {
+            truncated = new byte[this.tagLength];
+            System.arraycopy(full, 0, truncated, 0, this.tagLength);
+        }
+        if (!MessageDigest.isEqual(truncated, expected)) {
+            throw new AceException("No valid MAC found");
+        }
+        return payload;
+    }
+    
+    /**
+     * Decrypt the ciphertext of an Encrypt0 message.
+     * 
+     * @param protBytes  the protected headers
+     * @param iv  the IV
+     * @param ciphertext  the ciphertext including the tag
+     * 
+     * @return  the plaintext
+     * @throws AceException  if decryption fails
+     */
+    private byte[] decryptEncrypt0(byte[] protBytes, byte[] iv, 
+            byte[] ciphertext) throws AceException {
+        CBORObject aad = CBORObject.NewArray();
+        aad.Add("Encrypt0");
+        aad.Add(protBytes);
+        aad.Add(EMPTY);
+        KeyedCipher kc = cipher();
+        if (kc.ccm != null) {
+            return kc.ccm.decrypt(iv, aad.EncodeToBytes(), ciphertext);
+        }
+        if (kc.jca != null) {
+            //Re-initializing with the same key lets the JDK provider 
+            //reuse its key schedule
+            try {
+                kc.jca.init(Cipher.DECRYPT_MODE, this.keySpec, 
+                        new GCMParameterSpec(this.tagLength * 8, iv));
+                kc.jca.updateAAD(aad.EncodeToBytes());
+                return kc.jca.doFinal(ciphertext);
+            } catch (GeneralSecurityException e) {
+                throw new AceException("Decryption failed");
+            }
+        }
+        //After the first use, a null key makes GCMBlockCipher reuse its 
+        //key schedule and hash subkey
+        KeyParameter keyParam = kc.keyed ? null : new KeyParameter(this.key);
+        try {
+            kc.gcm.init(false, new AEADParameters(keyParam, 
+                    this.tagLength * 8, iv, aad.EncodeToBytes()));
+            kc.keyed = true;
+            byte[] plaintext = new byte[
+                    kc.gcm.getOutputSize(ciphertext.length)];
+            int len = kc.gcm.processBytes(ciphertext, 0, ciphertext.length,
+                    plaintext, 0);
+            kc.gcm.doFinal(plaintext, len);
+            return plaintext;
+        } catch (InvalidCipherTextException | IllegalArgumentException 
+                | IllegalStateException e) {
+            kc.keyed = false;
+            throw new AceException("Decryption failed");
+        }
+    }
+    
+    /**
+     * @return  this thread's HMAC engine keyed with this engine's key, 
+     *     created from the current provider if needed
+     */
+    private Mac mac() {
+        KeyedMac km = this.macs.get();
+        long version = CryptoProviders.getVersion();
+        if (km == null || km.version != version) {
+            try {
+                Mac mac = CryptoProviders.getMac(this.macName);
+                mac.init(this.keySpec);
+                km = new KeyedMac(mac, version);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+            this.macs.set(km);
+        }
+        return km.mac;
+    }
+    
+    /**
+     * @return  this thread's AEAD cipher, created from the current 
+     *     provider if needed
+     */
+    private KeyedCipher cipher() {
+        KeyedCipher kc = this.ciphers.get();
+        long version = CryptoProviders.getVersion();
+        if (kc == null || kc.version != version) {
+            try {
+                if (this.aead == Primitive.AES_CCM) {
+                    kc = new KeyedCipher(null, null, ccm(), version);
+                } else {
+                    Cipher jca = CryptoProviders.getCipher(this.aead);
+                    kc = new KeyedCipher((jca == null) 
+                            ? new GCMBlockCipher(new AESEngine()) : null, 
+                            jca, null, version);
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+            this.ciphers.set(kc);
+        }
+        return kc;
+    }
+    
+    /**
+     * @return  a CCM decryptor on an AES block function keyed with this 
+     *     engine's key, from the provider set for AES-CCM if any
+     *     
+     * @throws GeneralSecurityException  if the provider fails
+     */
+    private CcmDecryptor ccm() throws GeneralSecurityException {
+        Cipher ecb = CryptoProviders.getCipher(Primitive.AES_CCM);
+        if (ecb != null) {
+            ecb.init(Cipher.ENCRYPT_MODE, this.keySpec);
+            return new CcmDecryptor(null, ecb, this.tagLength, 
+                    this.nonceLength);
+        }
+        AESEngine engine = new AESEngine();
+        engine.init(true, new KeyParameter(this.key));
+        return new CcmDecryptor(engine, null, this.tagLength, 
+                this.nonceLength);
+    }
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package cwt;
+
+/**
+ * The outcome of verifying one token of a batch, either the CWT or the
+ * exception that <code>CWT.processCOSE()</code> threw for it.
+ *
+ */
+public class VerificationResult {
+    
+    /**
+     * The verified CWT, null if verification failed
+     */
+    private final CWT cwt;
+    
+    /**
+     * The reason verification failed, null if it succeeded
+     */
+    private final Exception error;
+    
+    /**
+     * Constructor.
+     * 
+     * @param cwt  the verified CWT or null
+     * @param error  the verification error or null
+     */
+    VerificationResult(CWT cwt, Exception error) {
+        this.cwt = cwt;
+        this.error = error;
+    }
+    
+    /**
+     * @return  true if the token was verified
+     */
+    public boolean isValid() {
+        return this.cwt != null;
+    }
+    
+    /**
+     * @return  the verified CWT, null if verification failed
+     */
+    public CWT getCWT() {
+        return this.cwt;
+    }
+    
+    /**
+     * @return  the reason verification failed, null if it succeeded
+     */
+    public Exception getError() {
+        return this.error;
+    }
+}
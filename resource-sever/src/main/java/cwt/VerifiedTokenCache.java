@@ -0,0 +1,330 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package cwt;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.upokecenter.cbor.CBORObject;
+
+import ace.Constants;
+
+/**
+ * A bounded cache of CWTs whose crypto wrapper was already verified,
+ * indexed by the SHA-256 digest of the raw COSE bytes.
+ * 
+ * Clients using the psk_identity path send the same token with every 
+ * DTLS handshake, this cache allows to skip verifying its signature or
+ * MAC again.  Entries are dropped when the token expires, and all entries
+ * are dropped when the key ring of the crypto context changes.  A cache
+ * hit is only returned for the crypto context the token was verified with.
+ * 
+ * The least recently used entry is evicted when the cache is full.
+ *
+ */
+public class VerifiedTokenCache {
+    
+    /**
+     * The default maximum number of cached tokens
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+    
+    /**
+     * The maximum number of cached tokens
+     */
+    private final int maxEntries;
+    
+    /**
+     * Maps the Base64 encoded digest of the COSE bytes to the entry
+     */
+    private final LinkedHashMap<String, Entry> entries;
+    
+    /**
+     * The key ring version the cached entries were verified with,
+     * -1 if not known yet
+     */
+    private long ringVersion = -1;
+    
+    /**
+     * The number of cache hits
+     */
+    private final AtomicLong hits = new AtomicLong();
+    
+    /**
+     * The number of cache misses
+     */
+    private final AtomicLong misses = new AtomicLong();
+    
+    /**
+     * A verified token.
+     */
+    private static class Entry {
+        private final CwtCryptoCtx ctx;
+        private final Map<Short, CBORObject> claims;
+        private final Long exp;
+        
+        private Entry(CwtCryptoCtx ctx, Map<Short, CBORObject> claims) {
+            this.ctx = ctx;
+            this.claims = claims;
+            CBORObject e = claims.get(Constants.EXP);
+            this.exp = (e == null || !e.isIntegral()) ? null : e.AsInt64();
+        }
+    }
+    
+    /**
+     * Constructor, using the default size.
+     */
+    public VerifiedTokenCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+    
+    /**
+     * Constructor.
+     * 
+     * @param maxEntries  the maximum number of cached tokens
+     */
+    public VerifiedTokenCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException(
+                    "Cache must hold at least one entry");
+        }
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, Entry> eldest) {
+                return size() > VerifiedTokenCache.this.maxEntries;
+            }
+        };
+    }
+    
+    /**
+     * Return the verified CWT for the given COSE bytes, verifying and 
+     * caching it if it is not in the cache.
+     * 
+     * @param cose  the raw bytes of the COSE object containing the CWT
+     * @param ctx  the crypto context
+     * @param now  the current time, as given by the time provider
+     * 
+     * @return  the CWT
+     * 
+     * @throws Exception  if <code>CWT.processCOSE()</code> fails
+     */
+    public CWT processCOSE(byte[] cose, CwtCryptoCtx ctx, long now) 
+            throws Exception {
+        return processCOSE(cose, 0, cose.length, ctx, now);
+    }
+    
+    /**
+     * Return the verified CWT for COSE bytes that are a slice of a larger
+     * array, verifying and caching it if it is not in the cache.
+     * 
+     * @param data  the array holding the COSE object containing the CWT
+     * @param offset  the offset of the COSE object in the array
+     * @param length  the length of the COSE object in bytes
+     * @param ctx  the crypto context
+     * @param now  the current time, as given by the time provider
+     * 
+     * @return  the CWT
+     * 
+     * @throws Exception  if <code>CWT.processCOSE()</code> fails
+     */
+    public CWT processCOSE(byte[] data, int offset, int length, 
+            CwtCryptoCtx ctx, long now) throws Exception {
+        String digest = digest(data, offset, length);
+        Entry e = get(digest, ctx, now);
+        if (e != null) {
+            this.hits.incrementAndGet();
+            return new CWT(e.claims);
+        }
+        this.misses.incrementAndGet();
+        long version = version(ctx);
+        CWT cwt = CWT.processCOSE(data, offset, length, ctx);
+        put(digest, new Entry(ctx, cwt.getClaims()), version);
+        return cwt;
+    }
+    
+    /**
+     * Return the verified CWTs for a batch of COSE objects.  The tokens
+     * that are not in the cache are verified in parallel with
+     * <code>CWT.processCOSE(List, CwtCryptoCtx)</code> and cached.
+     * 
+     * @param tokens  the raw bytes of the COSE objects containing the CWTs
+     * @param ctx  the crypto context
+     * @param now  the current time, as given by the time provider
+     * 
+     * @return  the results, in the same order as the tokens
+     */
+    public List<VerificationResult> processCOSE(List<byte[]> tokens, 
+            CwtCryptoCtx ctx, long now) {
+        VerificationResult[] results = new VerificationResult[tokens.size()];
+        List<byte[]> missed = new ArrayList<>();
+        List<String> digests = new ArrayList<>();
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < results.length; i++) {
+            byte[] token = tokens.get(i);
+            String digest = digest(token, 0, token.length);
+            Entry e = get(digest, ctx, now);
+            if (e != null) {
+                this.hits.incrementAndGet();
+                results[i] = new VerificationResult(new CWT(e.claims), null);
+            } else {
+                this.misses.incrementAndGet();
+                missed.add(tokens.get(i));
+                digests.add(digest);
+                indexes.add(i);
+            }
+        }
+        long version = version(ctx);
+        List<VerificationResult> verified = CWT.processCOSE(missed, ctx);
+        for (int j = 0; j < verified.size(); j++) {
+            VerificationResult result = verified.get(j);
+            results[indexes.get(j)] = result;
+            if (result.isValid()) {
+                put(digests.get(j), 
+                        new Entry(ctx, result.getCWT().getClaims()), version);
+            }
+        }
+        return Arrays.asList(results);
+    }
+    
+    /**
+     * Drop all cached tokens.
+     */
+    public synchronized void invalidate() {
+        this.entries.clear();
+    }
+    
+    /**
+     * @return  the number of cached tokens
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+    
+    /**
+     * @return  the number of tokens that were found in the cache
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+    
+    /**
+     * @return  the number of tokens that had to be verified
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+    
+    /**
+     * Look up a cached token.
+     * 
+     * @param digest  the digest of the token
+     * @param ctx  the crypto context
+     * @param now  the current time
+     * 
+     * @return  the entry or null if there is no valid entry
+     */
+    private synchronized Entry get(String digest, CwtCryptoCtx ctx, 
+            long now) {
+        checkVersion(version(ctx));
+        Entry e = this.entries.get(digest);
+        if (e == null) {
+            return null;
+        }
+        if (e.exp != null && e.exp < now) {
+            this.entries.remove(digest);
+            return null;
+        }
+        return (e.ctx == ctx) ? e : null;
+    }
+    
+    /**
+     * Add a verified token, unless the key ring changed while verifying.
+     * 
+     * @param digest  the digest of the token
+     * @param e  the entry
+     * @param version  the key ring version before verifying
+     */
+    private synchronized void put(String digest, Entry e, long version) {
+        checkVersion(version(e.ctx));
+        if (version == this.ringVersion) {
+            this.entries.put(digest, e);
+        }
+    }
+    
+    /**
+     * Drop all entries if the key ring version changed.
+     * 
+     * @param version  the current key ring version
+     */
+    private void checkVersion(long version) {
+        if (version != this.ringVersion) {
+            this.entries.clear();
+            this.ringVersion = version;
+        }
+    }
+    
+    /**
+     * @param ctx  the crypto context
+     * @return  the version of the context's key ring, 0 if it has none
+     */
+    private static long version(CwtCryptoCtx ctx) {
+        return (ctx.getKeyRing() == null) ? 0 : ctx.getKeyRing().getVersion();
+    }
+    
+    /**
+     * @param data  the array holding the raw COSE bytes
+     * @param offset  the offset of the COSE bytes in the array
+     * @param length  the number of COSE bytes
+     * @return  the Base64 encoded SHA-256 digest of the bytes
+     */
+    private static String digest(byte[] data, int offset, int length) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(data, offset, length);
+            return Base64.getEncoder().encodeToString(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            //Every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
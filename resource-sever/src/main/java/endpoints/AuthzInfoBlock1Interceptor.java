@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package endpoints;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.Option;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.interceptors.MessageInterceptor;
+
+/**
+ * Lets <code>CoapAuthzInfo</code> reassemble Block1 uploads itself.
+ * 
+ * The blockwise layer of Californium buffers Block1 uploads without any
+ * size limit before the resource sees them, which on the unprotected
+ * authz-info resource allows any client to make the RS buffer arbitrary
+ * amounts of data.  This interceptor moves the Block1 option of requests 
+ * to authz-info to <code>CoapAuthzInfo.BLOCK1_OPTION</code>, so that the
+ * blocks pass the blockwise layer unchanged and are reassembled by the 
+ * resource into a pooled buffer with a size cap.
+ * 
+ * Add an instance to every endpoint serving authz-info.
+ */
+public class AuthzInfoBlock1Interceptor implements MessageInterceptor {
+    
+    /**
+     * The Uri-Path segments of the authz-info resource
+     */
+    private final List<String> path;
+    
+    /**
+     * Constructor.
+     * 
+     * @param path  the path of the authz-info resource, e.g. "authz-info"
+     */
+    public AuthzInfoBlock1Interceptor(String path) {
+        List<String> segments = new ArrayList<>();
+        for (String s : path.split("/")) {
+            if (!s.isEmpty()) {
+                segments.add(s);
+            }
+        }
+        this.path = segments;
+    }
+    
+    @Override
+    public void receiveRequest(Request request) {
+        OptionSet options = request.getOptions();
+        if (!options.hasBlock1()) {
+            return;
+        }
+        List<String> uriPath = options.getUriPath();
+        int n = uriPath.size();
+        if (n > 0 && uriPath.get(n - 1).isEmpty()) {
+            uriPath = uriPath.subList(0, n - 1);
+        }
+        if (!uriPath.equals(this.path)) {
+            return;
+        }
+        options.addOption(new Option(CoapAuthzInfo.BLOCK1_OPTION, 
+                options.getBlock1().getValue()));
+        options.removeBlock1();
+    }
+    
+    @Override
+    public void sendRequest(Request request) {
+        //Nothing to do
+    }
+    
+    @Override
+    public void sendResponse(Response response) {
+        //Nothing to do
+    }
+    
+    @Override
+    public void sendEmptyMessage(EmptyMessage message) {
+        //Nothing to do
+    }
+    
+    @Override
+    public void receiveResponse(Response response) {
+        //Nothing to do
+    }
+    
+    @Override
+    public void receiveEmptyMessage(EmptyMessage message) {
+        //Nothing to do
+    }
+}
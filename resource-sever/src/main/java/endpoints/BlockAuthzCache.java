@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package endpoints;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the blockwise transfers that were authorized when they 
+ * started, so that the following block requests reaching 
+ * <code>CoapDeliverer</code> skip access control.
+ * 
+ * A transfer is identified by the peer address, port and identity, the 
+ * resource path and the method.  Its authorization lapses when the token
+ * repository changes, when the authorizing token expires, when the last
+ * block was sent, or at the latest after a lifetime.  The lifetime is 
+ * needed because the blockwise layer of Californium serves the remaining 
+ * blocks of a response it holds itself, so the last block often never 
+ * reaches <code>CoapDeliverer</code>.
+ * 
+ * The least recently used transfer is evicted when the cache is full.
+ */
+class BlockAuthzCache {
+    
+    /**
+     * The default maximum number of ongoing transfers
+     */
+    static final int DEFAULT_MAX_TRANSFERS = 1024;
+    
+    /**
+     * Identifies a blockwise transfer.
+     */
+    private static final class Key {
+        private final InetAddress address;
+        private final int port;
+        private final String subject;
+        private final String path;
+        private final String action;
+        
+        private Key(InetAddress address, int port, String subject, 
+                String path, String action) {
+            this.address = address;
+            this.port = port;
+            this.subject = subject;
+            this.path = path;
+            this.action = action;
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.address, this.port, this.subject, 
+                    this.path, this.action);
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)o;
+            return this.port == k.port && this.subject.equals(k.subject)
+                    && this.path.equals(k.path) 
+                    && this.action.equals(k.action)
+                    && Objects.equals(this.address, k.address);
+        }
+    }
+    
+    /**
+     * The authorization of a transfer.
+     */
+    private static final class Transfer {
+        private final long generation;
+        private final Long exp;
+        private final long deadline;
+        
+        private Transfer(long generation, Long exp, long deadline) {
+            this.generation = generation;
+            this.exp = exp;
+            this.deadline = deadline;
+        }
+    }
+    
+    /**
+     * The maximum number of ongoing transfers
+     */
+    private final int maxTransfers;
+    
+    /**
+     * The lifetime of a transfer in nanoseconds
+     */
+    private final long lifetime;
+    
+    /**
+     * Maps the ongoing transfers to their authorization
+     */
+    private final LinkedHashMap<Key, Transfer> transfers;
+    
+    /**
+     * Constructor.
+     * 
+     * @param maxTransfers  the maximum number of ongoing transfers
+     * @param lifetime  the time in milliseconds after which a transfer is
+     *     forgotten, e.g. the exchange lifetime of the endpoint
+     */
+    BlockAuthzCache(int maxTransfers, long lifetime) {
+        if (maxTransfers < 1) {
+            throw new IllegalArgumentException(
+                    "Cache must hold at least one transfer");
+        }
+        this.maxTransfers = maxTransfers;
+        this.lifetime = TimeUnit.MILLISECONDS.toNanos(lifetime);
+        this.transfers = new LinkedHashMap<Key, Transfer>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Key, Transfer> eldest) {
+                return size() > BlockAuthzCache.this.maxTransfers;
+            }
+        };
+    }
+    
+    /**
+     * Check if a transfer was authorized when it started and still is.
+     * 
+     * @param address  the address of the peer
+     * @param port  the port of the peer
+     * @param subject  the authenticated identity of the peer
+     * @param path  the path of the resource
+     * @param action  the method
+     * @param generation  the current generation of the token repository
+     * @param now  the current time
+     * @return  true if the transfer is authorized
+     */
+    synchronized boolean isAuthorized(InetAddress address, int port, 
+            String subject, String path, String action, long generation, 
+            long now) {
+        Key key = new Key(address, port, subject, path, action);
+        Transfer t = this.transfers.get(key);
+        if (t == null) {
+            return false;
+        }
+        if (t.generation != generation || (t.exp != null && t.exp < now)
+                || System.nanoTime() - t.deadline > 0) {
+            this.transfers.remove(key);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Record an authorized transfer.
+     * 
+     * @param address  the address of the peer
+     * @param port  the port of the peer
+     * @param subject  the authenticated identity of the peer
+     * @param path  the path of the resource
+     * @param action  the method
+     * @param generation  the generation of the token repository the 
+     *     transfer was authorized against
+     * @param exp  the expiration time of the authorizing token or null
+     */
+    synchronized void start(InetAddress address, int port, String subject, 
+            String path, String action, long generation, Long exp) {
+        this.transfers.put(new Key(address, port, subject, path, action), 
+                new Transfer(generation, exp, 
+                        System.nanoTime() + this.lifetime));
+    }
+    
+    /**
+     * Forget a transfer after its last block.
+     * 
+     * @param address  the address of the peer
+     * @param port  the port of the peer
+     * @param subject  the authenticated identity of the peer
+     * @param path  the path of the resource
+     * @param action  the method
+     */
+    synchronized void finish(InetAddress address, int port, String subject, 
+            String path, String action) {
+        this.transfers.remove(new Key(address, port, subject, path, action));
+    }
+    
+    /**
+     * @return  the number of ongoing transfers
+     */
+    synchronized int size() {
+        return this.transfers.size();
+    }
+}
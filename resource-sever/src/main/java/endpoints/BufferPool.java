@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package endpoints;
+
+import java.util.ArrayDeque;
+
+/**
+ * A small pool of equally sized byte buffers, used to reassemble uploads
+ * without allocating a new buffer for each of them.
+ */
+class BufferPool {
+    
+    /**
+     * The size of the buffers
+     */
+    private final int bufferSize;
+    
+    /**
+     * The maximum number of idle buffers kept
+     */
+    private final int maxIdle;
+    
+    /**
+     * The idle buffers
+     */
+    private final ArrayDeque<byte[]> idle = new ArrayDeque<>();
+    
+    /**
+     * Constructor.
+     * 
+     * @param bufferSize  the size of the buffers
+     * @param maxIdle  the maximum number of idle buffers kept
+     */
+    BufferPool(int bufferSize, int maxIdle) {
+        this.bufferSize = bufferSize;
+        this.maxIdle = maxIdle;
+    }
+    
+    /**
+     * @return  an idle buffer or a new one if there is none
+     */
+    synchronized byte[] acquire() {
+        byte[] buffer = this.idle.pollFirst();
+        return buffer != null ? buffer : new byte[this.bufferSize];
+    }
+    
+    /**
+     * Return a buffer to the pool.
+     * 
+     * @param buffer  the buffer, must not be used by the caller afterwards
+     */
+    synchronized void release(byte[] buffer) {
+        if (buffer.length == this.bufferSize 
+                && this.idle.size() < this.maxIdle) {
+            this.idle.addFirst(buffer);
+        }
+    }
+    
+    /**
+     * @return  the size of the buffers
+     */
+    int getBufferSize() {
+        return this.bufferSize;
+    }
+}
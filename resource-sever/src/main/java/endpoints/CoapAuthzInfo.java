@@ -31,24 +31,45 @@
  *******************************************************************************/
 package endpoints;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
 import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.BlockOption;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Option;
 import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 
-import exception.AceException;
+import com.upokecenter.cbor.CBORObject;
+
 import ace.Message;
-import coap.CoapReq;
+import coap.CoapExchangeMessage;
 import coap.CoapRes;
 import utility.AuthzInfo;
+import utility.TokenGuard;
 
 
 /**
  * A CoAP resource implementing the authz-info endpoint at the RS 
  * for the DTLS profile.
  * 
+ * Several tokens can be submitted at once as a CBOR array of byte strings,
+ * each containing one encoded token.  The reply is a CBOR array with one
+ * [response code, payload] array per token, in the same order.
+ * 
+ * Large tokens can be uploaded blockwise (RFC 7959) if the endpoint has 
+ * an <code>AuthzInfoBlock1Interceptor</code>.  The blocks are then 
+ * reassembled here into a pooled buffer, uploads larger than the maximum
+ * token size are refused with 4.13.
+ * 
  * @author Ludwig Seitz
  *
  */
@@ -60,39 +81,395 @@ public class CoapAuthzInfo extends CoapResource {
     private static final Logger LOGGER 
         = Logger.getLogger(CoapAuthzInfo.class.getName());
     
+    /**
+     * The number of the option <code>AuthzInfoBlock1Interceptor</code> 
+     * moves the Block1 option to, from the experimental range
+     */
+    public static final int BLOCK1_OPTION = 65002;
+    
+    /**
+     * The default maximum size of an uploaded token in bytes, the one of 
+     * the token guard of <code>AuthzInfo</code>
+     */
+    public static final int DEFAULT_MAX_TOKEN_SIZE 
+        = TokenGuard.DEFAULT_MAX_SIZE;
+    
+    /**
+     * The maximum number of concurrent blockwise uploads
+     */
+    private static final int MAX_UPLOADS = 64;
+    
+    /**
+     * The argument of a CBOR head with indefinite length
+     */
+    private static final long INDEFINITE = -1L;
+    
+    /**
+     * The argument of a CBOR head that is not well-formed
+     */
+    private static final long INVALID = -2L;
+    
     /**
      * The underlying authz-info library
      */
     private AuthzInfo ai;
     
+    /**
+     * The buffers uploads are reassembled in, sized to the maximum 
+     * token size
+     */
+    private final BufferPool buffers;
+    
+    /**
+     * Maps the peer address and port to its ongoing blockwise upload
+     */
+    private final LinkedHashMap<String, Upload> uploads;
+    
+    /**
+     * An ongoing blockwise upload.
+     */
+    private static final class Upload {
+        private final byte[] buffer;
+        private int length = 0;
+        
+        private Upload(byte[] buffer) {
+            this.buffer = buffer;
+        }
+    }
+    
    /**
     * Constructor.
     * 
     * @param ai  the internal authorization information handler 
     */ 
     public CoapAuthzInfo(AuthzInfo ai) {
+        this(ai, DEFAULT_MAX_TOKEN_SIZE);
+    }
+    
+    /**
+     * Constructor.
+     * 
+     * @param ai  the internal authorization information handler 
+     * @param maxTokenSize  the maximum size of a blockwise uploaded token
+     *     in bytes
+     */ 
+    public CoapAuthzInfo(AuthzInfo ai, int maxTokenSize) {
         super("authz-info");
         this.ai = ai;
+        this.buffers = new BufferPool(maxTokenSize, MAX_UPLOADS / 4);
+        this.uploads = new LinkedHashMap<String, Upload>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, Upload> eldest) {
+                if (size() > MAX_UPLOADS) {
+                    CoapAuthzInfo.this.buffers.release(
+                            eldest.getValue().buffer);
+                    return true;
+                }
+                return false;
+            }
+        };
     }
     
     @Override
     public void handlePOST(CoapExchange exchange) {
+        BlockOption block1 = getBlock1(exchange.advanced().getRequest());
+        if (block1 != null) {
+            handleBlock(exchange, block1);
+            return;
+        }
+        byte[] payload = exchange.getRequestPayload();
+        process(exchange, payload, (payload == null) ? 0 : payload.length, 
+                null);
+    }
+    
+    /**
+     * Get the Block1 option that <code>AuthzInfoBlock1Interceptor</code>
+     * moved out of the way of the blockwise layer.
+     * 
+     * @param request  the request
+     * @return  the Block1 option or null if there is none
+     */
+    private static BlockOption getBlock1(Request request) {
+        if (!request.getOptions().hasOption(BLOCK1_OPTION)) {
+            return null;
+        }
+        for (Option o : request.getOptions().asSortedList()) {
+            if (o.getNumber() == BLOCK1_OPTION) {
+                return new BlockOption(o.getValue());
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Add a block of an upload to its buffer, and process the token once
+     * the last block arrived.
+     * 
+     * @param exchange  the exchange
+     * @param block1  the Block1 option of the request
+     */
+    private void handleBlock(CoapExchange exchange, BlockOption block1) {
+        String peer = exchange.getSourceAddress().getHostAddress() + ":" 
+                + exchange.getSourcePort();
+        byte[] payload = exchange.getRequestPayload();
+        int offset = block1.getNum() * block1.getSize();
+        Upload upload;
+        synchronized (this.uploads) {
+            if (block1.getNum() == 0) {
+                Integer size1 = exchange.getRequestOptions().getSize1();
+                Upload old = this.uploads.remove(peer);
+                if (old != null) {
+                    this.buffers.release(old.buffer);
+                }
+                if (size1 != null 
+                        && size1 > this.buffers.getBufferSize()) {
+                    tooLarge(exchange);
+                    return;
+                }
+                this.uploads.put(peer, 
+                        new Upload(this.buffers.acquire()));
+            }
+            upload = this.uploads.get(peer);
+            if (upload == null || offset != upload.length) {
+                //Missing the start or a block in between
+                if (upload != null) {
+                    this.uploads.remove(peer);
+                    this.buffers.release(upload.buffer);
+                }
+                exchange.respond(ResponseCode.REQUEST_ENTITY_INCOMPLETE);
+                return;
+            }
+            if (upload.length + payload.length > upload.buffer.length) {
+                this.uploads.remove(peer);
+                this.buffers.release(upload.buffer);
+                tooLarge(exchange);
+                return;
+            }
+            System.arraycopy(payload, 0, upload.buffer, upload.length, 
+                    payload.length);
+            upload.length += payload.length;
+            if (!block1.isM()) {
+                this.uploads.remove(peer);
+            }
+        }
+        BlockOption ack = new BlockOption(block1.getSzx(), block1.isM(), 
+                block1.getNum());
+        if (block1.isM()) {
+            Response r = new Response(ResponseCode.CONTINUE);
+            r.getOptions().setBlock1(ack);
+            exchange.respond(r);
+            return;
+        }
+        //The token is read in place, so the buffer is only released once
+        //it has been processed
+        byte[] buffer = upload.buffer;
+        process(exchange, buffer, upload.length, ack).whenComplete(
+                (v, t) -> this.buffers.release(buffer));
+    }
+    
+    /**
+     * Refuse an upload that exceeds the maximum token size.
+     * 
+     * @param exchange  the exchange
+     */
+    private void tooLarge(CoapExchange exchange) {
+        Response r = new Response(ResponseCode.REQUEST_ENTITY_TOO_LARGE);
+        r.getOptions().setSize1(this.buffers.getBufferSize());
+        exchange.respond(r);
+    }
+    
+    /**
+     * Process a submitted token or batch of tokens.
+     * 
+     * @param exchange  the exchange
+     * @param payload  the array holding the complete request payload
+     * @param length  the length of the payload in bytes
+     * @param ack  the Block1 option acknowledging the last block of a 
+     *     blockwise upload, null otherwise
+     *     
+     * @return  a future completing when the response has been sent
+     */
+    private CompletableFuture<?> process(CoapExchange exchange, 
+            byte[] payload, int length, BlockOption ack) {
         exchange.accept();
-        Request req = new Request(exchange.getRequestCode());
-        req.setPayload(exchange.getRequestPayload());
-        System.out.println(exchange.getRequestPayload());
-        try {
-            CoapReq msg = CoapReq.getInstance(req);
-//            System.out.println(msg);
-            Message reply = this.ai.processMessage(msg);
-            //Safe to cast, since CoapReq only ever renders a CoapRes
+        List<byte[]> batch = getBatch(payload, length);
+        if (batch != null) {
+            return handleBatch(exchange, batch, ack);
+        }
+        Message msg = new CoapExchangeMessage(exchange, payload, 0, length);
+        //The exchange is completed when the reply is ready, so that a 
+        //slow introspection does not block a protocol thread
+        return this.ai.processMessageAsync(msg).whenComplete((reply, t) -> {
+            if (t != null) {
+                LOGGER.severe("Error while handling incoming POST: " 
+                        + t.getMessage());
+                exchange.respond(ResponseCode.INTERNAL_SERVER_ERROR);
+                return;
+            }
+            //Safe to cast, since CoapExchangeMessage only ever renders 
+            //a CoapRes
             CoapRes response = (CoapRes)reply; 
-            exchange.respond(response.getCode(), response.getRawPayload(),
-                    MediaTypeRegistry.APPLICATION_CBOR);
-        } catch (AceException e) {
-            LOGGER.severe("Error while handling incoming POST: " 
-                    + e.getMessage());
-            return;
-        }  
+            respond(exchange, response.getCode(), 
+                    response.getRawPayload(), ack);
+        });
+    }
+    
+    /**
+     * Process a batch of tokens, verifying them in parallel.  The exchange 
+     * is completed when all replies are ready.
+     * 
+     * @param exchange  the exchange
+     * @param batch  the encoded tokens
+     * @param ack  the Block1 option acknowledging the last block of a 
+     *     blockwise upload, null otherwise
+     *     
+     * @return  a future completing when the response has been sent
+     */
+    private CompletableFuture<?> handleBatch(CoapExchange exchange, 
+            List<byte[]> batch, BlockOption ack) {
+        List<Message> msgs = new ArrayList<>(batch.size());
+        for (byte[] token : batch) {
+            msgs.add(new CoapExchangeMessage(exchange, token));
+        }
+        return this.ai.processMessagesAsync(msgs).whenComplete(
+                (batchReplies, t) -> {
+            if (t != null) {
+                LOGGER.severe("Error while handling incoming batch: " 
+                        + t.getMessage());
+                exchange.respond(ResponseCode.INTERNAL_SERVER_ERROR);
+                return;
+            }
+            CBORObject replies = CBORObject.NewArray();
+            for (Message reply : batchReplies) {
+                //Safe to cast, since CoapExchangeMessage only ever renders 
+                //a CoapRes
+                CoapRes response = (CoapRes)reply;
+                CBORObject entry = CBORObject.NewArray();
+                entry.Add(response.getCode().value);
+                entry.Add(response.getRawPayload() == null ? CBORObject.Null
+                        : CBORObject.DecodeFromBytes(
+                                response.getRawPayload()));
+                replies.Add(entry);
+            }
+            respond(exchange, ResponseCode.CHANGED, 
+                    replies.EncodeToBytes(), ack);
+        });
+    }
+    
+    /**
+     * Send a response with a CBOR payload.
+     * 
+     * @param exchange  the exchange
+     * @param code  the response code
+     * @param payload  the payload, may be null
+     * @param ack  the Block1 option acknowledging the last block of a 
+     *     blockwise upload, null otherwise
+     */
+    private static void respond(CoapExchange exchange, ResponseCode code, 
+            byte[] payload, BlockOption ack) {
+        Response r = new Response(code);
+        r.setPayload(payload);
+        r.getOptions().setContentFormat(MediaTypeRegistry.APPLICATION_CBOR);
+        if (ack != null) {
+            r.getOptions().setBlock1(ack);
+        }
+        exchange.respond(r);
+    }
+    
+    /**
+     * Check if a payload is a batch of tokens, i.e. an untagged CBOR 
+     * array of byte strings.  This cannot be confused with a single COSE 
+     * message, since these always have a map as second element.
+     * 
+     * Only the heads of the outer array and its byte strings are read, 
+     * the tokens are neither decoded here nor before they passed the 
+     * token guard.
+     * 
+     * @param payload  the array holding the request payload
+     * @param length  the length of the payload in bytes
+     * 
+     * @return  the encoded tokens or null if this is not a batch
+     */
+    private static List<byte[]> getBatch(byte[] payload, int length) {
+        if (payload == null || length == 0 
+                || (payload[0] & 0xE0) != 0x80) {
+            return null;
+        }
+        int[] pos = {0};
+        long count = readArgument(payload, length, pos);
+        if (count == 0 || count == INVALID) {
+            return null;
+        }
+        //The offset and length of each token
+        List<int[]> slices = new ArrayList<>();
+        while (pos[0] < length) {
+            if (count == INDEFINITE ? payload[pos[0]] == (byte)0xFF 
+                    : slices.size() == count) {
+                break;
+            }
+            if ((payload[pos[0]] & 0xE0) != 0x40) {
+                return null;
+            }
+            long len = readArgument(payload, length, pos);
+            if (len < 0 || len > length - pos[0]) {
+                return null;
+            }
+            slices.add(new int[] {pos[0], (int)len});
+            pos[0] += (int)len;
+        }
+        if (count == INDEFINITE) {
+            if (pos[0] == length) {
+                return null;
+            }
+            //Skip the break
+            pos[0]++;
+        } else if (slices.size() != count) {
+            return null;
+        }
+        if (slices.isEmpty() || pos[0] != length) {
+            return null;
+        }
+        //The tokens of a batch are copied, since they are verified in 
+        //parallel by CWT.processCOSE(List, CwtCryptoCtx), which takes whole 
+        //arrays.  This is one small copy per token, next to its 
+        //verification.
+        List<byte[]> tokens = new ArrayList<>(slices.size());
+        for (int[] slice : slices) {
+            tokens.add(Arrays.copyOfRange(payload, slice[0], 
+                    slice[0] + slice[1]));
+        }
+        return tokens;
+    }
+    
+    /**
+     * Read the argument of the head of a CBOR data item.
+     * 
+     * @param data  the encoded data
+     * @param length  the length of the data in the array
+     * @param pos  the position of the head, moved past the head
+     * 
+     * @return  the argument, <code>INDEFINITE</code> for an indefinite 
+     *     length or <code>INVALID</code> if the head is not well-formed or
+     *     truncated
+     */
+    private static long readArgument(byte[] data, int length, int[] pos) {
+        int info = data[pos[0]++] & 0x1F;
+        if (info < 24) {
+            return info;
+        }
+        if (info == 31) {
+            return (pos[0] < length) ? INDEFINITE : INVALID;
+        }
+        if (info > 27 || (1 << (info - 24)) > length - pos[0]) {
+            return INVALID;
+        }
+        long arg = 0;
+        for (int i = 0; i < (1 << (info - 24)); i++) {
+            arg = (arg << 8) | (data[pos[0]++] & 0xFF);
+        }
+        return (arg < 0) ? INVALID : arg;
     }
 }
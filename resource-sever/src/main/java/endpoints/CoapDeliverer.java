@@ -33,15 +33,31 @@ package endpoints;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+import org.eclipse.californium.core.coap.BlockOption;
+import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.OptionSet;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.observe.ObserveRelation;
 import org.eclipse.californium.core.server.MessageDeliverer;
 import org.eclipse.californium.core.server.ServerMessageDeliverer;
 import org.eclipse.californium.core.server.resources.Resource;
@@ -54,7 +70,8 @@ import COSE.KeyKeys;
 
 import ace.AceException;
 import ace.Constants;
-import utility.KissTime;
+import ace.TimeProvider;
+import utility.CoarseTime;
 import utility.AsInfo;
 import exception.IntrospectionException;
 import utility.IntrospectionHandler;
@@ -80,6 +97,26 @@ public class CoapDeliverer implements MessageDeliverer, Closeable {
     private static final Logger LOGGER 
         = Logger.getLogger(CoapDeliverer.class.getName());
     
+    /**
+     * The ways requests to protected resources are dispatched
+     */
+    public enum DispatchMode {
+        /**
+         * Authorize and deliver on the Californium protocol stage thread
+         */
+        INLINE,
+        /**
+         * Authorize and deliver all requests on the dispatch executor
+         */
+        EXECUTOR,
+        /**
+         * Use the dispatch executor for requests to resources declaring 
+         * that they block, and for all requests if an introspection 
+         * handler is used
+         */
+        BLOCKING
+    }
+    
     /**
      * The token repository
      */
@@ -101,6 +138,77 @@ public class CoapDeliverer implements MessageDeliverer, Closeable {
      */
     private ServerMessageDeliverer d;
     
+    /**
+     * The root of the resources that this deliverer controls
+     */
+    private final Resource root;
+    
+    /**
+     * The dispatch mode
+     */
+    private volatile DispatchMode mode = DispatchMode.INLINE;
+    
+    /**
+     * The executor requests are dispatched to, null in INLINE mode
+     */
+    private volatile Executor executor = null;
+    
+    /**
+     * The load shedder or null if load is not shed
+     */
+    private volatile LoadShedder shedder = null;
+    
+    /**
+     * The cached responses of resources that allow caching
+     */
+    private final ResponseCache responses 
+        = new ResponseCache(ResponseCache.DEFAULT_MAX_ENTRIES);
+    
+    /**
+     * Cancels observations whose authorizing token is no longer valid
+     */
+    private final ObserveGuard observers;
+    
+    /**
+     * The blockwise transfers authorized when they started, kept at most
+     * for the exchange lifetime
+     */
+    private final BlockAuthzCache blocks 
+        = new BlockAuthzCache(BlockAuthzCache.DEFAULT_MAX_TRANSFERS, 
+                NetworkConfig.getStandard().getLong(
+                        NetworkConfig.Keys.EXCHANGE_LIFETIME));
+    
+    /**
+     * The paths of the resources that are not under access control
+     * by default
+     */
+    public static final List<String> DEFAULT_UNPROTECTED 
+        = Collections.unmodifiableList(Arrays.asList(
+                "authz-info", ".well-known/core"));
+    
+    /**
+     * The Uri-Path segments of the resources that are not under access 
+     * control, replaced as a whole when a resource is added
+     */
+    private volatile Set<List<String>> unprotected;
+    
+    /**
+     * The time provider
+     */
+    private final TimeProvider time;
+    
+    /**
+     * Caches the kid resolved from the subject name of a peer
+     */
+    private final SubjectKidCache kids 
+        = new SubjectKidCache(SubjectKidCache.DEFAULT_MAX_ENTRIES);
+    
+    /**
+     * The authorization contexts of the DTLS sessions
+     */
+    private final SessionAuthzCache sessions 
+        = new SessionAuthzCache(SessionAuthzCache.DEFAULT_MAX_SESSIONS);
+    
 
     /**
      * Constructor. 
@@ -111,30 +219,508 @@ public class CoapDeliverer implements MessageDeliverer, Closeable {
      */
     public CoapDeliverer(Resource root, TokenRepository tr, 
             IntrospectionHandler i, AsInfo asInfo) {
+        this(root, tr, i, asInfo, DEFAULT_UNPROTECTED, 
+                CoarseTime.getShared());
+    }
+    
+    /**
+     * Constructor. 
+     * @param root  the root of the resources that this deliverer controls
+     * @param tr  the token repository.
+     * @param i  the introspection handler or null if there isn't any.
+     * @param asInfo  the AS information to send for client authz errors.
+     * @param unprotected  the paths of the resources that are not under 
+     *     access control, e.g. "authz-info"
+     * @param time  the time provider, should be the one shared with 
+     *     <code>AuthzInfo</code>
+     */
+    public CoapDeliverer(Resource root, TokenRepository tr, 
+            IntrospectionHandler i, AsInfo asInfo, 
+            Collection<String> unprotected, TimeProvider time) {
         this.d = new ServerMessageDeliverer(root);
+        this.root = root;
         this.tr = tr;
+        this.i = i;
         this.asInfo = asInfo;
+        this.time = time;
+        this.observers = new ObserveGuard(tr, time, asInfo, 
+                ObserveGuard.DEFAULT_INTERVAL);
+        Set<List<String>> paths = new HashSet<>();
+        for (String path : unprotected) {
+            paths.add(segments(path));
+        }
+        this.unprotected = Collections.unmodifiableSet(paths);
+    }
+    
+    /**
+     * Set how requests to protected resources are dispatched.  Java 8 
+     * has no virtual threads, use a pool sized for the expected number 
+     * of concurrently blocked requests instead, e.g. from 
+     * <code>newDispatchPool()</code>.  The executor is not shut down by 
+     * this deliverer.
+     * 
+     * @param mode  the dispatch mode
+     * @param executor  the executor, may be null for INLINE mode
+     * @throws IllegalStateException  if a load shedder is set and the 
+     *     mode is not EXECUTOR
+     */
+    public synchronized void setDispatch(DispatchMode mode, 
+            Executor executor) {
+        if (mode != DispatchMode.INLINE && executor == null) {
+            throw new IllegalArgumentException(
+                    "Dispatch mode " + mode + " needs an executor");
+        }
+        if (this.shedder != null && mode != DispatchMode.EXECUTOR) {
+            throw new IllegalStateException(
+                    "Load shedding needs the EXECUTOR dispatch mode");
+        }
+        this.executor = executor;
+        this.mode = mode;
+    }
+    
+    /**
+     * Set the load shedder deciding when to answer requests with 5.03.  
+     * Requires the EXECUTOR dispatch mode, otherwise the backlog builds 
+     * up in the queue of the protocol stage, which the shedder cannot 
+     * see.
+     * 
+     * @param shedder  the load shedder or null to disable load shedding
+     * @throws IllegalStateException  if the dispatch mode is not EXECUTOR
+     */
+    public synchronized void setLoadShedder(LoadShedder shedder) {
+        if (shedder != null && this.mode != DispatchMode.EXECUTOR) {
+            throw new IllegalStateException(
+                    "Load shedding needs the EXECUTOR dispatch mode");
+        }
+        this.shedder = shedder;
+    }
+    
+    /**
+     * Create a pool of daemon threads for dispatching requests.
+     * 
+     * @param threads  the number of threads
+     * @return  the pool
+     */
+    public static ThreadPoolExecutor newDispatchPool(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, 
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), 
+                r -> {
+                    Thread t = new Thread(r, "CoapDeliverer-dispatch-" 
+                            + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+    
+    /**
+     * Check if a request may block, i.e. if its target resource declares
+     * that it blocks or if an introspection handler is used.
+     * 
+     * @param request  the request
+     * @return  true if the request may block
+     */
+    private boolean isBlocking(Request request) {
+        if (this.i != null) {
+            return true;
+        }
+        Resource res = findResource(request);
+        return res instanceof BlockingResource 
+                && ((BlockingResource)res).isBlocking();
+    }
+    
+    /**
+     * Find the resource targeted by a request.
+     * 
+     * @param request  the request
+     * @return  the resource or null if there is none at that path
+     */
+    private Resource findResource(Request request) {
+        Resource res = this.root;
+        for (String segment : request.getOptions().getUriPath()) {
+            res = res.getChild(segment);
+            if (res == null) {
+                return null;
+            }
+        }
+        return res;
+    }
+    
+    /**
+     * Answer an authorized request from the response cache, or deliver 
+     * it and cache the response if the resource allows it.  Requests 
+     * that modify a resource drop its cached responses when they are 
+     * answered, i.e. after the modification.
+     * 
+     * @param ex  the exchange
+     * @param request  the authorized request
+     * @param path  the path of the resource
+     * @param session  the authorization context of the session
+     * @param subject  the authenticated identity of the requester
+     */
+    private void deliverAuthorized(final Exchange ex, Request request, 
+            String path, SessionAuthzCache.Context session, String subject) {
+        if (request.getCode() != Code.GET) {
+            this.d.deliverRequest(new InvalidatingExchange(ex, path));
+            return;
+        }
+        OptionSet options = request.getOptions();
+        if (options.hasObserve()) {
+            this.d.deliverRequest(ex);
+            guardObservation(ex, path, session, subject);
+            return;
+        }
+        if (options.getURIQueryCount() > 0) {
+            this.d.deliverRequest(ex);
+            return;
+        }
+        int accept = options.hasAccept() ? options.getAccept() : -1;
+        long now = this.time.getCurrentTime();
+        ResponseCache.Entry cached = this.responses.get(path, accept, now);
+        if (cached != null) {
+            ex.sendResponse(cachedResponse(cached, options, now));
+            return;
+        }
+        
+        Resource res = findResource(request);
+        long freshness = (res instanceof CacheableResource) 
+                ? ((CacheableResource)res).getFreshness() : 0L;
+        if (freshness <= 0) {
+            this.d.deliverRequest(ex);
+            return;
+        }
+        this.d.deliverRequest(new CachingExchange(ex, path, accept, 
+                freshness, this.responses.version()));
+    }
+    
+    /**
+     * Remember an authorized blockwise transfer when its first block 
+     * was sent, and forget it after its last block if that reaches this
+     * deliverer.  Otherwise it lapses after the exchange lifetime.
+     * 
+     * @param ex  the exchange
+     * @param subject  the authenticated identity of the requester
+     * @param path  the path of the resource
+     * @param action  the method
+     * @param session  the authorization context of the session, null if 
+     *     the transfer was already authorized
+     * @param generation  the generation of the token repository the 
+     *     request was authorized against
+     */
+    private void trackBlockTransfer(final Exchange ex, String subject, 
+            String path, String action, SessionAuthzCache.Context session, 
+            long generation) {
+        Response current = ex.getCurrentResponse();
+        if (current == null || !current.getOptions().hasBlock2()) {
+            //Not a blockwise transfer or answered asynchronously
+            return;
+        }
+        Request request = ex.getRequest();
+        if (!current.getOptions().getBlock2().isM()) {
+            this.blocks.finish(request.getSource(), request.getSourcePort(), 
+                    subject, path, action);
+            return;
+        }
+        if (session == null) {
+            return;
+        }
+        try {
+            String cti = this.tr.getGrantingToken(session.getCtis(), 
+                    subject, path, action, this.time, this.i);
+            if (cti != null) {
+                this.blocks.start(request.getSource(), 
+                        request.getSourcePort(), subject, path, action, 
+                        generation, this.tr.getExpiration(cti));
+            }
+        } catch (AceException | IntrospectionException e) {
+            LOGGER.fine("Not caching authorization of blockwise transfer: "
+                    + e.getMessage());
+        }
+    }
+    
+    /**
+     * Tie an observation established by a request to the token that 
+     * authorized it, so that it is cancelled when that token expires or 
+     * is revoked.  Notifications are not checked again.
+     * 
+     * @param ex  the exchange of the registration
+     * @param path  the path of the resource
+     * @param session  the authorization context of the session
+     * @param subject  the authenticated identity of the requester
+     */
+    private void guardObservation(final Exchange ex, String path, 
+            SessionAuthzCache.Context session, String subject) {
+        ObserveRelation relation = ex.getRelation();
+        if (relation == null) {
+            //Resource not observable
+            return;
+        }
+        //Guard it even if not established yet, the resource may answer 
+        //the registration asynchronously and the guard forgets it if the
+        //registration fails
+        try {
+            String cti = this.tr.getGrantingToken(session.getCtis(), 
+                    subject, path, Code.GET.toString(), this.time, this.i);
+            if (cti != null) {
+                this.observers.guard(relation, cti);
+                return;
+            }
+            LOGGER.warning("No token found for observation of " + path);
+        } catch (AceException | IntrospectionException e) {
+            LOGGER.severe("Error while guarding observation of " + path 
+                    + ": " + e.getMessage());
+        }
+        relation.cancel();
+    }
+    
+    /**
+     * Build the response to a request from a cached response, a 2.03 
+     * Valid if the request carries the current ETag.
+     * 
+     * @param cached  the cached response
+     * @param options  the options of the request
+     * @param now  the current time in milliseconds
+     * @return  the response
+     */
+    private static Response cachedResponse(ResponseCache.Entry cached, 
+            OptionSet options, long now) {
+        Response r;
+        if (options.containsETag(cached.getEtag())) {
+            r = new Response(ResponseCode.VALID);
+        } else {
+            r = new Response(ResponseCode.CONTENT);
+            r.setOptions(cached.getOptions());
+            r.setPayload(cached.getPayload());
+        }
+        r.getOptions().addETag(cached.getEtag());
+        r.getOptions().setMaxAge(cached.getMaxAge(now));
+        return r;
+    }
+    
+    /**
+     * Hands a request to a resource and forwards everything the resource 
+     * sends to the exchange of the request.
+     */
+    private static class ForwardingExchange extends Exchange {
+        
+        /**
+         * The exchange of the request
+         */
+        protected final Exchange ex;
+        
+        /**
+         * Constructor.
+         * 
+         * @param ex  the exchange of the request
+         */
+        ForwardingExchange(Exchange ex) {
+            super(ex.getRequest(), ex.getOrigin());
+            setRequest(ex.getRequest());
+            setEndpoint(ex.getEndpoint());
+            this.ex = ex;
+        }
+        
+        @Override
+        public void sendResponse(Response response) {
+            this.ex.sendResponse(response);
+        }
+        
+        @Override
+        public void sendAccept() {
+            this.ex.sendAccept();
+        }
+        
+        @Override
+        public void sendReject() {
+            this.ex.sendReject();
+        }
+        
+        @Override
+        public void setCustomExecutor() {
+            super.setCustomExecutor();
+            this.ex.setCustomExecutor();
+        }
+    }
+    
+    /**
+     * Hands a request to a cacheable resource and caches its 2.05 
+     * Content response before it is sent, so that this first response 
+     * carries the same ETag and Max-Age as the responses served from 
+     * the cache.  Also works if the resource answers asynchronously.  The
+     * response is not cached if the resource was modified meanwhile.
+     */
+    private final class CachingExchange extends ForwardingExchange {
+        
+        /**
+         * The path of the resource
+         */
+        private final String path;
+        
+        /**
+         * The requested content-format, -1 if none
+         */
+        private final int accept;
+        
+        /**
+         * The freshness of the response in seconds
+         */
+        private final long freshness;
+        
+        /**
+         * The version of the response cache before the request was 
+         * delivered
+         */
+        private final long version;
+        
+        /**
+         * Constructor.
+         * 
+         * @param ex  the exchange of the request
+         * @param path  the path of the resource
+         * @param accept  the requested content-format, -1 if none
+         * @param freshness  the freshness of the response in seconds
+         * @param version  the version of the response cache
+         */
+        private CachingExchange(Exchange ex, String path, int accept, 
+                long freshness, long version) {
+            super(ex);
+            this.path = path;
+            this.accept = accept;
+            this.freshness = freshness;
+            this.version = version;
+        }
+        
+        @Override
+        public void sendResponse(Response response) {
+            if (response.getCode() != ResponseCode.CONTENT) {
+                this.ex.sendResponse(response);
+                return;
+            }
+            long now = CoapDeliverer.this.time.getCurrentTime();
+            ResponseCache.Entry e = CoapDeliverer.this.responses.put(
+                    this.path, this.accept, response.getPayload(), 
+                    response.getOptions(), now + this.freshness * 1000L, 
+                    this.version);
+            if (e == null) {
+                //Modified meanwhile, this response may be stale
+                this.ex.sendResponse(response);
+                return;
+            }
+            this.ex.sendResponse(
+                    cachedResponse(e, getRequest().getOptions(), now));
+        }
+    }
+    
+    /**
+     * Hands a request that may modify a resource to it and drops the 
+     * cached responses of the resource when it answers, i.e. after the 
+     * modification.  Also works if the resource answers asynchronously.
+     */
+    private final class InvalidatingExchange extends ForwardingExchange {
+        
+        /**
+         * The path of the resource
+         */
+        private final String path;
+        
+        /**
+         * Constructor.
+         * 
+         * @param ex  the exchange of the request
+         * @param path  the path of the resource
+         */
+        private InvalidatingExchange(Exchange ex, String path) {
+            super(ex);
+            this.path = path;
+        }
+        
+        @Override
+        public void sendResponse(Response response) {
+            CoapDeliverer.this.responses.invalidate(this.path);
+            this.ex.sendResponse(response);
+        }
+    }
+    
+    /**
+     * Remove access control from a resource.
+     * 
+     * @param path  the path of the resource, e.g. "sensors/public"
+     */
+    public synchronized void addUnprotected(String path) {
+        Set<List<String>> paths = new HashSet<>(this.unprotected);
+        paths.add(segments(path));
+        this.unprotected = Collections.unmodifiableSet(paths);
+    }
+    
+    /**
+     * Put a resource back under access control.
+     * 
+     * @param path  the path of the resource
+     */
+    public synchronized void removeUnprotected(String path) {
+        Set<List<String>> paths = new HashSet<>(this.unprotected);
+        paths.remove(segments(path));
+        this.unprotected = Collections.unmodifiableSet(paths);
+    }
+    
+    /**
+     * Split a resource path into its Uri-Path segments.
+     * 
+     * @param path  the path, with or without leading and trailing /
+     * @return  the segments
+     */
+    private static List<String> segments(String path) {
+        List<String> segments = new ArrayList<>();
+        for (String s : path.split("/")) {
+            if (!s.isEmpty()) {
+                segments.add(s);
+            }
+        }
+        return Collections.unmodifiableList(segments);
+    }
+    
+    /**
+     * Check if a request targets a resource that is not under access 
+     * control.  This matches the Uri-Path options directly, without 
+     * building and parsing the request URI.
+     * 
+     * @param request  the request
+     * @return  true if the resource is not under access control
+     */
+    private boolean isUnprotected(Request request) {
+        List<String> path = request.getOptions().getUriPath();
+        int n = path.size();
+        //Tolerate a trailing / which shows up as an empty last segment
+        if (n > 0 && path.get(n - 1).isEmpty()) {
+            path = path.subList(0, n - 1);
+        }
+        return this.unprotected.contains(path);
     }
     
     @Override
     public void deliverRequest(final Exchange ex) {
         Request request = ex.getCurrentRequest();
         Response r = null;
-        //authz-info is not under access control
-        try {
-            URI uri = new URI(request.getURI());
-            //Need to check with and without trailing / in case there are query options
-            if (uri.getPath().endsWith("/authz-info") || uri.getPath().endsWith("/authz-info/") ) { 
+        LoadShedder ls = this.shedder;
+        //authz-info and other public resources are not under access control
+        if (isUnprotected(request)) {
+            if (ls == null) {
                 this.d.deliverRequest(ex);
                 return;
             }
-        } catch (URISyntaxException e) {
-            LOGGER.warning("Request-uri " + request.getURI()
-                    + " is invalid: " + e.getMessage());
-            r = new Response(ResponseCode.BAD_REQUEST);
-            ex.sendResponse(r);
+            long maxAge = ls.check(LoadShedder.Priority.PUBLIC);
+            if (maxAge >= 0) {
+                failOverload(ex, ls, maxAge);
+                return;
+            }
+            long start = ls.start();
+            try {
+                this.d.deliverRequest(ex);
+            } finally {
+                ls.done(start);
+            }
             return;
-        }      
+        }
        
         if (request.getSenderIdentity() == null) {
             LOGGER.warning("Unauthenticated client tried to get access");
@@ -143,50 +729,125 @@ public class CoapDeliverer implements MessageDeliverer, Closeable {
             ex.sendResponse(r);
             return;
         }
-        String subject = request.getSenderIdentity().getName();
-
-        String kid = this.tr.getKid(subject);
-        if (kid == null) {//Check if this was the Base64 encoded kid map
-            try {
-                CBORObject cbor = CBORObject.DecodeFromBytes(
-                        Base64.getDecoder().decode(subject));
-                if (cbor.getType().equals(CBORType.Map)) {
-                   CBORObject ckid = cbor.get(KeyKeys.KeyId.AsCBOR());
-                   if (ckid != null && ckid.getType().equals(
-                           CBORType.ByteString)) {
-                      kid = Base64.getEncoder().encodeToString(
-                              ckid.GetByteString());
-                   } else { //No kid in that CBOR map or it isn't a bstr
-                       failUnauthz(ex);
-                       return;
-                   }
-                } else {//Some weird CBOR that is not a map here
-                   failUnauthz(ex);
-                   return;
-                }                
-            } catch (CBORException e) {//Really no kid found for that subject
-                LOGGER.finest("Error while trying to parse some "
-                        + "subject identity to CBOR: " + e.getMessage());
-               failUnauthz(ex);
-               return;
-            } catch (IllegalArgumentException e) {//Text was not Base64 encoded
-                LOGGER.finest("Error: " + e.getMessage() 
-                + " while trying to Base64 decode this: " + subject);
-                failUnauthz(ex);
+        final String subject = request.getSenderIdentity().getName();
+        
+        final long start;
+        if (ls != null) {
+            long maxAge = ls.check(LoadShedder.Priority.NEW);
+            if (maxAge >= 0 && this.sessions.get(request.getSource(), 
+                    request.getSourcePort(), subject, 
+                    this.tr.getGeneration()) != null) {
+                //Favor sessions that are already authorized
+                maxAge = ls.check(LoadShedder.Priority.SESSION);
+            }
+            if (maxAge >= 0) {
+                failOverload(ex, ls, maxAge);
                 return;
             }
-           
+            start = ls.start();
+        } else {
+            start = 0L;
         }
-               
+        
+        Executor exec = this.executor;
+        DispatchMode m = this.mode;
+        if (exec != null && (m == DispatchMode.EXECUTOR 
+                || (m == DispatchMode.BLOCKING && isBlocking(request)))) {
+            try {
+                exec.execute(() -> {
+                    try {
+                        authorize(ex, subject);
+                    } finally {
+                        if (ls != null) {
+                            ls.done(start);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                LOGGER.warning("Dispatch executor rejected request: " 
+                        + e.getMessage());
+                if (ls != null) {
+                    ls.done(start);
+                }
+                ex.sendResponse(new Response(
+                        ResponseCode.SERVICE_UNAVAILABLE));
+            }
+            return;
+        }
+        try {
+            authorize(ex, subject);
+        } finally {
+            if (ls != null) {
+                ls.done(start);
+            }
+        }
+    }
+    
+    /**
+     * Fail a request with 5.03 Service Unavailable because of overload.
+     * 
+     * @param ex  the exchange
+     * @param ls  the load shedder that decided to shed the request
+     * @param maxAge  the Max-Age in seconds after which the client may 
+     *     retry
+     */
+    private static void failOverload(final Exchange ex, LoadShedder ls, 
+            long maxAge) {
+        ls.recordShed();
+        Response r = new Response(ResponseCode.SERVICE_UNAVAILABLE);
+        r.getOptions().setMaxAge(maxAge);
+        ex.sendResponse(r);
+    }
+    
+    /**
+     * Check if an authenticated request is authorized and deliver it 
+     * to the resource if it is.
+     * 
+     * @param ex  the exchange
+     * @param subject  the authenticated identity of the requester
+     */
+    private void authorize(final Exchange ex, String subject) {
+        Request request = ex.getCurrentRequest();
+        Response r = null;
+        long generation = this.tr.getGeneration();
         String resource = request.getOptions().getUriPathString();
         String action = request.getCode().toString();  
+        
+        //Later blocks of a transfer that was authorized when it started
+        BlockOption block2 = request.getOptions().getBlock2();
+        if (block2 != null && block2.getNum() > 0 
+                && this.blocks.isAuthorized(request.getSource(), 
+                        request.getSourcePort(), subject, resource, action, 
+                        generation, this.time.getCurrentTime())) {
+            this.d.deliverRequest(ex);
+            trackBlockTransfer(ex, subject, resource, action, null, 
+                    generation);
+            return;
+        }
+        
+        SessionAuthzCache.Context session = this.sessions.get(
+                request.getSource(), request.getSourcePort(), subject, 
+                generation);
+        if (session == null) {
+            String kid = resolveKid(subject);
+            if (kid == null) {
+                failUnauthz(ex);
+                return;
+            }
+            session = new SessionAuthzCache.Context(
+                    kid, this.tr.getCtis(kid), generation);
+            this.sessions.put(request.getSource(), request.getSourcePort(), 
+                    subject, session);
+        }
       
         try {
-            int res = this.tr.canAccess(kid, subject, resource, action, 
-                    new KissTime(), this.i);
+            int res = this.tr.canAccess(session.getCtis(), subject, 
+                    resource, action, this.time, this.i);
             switch (res) {
             case TokenRepository.OK :
-                this.d.deliverRequest(ex);
+                deliverAuthorized(ex, request, resource, session, subject);
+                trackBlockTransfer(ex, subject, resource, action, session, 
+                        generation);
                 return;
             case TokenRepository.UNAUTHZ :
                failUnauthz(ex);
@@ -227,6 +888,63 @@ public class CoapDeliverer implements MessageDeliverer, Closeable {
         }
     }
     
+    /**
+     * Find the kid used by a subject.  Subjects unknown to the token 
+     * repository go through the subject cache before decoding the 
+     * subject name.
+     * 
+     * @param subject  the subject name
+     * @return  the kid or null if the subject has none
+     */
+    private String resolveKid(String subject) {
+        String kid = this.tr.getKid(subject);
+        if (kid != null) {
+            return kid;
+        }
+        long generation = this.tr.getKeyGeneration();
+        String cached = this.kids.get(subject, generation);
+        if (cached != SubjectKidCache.MISS) {
+            return cached;
+        }
+        kid = decodeKid(subject);
+        this.kids.put(subject, kid, generation);
+        return kid;
+    }
+    
+    /**
+     * Get the kid from a subject name that is the Base64 encoded 
+     * kid map of a psk_identity.
+     * 
+     * @param subject  the subject name
+     * @return  the kid or null if the subject is not a kid map
+     */
+    private static String decodeKid(String subject) {
+        try {
+            CBORObject cbor = CBORObject.DecodeFromBytes(
+                    Base64.getDecoder().decode(subject));
+            if (cbor.getType().equals(CBORType.Map)) {
+               CBORObject ckid = cbor.get(KeyKeys.KeyId.AsCBOR());
+               if (ckid != null && ckid.getType().equals(
+                       CBORType.ByteString)) {
+                  return Base64.getEncoder().encodeToString(
+                          ckid.GetByteString());
+               } 
+               //No kid in that CBOR map or it isn't a bstr
+               return null;
+            } 
+            //Some weird CBOR that is not a map here
+            return null;
+        } catch (CBORException e) {//Really no kid found for that subject
+            LOGGER.finest("Error while trying to parse some "
+                    + "subject identity to CBOR: " + e.getMessage());
+            return null;
+        } catch (IllegalArgumentException e) {//Text was not Base64 encoded
+            LOGGER.finest("Error: " + e.getMessage() 
+            + " while trying to Base64 decode this: " + subject);
+            return null;
+        }
+    }
+    
     /**
      * Fail a request with 4.01 Unauthorized.
      * 
@@ -245,6 +963,7 @@ public class CoapDeliverer implements MessageDeliverer, Closeable {
 
     @Override
     public void close() throws IOException {
+        this.observers.close();
         try {
             this.tr.close();
         } catch (AceException e) {
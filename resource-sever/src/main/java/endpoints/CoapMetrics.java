@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package endpoints;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+
+import utility.IngestionMetrics;
+
+/**
+ * A CoAP resource exposing the token ingestion metrics of the RS.
+ * 
+ * GET returns a CBOR map from stage names to the latency statistics of 
+ * that stage (see <code>LatencyHistogram.getCBOR()</code>), 
+ * DELETE resets the statistics.
+ * 
+ * Note that this resource is under access control like any other 
+ * resource of the RS.
+ *
+ */
+public class CoapMetrics extends CoapResource {
+
+    /**
+     * Constructor.
+     */
+    public CoapMetrics() {
+        super("metrics");
+        getAttributes().setTitle("Token ingestion metrics");
+    }
+    
+    @Override
+    public void handleGET(CoapExchange exchange) {
+        exchange.respond(ResponseCode.CONTENT, 
+                IngestionMetrics.getCBOR().EncodeToBytes(), 
+                MediaTypeRegistry.APPLICATION_CBOR);
+    }
+    
+    @Override
+    public void handleDELETE(CoapExchange exchange) {
+        IngestionMetrics.reset();
+        exchange.respond(ResponseCode.DELETED);
+    }
+}
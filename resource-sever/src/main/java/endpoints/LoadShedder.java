@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package endpoints;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when <code>CoapDeliverer</code> sheds load by answering requests
+ * immediately with 5.03 Service Unavailable, instead of letting them queue
+ * up and be retransmitted by the clients.
+ * 
+ * The load is the larger of the number of requests in flight relative to
+ * its threshold, and the moving average of the request latency relative
+ * to its threshold.  While no request is in flight the latency average 
+ * is halved for each latency threshold that passed since the last request
+ * finished, so that the latency of a past burst does not shed requests 
+ * forever.  Requests are shed according to their priority class:
+ * new sessions once the load reaches 1, already authorized sessions once
+ * it reaches <code>SESSION_LOAD</code>, and unprotected resources such as
+ * authz-info once it reaches <code>PUBLIC_LOAD</code>.
+ * 
+ * The Max-Age of the 5.03 response is the estimated time in seconds until
+ * the backlog drains, the average latency scaled by the load, between 1 
+ * and <code>MAX_AGE_LIMIT</code>.
+ * 
+ * Only requests passing through the deliverer are counted, the queue of 
+ * the Californium protocol stage itself is not visible here.  Load 
+ * shedding therefore requires the EXECUTOR dispatch mode of 
+ * <code>CoapDeliverer</code>: requests to protected resources are then 
+ * counted from the moment they are queued in the dispatch pool, which is
+ * where the backlog builds up, while the protocol stage only hands them 
+ * over.
+ */
+public class LoadShedder {
+    
+    /**
+     * The priority classes of requests
+     */
+    public enum Priority {
+        /**
+         * Requests to unprotected resources, e.g. authz-info
+         */
+        PUBLIC,
+        /**
+         * Requests over sessions that already have an authorization 
+         * context
+         */
+        SESSION,
+        /**
+         * Requests over sessions that are not authorized yet
+         */
+        NEW
+    }
+    
+    /**
+     * The load at which already authorized sessions are shed
+     */
+    public static final double SESSION_LOAD = 1.5;
+    
+    /**
+     * The load at which requests to unprotected resources are shed
+     */
+    public static final double PUBLIC_LOAD = 2.0;
+    
+    /**
+     * The largest Max-Age in seconds sent with a 5.03
+     */
+    public static final long MAX_AGE_LIMIT = 60L;
+    
+    /**
+     * The weight of a new sample in the latency average, as right shift
+     */
+    private static final int EWMA_SHIFT = 3;
+    
+    /**
+     * The number of requests in flight at which new sessions are shed
+     */
+    private final int maxInFlight;
+    
+    /**
+     * The average latency in nanoseconds at which new sessions are shed
+     */
+    private final long maxLatency;
+    
+    /**
+     * The number of requests in flight
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+    
+    /**
+     * The moving average of the request latency in nanoseconds
+     */
+    private final AtomicLong latency = new AtomicLong();
+    
+    /**
+     * The time in nanoseconds the last request finished
+     */
+    private final AtomicLong lastDone = new AtomicLong(System.nanoTime());
+    
+    /**
+     * The number of shed requests
+     */
+    private final AtomicLong shed = new AtomicLong();
+    
+    /**
+     * Constructor.
+     * 
+     * @param maxInFlight  the number of requests in flight at which new 
+     *     sessions are shed
+     * @param maxLatencyMillis  the average request latency in milliseconds
+     *     at which new sessions are shed
+     */
+    public LoadShedder(int maxInFlight, long maxLatencyMillis) {
+        if (maxInFlight < 1 || maxLatencyMillis < 1) {
+            throw new IllegalArgumentException(
+                    "Thresholds must be positive");
+        }
+        this.maxInFlight = maxInFlight;
+        this.maxLatency = TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis);
+    }
+    
+    /**
+     * @return  the current load, 1 meaning that a threshold is reached
+     */
+    public double getLoad() {
+        int n = this.inFlight.get();
+        return Math.max((double)n / this.maxInFlight, 
+                (double)currentLatency(n) / this.maxLatency);
+    }
+    
+    /**
+     * Get the latency average, decayed if no request is in flight.
+     * 
+     * @param n  the number of requests in flight
+     * @return  the latency average in nanoseconds
+     */
+    private long currentLatency(int n) {
+        long avg = this.latency.get();
+        if (n > 0) {
+            return avg;
+        }
+        long halvings = (System.nanoTime() - this.lastDone.get()) 
+                / this.maxLatency;
+        return halvings >= Long.SIZE ? 0L : avg >> halvings;
+    }
+    
+    /**
+     * Check if a request of the given priority should be shed.
+     * 
+     * @param priority  the priority class of the request
+     * @return  the Max-Age in seconds for the 5.03 response, or -1 if the 
+     *     request should be processed
+     */
+    public long check(Priority priority) {
+        double load = getLoad();
+        double limit;
+        switch (priority) {
+        case PUBLIC:
+            limit = PUBLIC_LOAD;
+            break;
+        case SESSION:
+            limit = SESSION_LOAD;
+            break;
+        case NEW:
+        default:
+            limit = 1.0;
+        }
+        if (load < limit) {
+            return -1L;
+        }
+        double drain = currentLatency(this.inFlight.get()) * load 
+                / TimeUnit.SECONDS.toNanos(1);
+        return Math.min(MAX_AGE_LIMIT, Math.max(1L, (long)Math.ceil(drain)));
+    }
+    
+    /**
+     * Record that a request was shed.
+     */
+    public void recordShed() {
+        this.shed.incrementAndGet();
+    }
+    
+    /**
+     * Record that a request was accepted for processing.
+     * 
+     * @return  the start time to pass to <code>done()</code>
+     */
+    public long start() {
+        this.inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+    
+    /**
+     * Record that the processing of a request finished.
+     * 
+     * @param start  the start time returned by <code>start()</code>
+     */
+    public void done(long start) {
+        long now = System.nanoTime();
+        long sample = now - start;
+        this.latency.updateAndGet(
+                avg -> avg + ((sample - avg) >> EWMA_SHIFT));
+        this.lastDone.set(now);
+        this.inFlight.decrementAndGet();
+    }
+    
+    /**
+     * @return  the number of requests in flight
+     */
+    public int getInFlight() {
+        return this.inFlight.get();
+    }
+    
+    /**
+     * @return  the average request latency in nanoseconds, not decayed
+     */
+    public long getLatency() {
+        return this.latency.get();
+    }
+    
+    /**
+     * @return  the number of requests shed so far
+     */
+    public long getShed() {
+        return this.shed.get();
+    }
+}
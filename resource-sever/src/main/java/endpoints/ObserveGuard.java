@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package endpoints;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.observe.ObserveRelation;
+
+import ace.TimeProvider;
+import utility.AsInfo;
+import utility.TokenRepository;
+
+/**
+ * Ties the observations of protected resources to the token that 
+ * authorized their registration.
+ * 
+ * Notifications are sent by the resources directly and are not checked 
+ * again by <code>CoapDeliverer</code>.  Instead this guard periodically 
+ * checks the authorizing tokens and cancels an observation with a 4.01 
+ * Unauthorized notification once its token has expired or was removed 
+ * from the token repository.
+ */
+class ObserveGuard {
+    
+    /**
+     * The logger
+     */
+    private static final Logger LOGGER 
+        = Logger.getLogger(ObserveGuard.class.getName());
+    
+    /**
+     * The default interval between checks in milliseconds
+     */
+    static final long DEFAULT_INTERVAL = 1000L;
+    
+    /**
+     * A guarded observation.
+     */
+    private static final class Guarded {
+        private final String cti;
+        private final Long exp;
+        
+        private Guarded(String cti, Long exp) {
+            this.cti = cti;
+            this.exp = exp;
+        }
+    }
+    
+    /**
+     * The token repository
+     */
+    private final TokenRepository tr;
+    
+    /**
+     * The time provider
+     */
+    private final TimeProvider time;
+    
+    /**
+     * The AS information sent with the 4.01 notification
+     */
+    private final AsInfo asInfo;
+    
+    /**
+     * Maps the observations to their authorizing tokens
+     */
+    private final Map<ObserveRelation, Guarded> relations = new HashMap<>();
+    
+    /**
+     * The repository generation at the last check
+     */
+    private long generation = -1L;
+    
+    /**
+     * The earliest expiration time of a guarded token, Long.MAX_VALUE if
+     * none expires
+     */
+    private long nextExpiry = Long.MAX_VALUE;
+    
+    /**
+     * The checker, created with the first observation
+     */
+    private ScheduledExecutorService checker = null;
+    
+    /**
+     * The interval between checks in milliseconds
+     */
+    private final long interval;
+    
+    /**
+     * Constructor.
+     * 
+     * @param tr  the token repository
+     * @param time  the time provider
+     * @param asInfo  the AS information sent with the 4.01 notification
+     * @param interval  the interval between checks in milliseconds
+     */
+    ObserveGuard(TokenRepository tr, TimeProvider time, AsInfo asInfo, 
+            long interval) {
+        this.tr = tr;
+        this.time = time;
+        this.asInfo = asInfo;
+        this.interval = interval;
+    }
+    
+    /**
+     * Guard an observation.  The registration need not be answered yet, 
+     * e.g. if the resource responds asynchronously.
+     * 
+     * @param relation  the observation
+     * @param cti  the cti of the token that authorized the registration
+     */
+    synchronized void guard(ObserveRelation relation, String cti) {
+        Long exp = this.tr.getExpiration(cti);
+        this.relations.put(relation, new Guarded(cti, exp));
+        if (exp != null && exp < this.nextExpiry) {
+            this.nextExpiry = exp;
+        }
+        if (this.checker == null) {
+            this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "ObserveGuard-checker");
+                t.setDaemon(true);
+                return t;
+            });
+            this.checker.scheduleWithFixedDelay(this::check, this.interval, 
+                    this.interval, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Forget the observations that were cancelled and cancel the 
+     * observations whose token has expired or was removed.  The tokens 
+     * are only checked again if one expired or the repository changed 
+     * since the last check.
+     */
+    void check() {
+        List<ObserveRelation> cancel = new ArrayList<>();
+        synchronized (this) {
+            long now = this.time.getCurrentTime();
+            long gen = this.tr.getGeneration();
+            boolean checkTokens 
+                = gen != this.generation || now > this.nextExpiry;
+            if (checkTokens) {
+                this.generation = gen;
+                this.nextExpiry = Long.MAX_VALUE;
+            }
+            for (Map.Entry<ObserveRelation, Guarded> e 
+                    : new ArrayList<>(this.relations.entrySet())) {
+                Guarded g = e.getValue();
+                if (isCancelled(e.getKey())) {
+                    this.relations.remove(e.getKey());
+                } else if (!checkTokens) {
+                    continue;
+                } else if ((g.exp != null && g.exp < now) 
+                        || !this.tr.hasToken(g.cti)) {
+                    this.relations.remove(e.getKey());
+                    cancel.add(e.getKey());
+                } else if (g.exp != null && g.exp < this.nextExpiry) {
+                    this.nextExpiry = g.exp;
+                }
+            }
+        }
+        for (ObserveRelation relation : cancel) {
+            LOGGER.fine("Cancelling observation of " 
+                    + relation.getResource().getURI() + " by " 
+                    + relation.getSource() + ", token no longer valid");
+            Response r = new Response(ResponseCode.UNAUTHORIZED);
+            r.setPayload(this.asInfo.getCBOR().EncodeToBytes());
+            relation.getExchange().sendResponse(r);
+            relation.cancel();
+        }
+    }
+    
+    /**
+     * Check if an observation was cancelled by the client or the 
+     * resource, or if its registration failed.  An observation whose 
+     * registration was not answered yet is not established either, but 
+     * is still pending.
+     * 
+     * @param relation  the observation
+     * @return  true if the observation was cancelled
+     */
+    private static boolean isCancelled(ObserveRelation relation) {
+        //Read the response first, the relation is established before the
+        //response to the registration is set
+        boolean answered = relation.getExchange().getResponse() != null;
+        return answered && !relation.isEstablished();
+    }
+    
+    /**
+     * @return  the number of guarded observations
+     */
+    synchronized int size() {
+        return this.relations.size();
+    }
+    
+    /**
+     * Stop checking the observations.
+     */
+    synchronized void close() {
+        if (this.checker != null) {
+            this.checker.shutdownNow();
+            this.checker = null;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package endpoints;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.californium.core.coap.OptionSet;
+
+/**
+ * A bounded cache of GET responses of resources that opt in by 
+ * implementing <code>CacheableResource</code>, keyed by the resource path 
+ * and the requested content-format.
+ * 
+ * The cache knows nothing about access control, <code>CoapDeliverer</code>
+ * only consults it after the request has been authorized.
+ * 
+ * A response is only cached if its resource was not modified since the 
+ * request was delivered.  Each invalidation stamps the path of the 
+ * resource with the value of a counter, and <code>put()</code> refuses 
+ * responses to requests delivered before the latest stamp of their path,
+ * as given by <code>version()</code>.
+ * 
+ * The least recently used entry is evicted when the cache is full.
+ */
+class ResponseCache {
+    
+    /**
+     * The default maximum number of cached responses
+     */
+    static final int DEFAULT_MAX_ENTRIES = 256;
+    
+    /**
+     * The length of the generated ETags in bytes
+     */
+    private static final int ETAG_LENGTH = 8;
+    
+    /**
+     * A cached response.
+     */
+    static final class Entry {
+        
+        /**
+         * The path of the resource
+         */
+        private final String path;
+        
+        /**
+         * The payload
+         */
+        private final byte[] payload;
+        
+        /**
+         * The options of the response, without ETag, Max-Age, Block and
+         * Observe options
+         */
+        private final OptionSet options;
+        
+        /**
+         * The ETag generated from the payload
+         */
+        private final byte[] etag;
+        
+        /**
+         * The time in milliseconds after which the entry is stale
+         */
+        private final long expires;
+        
+        /**
+         * Constructor.
+         * 
+         * @param path  the path of the resource
+         * @param payload  the payload
+         * @param options  the options of the response, copied
+         * @param expires  the time in milliseconds after which the entry 
+         *     is stale
+         */
+        private Entry(String path, byte[] payload, OptionSet options, 
+                long expires) {
+            this.path = path;
+            this.payload = payload;
+            this.options = new OptionSet(options).clearETags()
+                    .removeMaxAge().removeBlock1().removeBlock2()
+                    .removeObserve();
+            this.etag = etag(payload, this.options.hasContentFormat() 
+                    ? this.options.getContentFormat() : -1);
+            this.expires = expires;
+        }
+        
+        /**
+         * @return  the payload
+         */
+        byte[] getPayload() {
+            return this.payload;
+        }
+        
+        /**
+         * @return  a copy of the options of the response, without ETag, 
+         *     Max-Age, Block and Observe options
+         */
+        OptionSet getOptions() {
+            return new OptionSet(this.options);
+        }
+        
+        /**
+         * @return  the ETag
+         */
+        byte[] getEtag() {
+            return this.etag;
+        }
+        
+        /**
+         * @param now  the current time in milliseconds
+         * @return  the remaining freshness in seconds, rounded up
+         */
+        long getMaxAge(long now) {
+            return (this.expires - now + 999L) / 1000L;
+        }
+    }
+    
+    /**
+     * The maximum number of cached responses
+     */
+    private final int maxEntries;
+    
+    /**
+     * Maps the path and content-format to the cached response
+     */
+    private final LinkedHashMap<String, Entry> entries;
+    
+    /**
+     * Maps the paths of the most recently invalidated resources to the 
+     * stamp of their last invalidation
+     */
+    private final LinkedHashMap<String, Long> invalidated;
+    
+    /**
+     * The counter the invalidations are stamped with
+     */
+    private long clock = 0L;
+    
+    /**
+     * The latest stamp dropped from <code>invalidated</code>, assumed for 
+     * all paths not in there
+     */
+    private long floor = 0L;
+    
+    /**
+     * Constructor.
+     * 
+     * @param maxEntries  the maximum number of cached responses
+     */
+    ResponseCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException(
+                    "Cache must hold at least one entry");
+        }
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, Entry> eldest) {
+                return size() > ResponseCache.this.maxEntries;
+            }
+        };
+        this.invalidated 
+            = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, Long> eldest) {
+                if (size() > ResponseCache.this.maxEntries) {
+                    ResponseCache.this.floor = Math.max(
+                            ResponseCache.this.floor, eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+    
+    /**
+     * Build the cache key of a request.
+     * 
+     * @param path  the path of the resource
+     * @param accept  the requested content-format, -1 if none
+     * @return  the key
+     */
+    private static String key(String path, int accept) {
+        return accept + ":" + path;
+    }
+    
+    /**
+     * Get a fresh cached response.
+     * 
+     * @param path  the path of the resource
+     * @param accept  the requested content-format, -1 if none
+     * @param now  the current time in milliseconds
+     * @return  the cached response or null if there is no fresh one
+     */
+    synchronized Entry get(String path, int accept, long now) {
+        String key = key(path, accept);
+        Entry e = this.entries.get(key);
+        if (e != null && e.expires <= now) {
+            this.entries.remove(key);
+            return null;
+        }
+        return e;
+    }
+    
+    /**
+     * Get the version of the cache to pass to <code>put()</code>, to be 
+     * taken before the request is delivered to the resource.
+     * 
+     * @return  the current version
+     */
+    synchronized long version() {
+        return this.clock;
+    }
+    
+    /**
+     * Cache a response, unless its resource was invalidated since the 
+     * given version was taken.
+     * 
+     * @param path  the path of the resource
+     * @param accept  the requested content-format, -1 if none
+     * @param payload  the payload of the response
+     * @param options  the options of the response
+     * @param expires  the time in milliseconds after which the response 
+     *     is stale
+     * @param version  the version taken before the request was delivered
+     * @return  the new entry or null if the response may be stale
+     */
+    synchronized Entry put(String path, int accept, byte[] payload, 
+            OptionSet options, long expires, long version) {
+        Long stamp = this.invalidated.get(path);
+        if ((stamp == null ? this.floor : stamp) > version) {
+            return null;
+        }
+        Entry e = new Entry(path, payload, options, expires);
+        this.entries.put(key(path, accept), e);
+        return e;
+    }
+    
+    /**
+     * Drop the cached responses of a resource after it was modified, and
+     * refuse the responses to requests delivered before.
+     * 
+     * @param path  the path of the resource
+     */
+    synchronized void invalidate(String path) {
+        this.invalidated.put(path, ++this.clock);
+        Iterator<Entry> it = this.entries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().path.equals(path)) {
+                it.remove();
+            }
+        }
+    }
+    
+    /**
+     * @return  the number of cached responses
+     */
+    synchronized int size() {
+        return this.entries.size();
+    }
+    
+    /**
+     * Generate an ETag from a payload and its content-format.
+     * 
+     * @param payload  the payload
+     * @param contentFormat  the content-format
+     * @return  the ETag
+     */
+    private static byte[] etag(byte[] payload, int contentFormat) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update((byte)(contentFormat >> 8));
+            md.update((byte)contentFormat);
+            return Arrays.copyOf(md.digest(payload), ETAG_LENGTH);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(
+                    "SHA-256 not available: " + e.getMessage());
+        }
+    }
+}
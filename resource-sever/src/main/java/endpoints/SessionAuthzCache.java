@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package endpoints;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A bounded store of authorization contexts for DTLS sessions.  A context 
+ * holds the kid resolved for the peer and the tokens bound to that kid, 
+ * so that requests over an established session only need to be checked 
+ * against this precomputed set of tokens.
+ * 
+ * Sessions are identified by the address and port of the peer together 
+ * with its authenticated identity, which are fixed for a DTLS session.  
+ * A context is stale once the token repository changed after it was 
+ * built, as signalled by <code>TokenRepository.getGeneration()</code>.
+ * 
+ * The least recently used context is evicted when the store is full.
+ */
+class SessionAuthzCache {
+    
+    /**
+     * The default maximum number of sessions
+     */
+    static final int DEFAULT_MAX_SESSIONS = 4096;
+    
+    /**
+     * The authorization context of a session.
+     */
+    static final class Context {
+        
+        /**
+         * The kid of the pop-key used by the peer
+         */
+        private final String kid;
+        
+        /**
+         * The ids (cti) of the tokens bound to the kid
+         */
+        private final Set<String> ctis;
+        
+        /**
+         * The repository generation this context was built from
+         */
+        private final long generation;
+        
+        /**
+         * Constructor.
+         * 
+         * @param kid  the kid of the pop-key used by the peer
+         * @param ctis  the ids of the tokens bound to the kid
+         * @param generation  the repository generation when building of
+         *     this context started
+         */
+        Context(String kid, Set<String> ctis, long generation) {
+            this.kid = kid;
+            this.ctis = ctis;
+            this.generation = generation;
+        }
+        
+        /**
+         * @return  the kid of the pop-key used by the peer
+         */
+        String getKid() {
+            return this.kid;
+        }
+        
+        /**
+         * @return  the ids (cti) of the tokens bound to the kid
+         */
+        Set<String> getCtis() {
+            return this.ctis;
+        }
+    }
+    
+    /**
+     * Identifies a DTLS session.
+     */
+    private static final class Key {
+        private final InetAddress address;
+        private final int port;
+        private final String subject;
+        
+        private Key(InetAddress address, int port, String subject) {
+            this.address = address;
+            this.port = port;
+            this.subject = subject;
+        }
+        
+        @Override
+        public int hashCode() {
+            return (Objects.hashCode(this.address) * 31 + this.port) * 31 
+                    + this.subject.hashCode();
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)o;
+            return this.port == k.port && this.subject.equals(k.subject)
+                    && Objects.equals(this.address, k.address);
+        }
+    }
+    
+    /**
+     * The maximum number of sessions
+     */
+    private final int maxSessions;
+    
+    /**
+     * Maps the sessions to their contexts
+     */
+    private final LinkedHashMap<Key, Context> sessions;
+    
+    /**
+     * Constructor.
+     * 
+     * @param maxSessions  the maximum number of sessions
+     */
+    SessionAuthzCache(int maxSessions) {
+        if (maxSessions < 1) {
+            throw new IllegalArgumentException(
+                    "Cache must hold at least one session");
+        }
+        this.maxSessions = maxSessions;
+        this.sessions = new LinkedHashMap<Key, Context>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Key, Context> eldest) {
+                return size() > SessionAuthzCache.this.maxSessions;
+            }
+        };
+    }
+    
+    /**
+     * Get the context of a session.
+     * 
+     * @param address  the address of the peer
+     * @param port  the port of the peer
+     * @param subject  the authenticated identity of the peer
+     * @param generation  the current generation of the token repository
+     * @return  the context or null if there is none or it is stale
+     */
+    synchronized Context get(InetAddress address, int port, String subject, 
+            long generation) {
+        Key key = new Key(address, port, subject);
+        Context c = this.sessions.get(key);
+        if (c != null && c.generation != generation) {
+            this.sessions.remove(key);
+            return null;
+        }
+        return c;
+    }
+    
+    /**
+     * Attach a context to a session.
+     * 
+     * @param address  the address of the peer
+     * @param port  the port of the peer
+     * @param subject  the authenticated identity of the peer
+     * @param context  the context
+     */
+    synchronized void put(InetAddress address, int port, String subject, 
+            Context context) {
+        this.sessions.put(new Key(address, port, subject), context);
+    }
+    
+    /**
+     * @return  the number of sessions with a context
+     */
+    synchronized int size() {
+        return this.sessions.size();
+    }
+}
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package endpoints;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache mapping the subject name of a DTLS peer to the kid 
+ * decoded from it, including negative entries for subjects that do not 
+ * decode to a kid.
+ * 
+ * The subject of a session never changes, so this allows to skip 
+ * decoding the psk_identity on every request.  Subjects the token 
+ * repository maps to a kid directly are resolved there and not cached.  
+ * All entries are dropped when keys leave the token repository, as 
+ * signalled by <code>TokenRepository.getKeyGeneration()</code>.
+ * 
+ * The least recently used entry is evicted when the cache is full.
+ */
+class SubjectKidCache {
+    
+    /**
+     * The default maximum number of cached subjects
+     */
+    static final int DEFAULT_MAX_ENTRIES = 1024;
+    
+    /**
+     * Returned by <code>get()</code> for a subject that is not cached, 
+     * compared by identity
+     */
+    static final String MISS = new String("miss");
+    
+    /**
+     * The maximum number of cached subjects
+     */
+    private final int maxEntries;
+    
+    /**
+     * Maps the subject name to the kid or to null if it has none
+     */
+    private final LinkedHashMap<String, String> entries;
+    
+    /**
+     * The key generation of the repository the entries were resolved 
+     * against
+     */
+    private long generation = 0L;
+    
+    /**
+     * Constructor.
+     * 
+     * @param maxEntries  the maximum number of cached subjects
+     */
+    SubjectKidCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException(
+                    "Cache must hold at least one entry");
+        }
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, String> eldest) {
+                return size() > SubjectKidCache.this.maxEntries;
+            }
+        };
+    }
+    
+    /**
+     * Look up a subject.
+     * 
+     * @param subject  the subject name
+     * @param generation  the current key generation of the repository
+     * @return  the kid, null for a negative entry, or <code>MISS</code> 
+     *     if the subject is not cached
+     */
+    synchronized String get(String subject, long generation) {
+        if (generation != this.generation) {
+            this.entries.clear();
+            this.generation = generation;
+            return MISS;
+        }
+        if (!this.entries.containsKey(subject)) {
+            return MISS;
+        }
+        return this.entries.get(subject);
+    }
+    
+    /**
+     * Cache the resolution of a subject.
+     * 
+     * @param subject  the subject name
+     * @param kid  the kid or null if the subject has none
+     * @param generation  the key generation of the repository when the 
+     *     lookup started
+     */
+    synchronized void put(String subject, String kid, long generation) {
+        if (generation != this.generation) {
+            //Keys left the repository during the resolution
+            return;
+        }
+        this.entries.put(subject, kid);
+    }
+    
+    /**
+     * @return  the number of cached subjects
+     */
+    synchronized int size() {
+        return this.entries.size();
+    }
+}
@@ -62,12 +62,15 @@ import exception.AceException;
 import ace.COSEparams;
 import ace.Constants;
 import ace.TestConfig;
+import endpoints.AuthzInfoBlock1Interceptor;
+import endpoints.CacheableResource;
 import endpoints.CoapAuthzInfo;
 import endpoints.CoapDeliverer;
+import endpoints.CoapMetrics;
 import utility.DtlspPskStore;
 import cwt.CWT;
 import cwt.CwtCryptoCtx;
-import utility.KissTime;
+import utility.CoarseTime;
 import utility.KissValidator;
 import utility.LocalMessage;
 import utility.AsInfo;
@@ -112,9 +115,11 @@ public class DtlspServer {
     }
     
     /**
-     * Definition of the Temp Resource
+     * Definition of the Temp Resource, its value changes slowly so 
+     * responses can be cached for a few seconds
      */
-    public static class TempResource extends CoapResource {
+    public static class TempResource extends CoapResource 
+            implements CacheableResource {
         
         /**
          * Constructor
@@ -126,6 +131,9 @@ public class DtlspServer {
             
             // set display name
             getAttributes().setTitle("Temp Resource");
+            
+            // allow clients to observe the temperature
+            setObservable(true);
         }
 
         @Override
@@ -134,6 +142,11 @@ public class DtlspServer {
             // respond to the request
             exchange.respond("19.0 C");
         }
+        
+        @Override
+        public long getFreshness() {
+            return 5L;
+        }
     }
     
     private static TokenRepository tr = null;
@@ -165,6 +178,10 @@ public class DtlspServer {
         myResource2.put("temp", actions2);
         myScopes.put("r_temp", myResource2);
         
+        Map<String, Set<String>> myResource3 = new HashMap<>();
+        myResource3.put("metrics", Collections.singleton("GET"));
+        myScopes.put("r_metrics", myResource3);
+        
         KissValidator valid = new KissValidator(Collections.singleton("rs1"),
                 myScopes);
         
@@ -187,7 +204,7 @@ public class DtlspServer {
         
       //Set up the inner Authz-Info library
       ai = new AuthzInfo(tr, Collections.singletonList("AS"), 
-                new KissTime(), 
+                CoarseTime.getShared(), 
                 null,
                 valid, ctx);
       
@@ -196,11 +213,13 @@ public class DtlspServer {
       Resource hello = new HelloWorldResource();
       Resource temp = new TempResource();
       Resource authzInfo = new CoapAuthzInfo(ai);
+      Resource metrics = new CoapMetrics();
 
       rs = new CoapServer();
       rs.add(hello);
       rs.add(temp);
       rs.add(authzInfo);
+      rs.add(metrics);
 
       dpd = new CoapDeliverer(rs.getRoot(), tr, null, asi); 
 
@@ -216,11 +235,16 @@ public class DtlspServer {
         config.setIdentity(asymmetric.AsPrivateKey(), asymmetric.AsPublicKey());
         config.setClientAuthenticationRequired(true);
         DTLSConnector connector = new DTLSConnector(config.build());
-        rs.addEndpoint(
-                new CoapEndpoint(connector, NetworkConfig.getStandard()));
+        CoapEndpoint coaps 
+            = new CoapEndpoint(connector, NetworkConfig.getStandard());
+        //Reassemble blockwise token uploads in CoapAuthzInfo
+        coaps.addInterceptor(new AuthzInfoBlock1Interceptor("authz-info"));
+        rs.addEndpoint(coaps);
         //Add a CoAP (no 's') endpoint for authz-info
-        rs.addEndpoint(new CoapEndpoint(new InetSocketAddress(
-                CoAP.DEFAULT_COAP_PORT)));
+        CoapEndpoint coap = new CoapEndpoint(new InetSocketAddress(
+                CoAP.DEFAULT_COAP_PORT));
+        coap.addInterceptor(new AuthzInfoBlock1Interceptor("authz-info"));
+        rs.addEndpoint(coap);
 //        rs.addEndpoint(new CoapEndpoint(new InetSocketAddress(
 //                5687)));
         
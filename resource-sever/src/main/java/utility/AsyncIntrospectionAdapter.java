@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package utility;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import com.upokecenter.cbor.CBORObject;
+
+import ace.AceException;
+import exception.IntrospectionException;
+
+/**
+ * Makes a blocking introspection handler asynchronous by running it
+ * on a separate executor.
+ * 
+ * This keeps the protocol threads of the CoAP server free while the 
+ * introspection request is waiting for the AS.
+ *
+ */
+public class AsyncIntrospectionAdapter implements AsyncIntrospectionHandler {
+
+    /**
+     * The blocking introspection handler
+     */
+    private IntrospectionHandler handler;
+    
+    /**
+     * The executor running the blocking introspection calls
+     */
+    private Executor executor;
+    
+    /**
+     * Constructor.
+     * 
+     * @param handler  the blocking introspection handler
+     * @param executor  the executor to run the introspection calls on
+     */
+    public AsyncIntrospectionAdapter(IntrospectionHandler handler, 
+            Executor executor) {
+        if (handler == null || executor == null) {
+            throw new IllegalArgumentException(
+                    "Must provide an introspection handler and an executor");
+        }
+        this.handler = handler;
+        this.executor = executor;
+    }
+    
+    @Override
+    public Map<Short, CBORObject> getParams(byte[] tokenReference)
+            throws IntrospectionException, AceException {
+        return this.handler.getParams(tokenReference);
+    }
+
+    @Override
+    public CompletableFuture<Map<Short, CBORObject>> getParamsAsync(
+            byte[] tokenReference) {
+        CompletableFuture<Map<Short, CBORObject>> result 
+            = new CompletableFuture<>();
+        this.executor.execute(() -> {
+            try {
+                result.complete(this.handler.getParams(tokenReference));
+            } catch (IntrospectionException | AceException 
+                    | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+}
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package utility;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import com.upokecenter.cbor.CBORObject;
+
+/**
+ * An introspection handler that can introspect tokens without blocking
+ * the calling thread while waiting for the AS.
+ * 
+ * Implementations still need to provide the blocking 
+ * <code>getParams()</code>, e.g. by waiting for the future returned by
+ * <code>getParamsAsync()</code>.
+ *
+ */
+public interface AsyncIntrospectionHandler extends IntrospectionHandler {
+
+    /**
+     * Get the parameters (claims) for a token reference 
+     * (probably through introspection), without blocking.
+     * 
+     * @param tokenReference  the token reference (cid)
+     * 
+     * @return  a future completing with the map of claims (key to claim 
+     *     value) or null if there is no such tokenReference.  Errors are 
+     *     reported by completing the future exceptionally with an 
+     *     <code>IntrospectionException</code> or an 
+     *     <code>AceException</code>.
+     */
+    public CompletableFuture<Map<Short, CBORObject>> getParamsAsync(
+            byte[] tokenReference);
+    
+}
@@ -31,16 +31,22 @@
  *******************************************************************************/
 package utility;
 
+import java.io.ByteArrayInputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.json.JSONException;
 
+import com.upokecenter.cbor.CBORException;
 import com.upokecenter.cbor.CBORObject;
 import com.upokecenter.cbor.CBORType;
 
@@ -52,9 +58,14 @@ import ace.Constants;
 import ace.Endpoint;
 import ace.Message;
 import ace.TimeProvider;
+import coap.CoapExchangeMessage;
 import cwt.CWT;
+import cwt.ClaimsView;
 import cwt.CwtCryptoCtx;
+import cwt.VerificationResult;
+import cwt.VerifiedTokenCache;
 import exception.IntrospectionException;
+import utility.IngestionMetrics.Stage;
 
 
 /**
@@ -105,6 +116,23 @@ public class AuthzInfo implements Endpoint, AutoCloseable{
 	 */
 	private CwtCryptoCtx ctx;	
 	
+	/**
+	 * The structural check done on tokens before decoding them
+	 */
+	private TokenGuard guard;
+	
+	/**
+	 * The cache of already verified tokens, null if not caching
+	 */
+	private VerifiedTokenCache cache;
+	
+	/**
+	 * Validates and stores the claims of asynchronously processed tokens,
+	 * so that neither the protocol threads nor the threads completing 
+	 * introspections write the token repository to disk
+	 */
+	private final ExecutorService storer;
+	
 	/**
 	 * Constructor.
 	 * 
@@ -118,6 +146,43 @@ public class AuthzInfo implements Endpoint, AutoCloseable{
 	public AuthzInfo(TokenRepository tr, List<String> issuers, 
 			TimeProvider time, IntrospectionHandler intro, 
 			AudienceValidator audience, CwtCryptoCtx ctx) {
+		this(tr, issuers, time, intro, audience, ctx, new TokenGuard());
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param tr  a token repository
+	 * @param issuers  the list of acceptable issuer of access tokens
+	 * @param time  the time provider
+	 * @param intro  the introspection handler (can be null)
+	 * @param audience  the audience validator
+	 * @param ctx  the crypto context to use with the As
+	 * @param guard  the size and structure limits for incoming tokens
+	 */
+	public AuthzInfo(TokenRepository tr, List<String> issuers, 
+	        TimeProvider time, IntrospectionHandler intro, 
+	        AudienceValidator audience, CwtCryptoCtx ctx, TokenGuard guard) {
+	    this(tr, issuers, time, intro, audience, ctx, guard, 
+	            new VerifiedTokenCache());
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param tr  a token repository
+	 * @param issuers  the list of acceptable issuer of access tokens
+	 * @param time  the time provider
+	 * @param intro  the introspection handler (can be null)
+	 * @param audience  the audience validator
+	 * @param ctx  the crypto context to use with the As
+	 * @param guard  the size and structure limits for incoming tokens
+	 * @param cache  the cache of verified tokens (can be null)
+	 */
+	public AuthzInfo(TokenRepository tr, List<String> issuers, 
+	        TimeProvider time, IntrospectionHandler intro, 
+	        AudienceValidator audience, CwtCryptoCtx ctx, TokenGuard guard,
+	        VerifiedTokenCache cache) {
 		this.tr = tr;
 		this.issuers = new ArrayList<>();
 		this.issuers.addAll(issuers);
@@ -125,14 +190,32 @@ public class AuthzInfo implements Endpoint, AutoCloseable{
 		this.intro = intro;
 		this.audience = audience;
 		this.ctx = ctx;
+		this.guard = guard;
+		this.cache = cache;
+		this.storer = Executors.newSingleThreadExecutor(r -> {
+		    Thread t = new Thread(r, "AuthzInfo-storer");
+		    t.setDaemon(true);
+		    return t;
+		});
 	}
 
+	/**
+	 * Only the final checks and storing the token in 
+	 * <code>processClaims()</code> hold the lock of this endpoint.
+	 * Decoding, verifying and introspecting, e.g. for a token in the 
+	 * psk_identity of a DTLS handshake, run concurrently.
+	 */
 	@Override
-	public synchronized Message processMessage(Message msg) {
+	public Message processMessage(Message msg) {
 	    LOGGER.log(Level.INFO, "received message: " + msg);
 	    
 		//1. Check whether it is a CWT or REF type
-	    CBORObject cbor = CBORObject.DecodeFromBytes(msg.getRawPayload());
+	    CBORObject cbor = null;
+	    try {
+	        cbor = decode(msg);
+	    } catch (AceException | CBORException e) {
+	        return tokenRejected(msg, e);
+	    }
 	    Map<Short, CBORObject> claims = null;
 	    if (cbor.getType().equals(CBORType.ByteString)) {
 	        try {
@@ -141,48 +224,416 @@ public class AuthzInfo implements Endpoint, AutoCloseable{
                 LOGGER.severe("Message processing aborted: " + e.getMessage());
                 return msg.failReply(Message.FAIL_INTERNAL_SERVER_ERROR, null);
             } catch (IntrospectionException e) {
-                LOGGER.info("Introspection error, "
-                         + "message processing aborted: " + e.getMessage());
-                if (e.getMessage().isEmpty()) {
-                    return msg.failReply(Message.FAIL_INTERNAL_SERVER_ERROR, null);
-                }
-                CBORObject map = CBORObject.NewMap();
-                map.Add(Constants.ERROR, Constants.INVALID_REQUEST);
-                map.Add(Constants.ERROR_DESCRIPTION, e.getMessage());
-                return msg.failReply(e.getCode(), map);
+                return introspectionFailed(msg, e);
             }
 	    } else if (cbor.getType().equals(CBORType.Array)) {
 	        try {
 	            claims = processCWT(msg);
-	            System.out.println(claims);
 	        } catch (IntrospectionException e) {
-                LOGGER.info("Introspection error, "
-                        + "message processing aborted: " + e.getMessage());
-               if (e.getMessage().isEmpty()) {
-                   return msg.failReply(Message.FAIL_INTERNAL_SERVER_ERROR, null);
-               }
-               CBORObject map = CBORObject.NewMap();
-               map.Add(Constants.ERROR, Constants.INVALID_REQUEST);
-               map.Add(Constants.ERROR_DESCRIPTION, e.getMessage());
-               return msg.failReply(e.getCode(), map);
-	        } catch (AceException | CoseException | InvalidCipherTextException e) {
-	            LOGGER.info("Token invalid: " + e.getMessage());
-	            CBORObject map = CBORObject.NewMap();
-	            map.Add(Constants.ERROR, Constants.UNAUTHORIZED_CLIENT);
-	            map.Add(Constants.ERROR_DESCRIPTION, "Token is invalid");
-                return msg.failReply(Message.FAIL_BAD_REQUEST, map);
+	            return introspectionFailed(msg, e);
 	        } catch (Exception e) {
-	            LOGGER.severe("Unsupported key wrap algorithm in token: " 
-	                    + e.getMessage());
-	            return msg.failReply(Message.FAIL_NOT_IMPLEMENTED, null);
+	            return tokenInvalid(msg, e);
             } 
 	    } else {
+	        return unknownFormat(msg);
+	    }
+	    return processClaims(msg, claims);
+	}
+	
+	/**
+	 * Asynchronous variant of <code>processMessage()</code>.
+	 * 
+	 * The token is decoded and its crypto wrapper is verified on the 
+	 * calling thread, introspection is done through 
+	 * <code>AsyncIntrospectionHandler.getParamsAsync()</code> if the 
+	 * introspection handler supports it, so that the calling thread is not
+	 * blocked while waiting for the AS.  The remaining checks and storing 
+	 * the token are done on a dedicated thread of this endpoint when the 
+	 * introspection result arrives.
+	 * 
+	 * The returned future always completes with a reply, errors are 
+	 * rendered as failure replies.
+	 * 
+	 * @param msg  the incoming message to process
+	 * 
+	 * @return  a future completing with the reply message
+	 */
+	public CompletableFuture<Message> processMessageAsync(Message msg) {
+	    try {
+	        return process(msg);
+	    } catch (RuntimeException e) {
+	        LOGGER.severe("Message processing aborted: " + e.getMessage());
+	        return CompletableFuture.completedFuture(msg.failReply(
+	                Message.FAIL_INTERNAL_SERVER_ERROR, null));
+	    }
+	}
+	
+	/**
+	 * The work of <code>processMessageAsync()</code>, which may throw 
+	 * runtime exceptions on the calling thread.
+	 * 
+	 * @param msg  the incoming message to process
+	 * 
+	 * @return  a future completing with the reply message
+	 */
+	private CompletableFuture<Message> process(Message msg) {
+	    LOGGER.log(Level.INFO, "received message: " + msg);
+	    
+	    //1. Check whether it is a CWT or REF type
+	    CBORObject cbor = null;
+	    try {
+	        cbor = decode(msg);
+	    } catch (AceException | CBORException e) {
+	        return CompletableFuture.completedFuture(tokenRejected(msg, e));
+	    }
+	    if (cbor.getType().equals(CBORType.Array)) {
+	        Map<Short, CBORObject> cwtClaims = null;
+	        try {
+	            cwtClaims = verifyCWT(msg);
+	        } catch (Exception e) {
+	            return CompletableFuture.completedFuture(tokenInvalid(msg, e));
+	        }
+	        return store(msg, introspectAsync(cwtClaims));
+	    }
+	    return processOther(msg, cbor);
+	}
+	
+	/**
+	 * Check a message with the token guard and decode its payload.  The 
+	 * payload of a <code>CoapExchangeMessage</code> is read in place, 
+	 * since it may be a slice of a reassembly buffer.
+	 * 
+	 * @param msg  the incoming message
+	 * 
+	 * @return  the decoded payload
+	 * 
+	 * @throws AceException  if the token guard rejects the payload
+	 * @throws CBORException  if the payload cannot be decoded
+	 */
+	private CBORObject decode(Message msg) throws AceException {
+	    long start = System.nanoTime();
+	    CBORObject cbor = null;
+	    if (msg instanceof CoapExchangeMessage) {
+	        CoapExchangeMessage m = (CoapExchangeMessage)msg;
+	        this.guard.check(m.getPayloadArray(), m.getPayloadOffset(), 
+	                m.getPayloadLength());
+	        //The guard rejected trailing data already
+	        cbor = CBORObject.Read(new ByteArrayInputStream(
+	                m.getPayloadArray(), m.getPayloadOffset(), 
+	                m.getPayloadLength()));
+	    } else {
+	        this.guard.check(msg.getRawPayload());
+	        cbor = CBORObject.DecodeFromBytes(msg.getRawPayload());
+	    }
+	    IngestionMetrics.record(Stage.DECODE, start);
+	    return cbor;
+	}
+	
+	/**
+	 * Asynchronously process a decoded token that is not a CWT, i.e. a 
+	 * reference token or a token of unknown format.
+	 * 
+	 * @param msg  the incoming message
+	 * @param cbor  the decoded payload of the message
+	 * 
+	 * @return  a future completing with the reply message
+	 */
+	private CompletableFuture<Message> processOther(Message msg, 
+	        CBORObject cbor) {
+	    if (!cbor.getType().equals(CBORType.ByteString)) {
+	        return CompletableFuture.completedFuture(unknownFormat(msg));
+	    }
+	    if (this.intro == null) {
+	        LOGGER.severe("Message processing aborted: "
+	                + "Introspection handler not found");
+	        return CompletableFuture.completedFuture(msg.failReply(
+	                Message.FAIL_INTERNAL_SERVER_ERROR, null));
+	    }
+	    return store(msg, introspect(cbor.GetByteString()).thenApply(
+	            params -> {
+	        if (params == null) {
+	            Map<Short, CBORObject> inactive = new HashMap<>();
+	            inactive.put(Constants.ACTIVE, CBORObject.False);
+	            return inactive;
+	        }
+	        return params;
+	    }));
+	}
+	
+	/**
+	 * Asynchronously add the introspection results to the claims of a 
+	 * verified CWT, if we have an introspection handler and the CWT has a
+	 * cti.
+	 * 
+	 * @param cwtClaims  the claims of the CWT
+	 * 
+	 * @return  a future completing with a view of the claims, including 
+	 *     the introspection results
+	 */
+	private CompletableFuture<Map<Short, CBORObject>> introspectAsync(
+	        Map<Short, CBORObject> cwtClaims) {
+	    CBORObject cti = cwtClaims.get(Constants.CTI);
+	    if (this.intro != null && cti != null 
+	            && cti.getType().equals(CBORType.ByteString)) {
+	        final ClaimsView cwtView = ClaimsView.of(cwtClaims);
+	        return introspect(cti.GetByteString()).thenApply(
+	                introClaims -> cwtView.with(introClaims));
+	    }
+	    return CompletableFuture.completedFuture(cwtClaims);
+	}
+	
+	/**
+	 * Validate and store the claims of a token on the storer thread when 
+	 * they are available.
+	 * 
+	 * @param msg  the incoming message
+	 * @param claims  a future completing with the claims of the token
+	 * 
+	 * @return  a future completing with the reply message
+	 */
+	private CompletableFuture<Message> store(Message msg, 
+	        CompletableFuture<Map<Short, CBORObject>> claims) {
+	    return claims.handleAsync((c, t) -> {
+	        if (t == null) {
+	            return processClaims(msg, c);
+	        }
+	        Throwable cause = (t instanceof CompletionException) 
+	                ? t.getCause() : t;
+	        if (cause instanceof IntrospectionException) {
+	            return introspectionFailed(msg, (IntrospectionException)cause);
+	        }
+	        LOGGER.severe("Message processing aborted: " + cause.getMessage());
+	        return msg.failReply(Message.FAIL_INTERNAL_SERVER_ERROR, null);
+	    }, this.storer).exceptionally(t -> {
+	        LOGGER.severe("Message processing aborted: " + t.getMessage());
+	        return msg.failReply(Message.FAIL_INTERNAL_SERVER_ERROR, null);
+	    });
+	}
+	
+	/**
+	 * Process a batch of messages, e.g. from a mass-reconnect of clients.
+	 * 
+	 * This blocks until all replies are ready, see 
+	 * <code>processMessagesAsync()</code>.
+	 * 
+	 * @param msgs  the incoming messages, each containing one token
+	 * 
+	 * @return  the reply messages, in the same order as the messages
+	 */
+	public List<Message> processMessages(List<Message> msgs) {
+	    return processMessagesAsync(msgs).join();
+	}
+	
+	/**
+	 * Asynchronous variant of <code>processMessages()</code>.
+	 * 
+	 * The crypto wrappers of all CWTs in the batch that are not in the 
+	 * cache of verified tokens are verified in parallel with 
+	 * <code>CWT.processCOSE(List, CwtCryptoCtx)</code>, the remaining 
+	 * steps are done like in <code>processMessageAsync()</code>.
+	 * 
+	 * @param msgs  the incoming messages, each containing one token
+	 * 
+	 * @return  a future completing with the reply messages, in the same 
+	 *     order as the messages
+	 */
+	public CompletableFuture<List<Message>> processMessagesAsync(
+	        List<Message> msgs) {
+	    List<CompletableFuture<Message>> replies = new ArrayList<>();
+	    try {
+	        processBatch(msgs, replies);
+	    } catch (RuntimeException e) {
+	        LOGGER.severe("Batch processing aborted: " + e.getMessage());
+	        while (replies.size() < msgs.size()) {
+	            replies.add(null);
+	        }
+	        for (int i = 0; i < msgs.size(); i++) {
+	            if (replies.get(i) == null) {
+	                replies.set(i, CompletableFuture.completedFuture(
+	                        msgs.get(i).failReply(
+	                                Message.FAIL_INTERNAL_SERVER_ERROR, null)));
+	            }
+	        }
+	    }
+	    return CompletableFuture.allOf(replies.toArray(
+	            new CompletableFuture<?>[replies.size()])).thenApply(v -> {
+	        List<Message> done = new ArrayList<>(replies.size());
+	        for (CompletableFuture<Message> reply : replies) {
+	            done.add(reply.join());
+	        }
+	        return done;
+	    });
+	}
+	
+	/**
+	 * The work of <code>processMessagesAsync()</code>, which may throw 
+	 * runtime exceptions on the calling thread.
+	 * 
+	 * @param msgs  the incoming messages
+	 * @param replies  the list to add the future replies to, in the same
+	 *     order as the messages, the replies to CWTs are null until their
+	 *     crypto wrapper has been verified
+	 */
+	private void processBatch(List<Message> msgs, 
+	        List<CompletableFuture<Message>> replies) {
+	    List<byte[]> cwts = new ArrayList<>();
+	    List<Integer> cwtIndexes = new ArrayList<>();
+	    for (int i = 0; i < msgs.size(); i++) {
+	        Message msg = msgs.get(i);
+	        LOGGER.log(Level.INFO, "received message: " + msg);
+	        CBORObject cbor = null;
+	        try {
+	            cbor = decode(msg);
+	        } catch (AceException | CBORException e) {
+	            replies.add(CompletableFuture.completedFuture(
+	                    tokenRejected(msg, e)));
+	            continue;
+	        }
+	        if (cbor.getType().equals(CBORType.Array)) {
+	            cwts.add(msg.getRawPayload());
+	            cwtIndexes.add(i);
+	            replies.add(null);
+	        } else {
+	            replies.add(processOther(msg, cbor));
+	        }
+	    }
+	    
+	    List<VerificationResult> results = (this.cache == null) 
+	            ? CWT.processCOSE(cwts, this.ctx)
+	            : this.cache.processCOSE(cwts, this.ctx, 
+	                    this.time.getCurrentTime());
+	    for (int j = 0; j < results.size(); j++) {
+	        int i = cwtIndexes.get(j);
+	        Message msg = msgs.get(i);
+	        VerificationResult result = results.get(j);
+	        if (result.isValid()) {
+	            replies.set(i, store(msg, 
+	                    introspectAsync(result.getCWT().getClaims())));
+	        } else {
+	            replies.set(i, CompletableFuture.completedFuture(
+	                    tokenInvalid(msg, result.getError())));
+	        }
+	    }
+	}
+	
+	/**
+	 * Introspect a token, asynchronously if the introspection handler
+	 * supports it.
+	 * 
+	 * @param tokenReference  the token reference (cti)
+	 * 
+	 * @return  a future completing with the introspection result, or 
+	 *     exceptionally with an <code>IntrospectionException</code> or
+	 *     <code>AceException</code>
+	 */
+	private CompletableFuture<Map<Short, CBORObject>> introspect(
+	        byte[] tokenReference) {
+	    long start = System.nanoTime();
+	    CompletableFuture<Map<Short, CBORObject>> result = null;
+	    if (this.intro instanceof AsyncIntrospectionHandler) {
+	        result = ((AsyncIntrospectionHandler)this.intro).getParamsAsync(
+	                tokenReference);
+	    } else {
+	        result = new CompletableFuture<>();
+	        try {
+	            result.complete(this.intro.getParams(tokenReference));
+	        } catch (IntrospectionException | AceException e) {
+	            result.completeExceptionally(e);
+	        }
+	    }
+	    return result.whenComplete(
+	            (r, t) -> IngestionMetrics.record(Stage.INTROSPECT, start));
+	}
+	
+	/**
+	 * Create the reply for a failed introspection.
+	 * 
+	 * @param msg  the incoming message
+	 * @param e  the introspection error
+	 * 
+	 * @return  the reply message
+	 */
+	private static Message introspectionFailed(Message msg, 
+	        IntrospectionException e) {
+	    LOGGER.info("Introspection error, "
+	            + "message processing aborted: " + e.getMessage());
+	    if (e.getMessage().isEmpty()) {
+	        return msg.failReply(Message.FAIL_INTERNAL_SERVER_ERROR, null);
+	    }
+	    CBORObject map = CBORObject.NewMap();
+	    map.Add(Constants.ERROR, Constants.INVALID_REQUEST);
+	    map.Add(Constants.ERROR_DESCRIPTION, e.getMessage());
+	    return msg.failReply(e.getCode(), map);
+	}
+	
+	/**
+	 * Create the reply for a CWT that failed processing.
+	 * 
+	 * @param msg  the incoming message
+	 * @param e  the processing error
+	 * 
+	 * @return  the reply message
+	 */
+	private static Message tokenInvalid(Message msg, Exception e) {
+	    if (e instanceof AceException 
+	            || e instanceof exception.AceException
+	            || e instanceof CoseException 
+	            || e instanceof InvalidCipherTextException) {
+	        LOGGER.info("Token invalid: " + e.getMessage());
 	        CBORObject map = CBORObject.NewMap();
-	        map.Add(Constants.ERROR, Constants.INVALID_REQUEST);
-            map.Add(Constants.ERROR_DESCRIPTION, "Unknown token format");
-	        LOGGER.info("Message processing aborted: invalid reuqest");
+	        map.Add(Constants.ERROR, Constants.UNAUTHORIZED_CLIENT);
+	        map.Add(Constants.ERROR_DESCRIPTION, "Token is invalid");
 	        return msg.failReply(Message.FAIL_BAD_REQUEST, map);
 	    }
+	    LOGGER.severe("Unsupported key wrap algorithm in token: " 
+	            + e.getMessage());
+	    return msg.failReply(Message.FAIL_NOT_IMPLEMENTED, null);
+	}
+	
+	/**
+	 * Create the reply for a token that was rejected by the token guard or 
+	 * could not be decoded.
+	 * 
+	 * @param msg  the incoming message
+	 * @param e  the reason for rejecting the token
+	 * 
+	 * @return  the reply message
+	 */
+	private static Message tokenRejected(Message msg, Exception e) {
+	    CBORObject map = CBORObject.NewMap();
+	    map.Add(Constants.ERROR, Constants.INVALID_REQUEST);
+	    map.Add(Constants.ERROR_DESCRIPTION, e.getMessage());
+	    LOGGER.info("Message processing aborted: " + e.getMessage());
+	    return msg.failReply(Message.FAIL_BAD_REQUEST, map);
+	}
+	
+	/**
+	 * Create the reply for a token of unknown format.
+	 * 
+	 * @param msg  the incoming message
+	 * 
+	 * @return  the reply message
+	 */
+	private static Message unknownFormat(Message msg) {
+	    CBORObject map = CBORObject.NewMap();
+	    map.Add(Constants.ERROR, Constants.INVALID_REQUEST);
+	    map.Add(Constants.ERROR_DESCRIPTION, "Unknown token format");
+	    LOGGER.info("Message processing aborted: invalid reuqest");
+	    return msg.failReply(Message.FAIL_BAD_REQUEST, map);
+	}
+	
+	/**
+	 * Validate the claims of a token and store them if they are acceptable.
+	 * 
+	 * @param msg  the incoming message
+	 * @param claims  the claims of the token, including the introspection
+	 *     results if any
+	 * 
+	 * @return  the reply message
+	 */
+	private synchronized Message processClaims(Message msg, 
+	        Map<Short, CBORObject> claims) {
+	    long start = System.nanoTime();
 	    
 	    //2. Check if the token is active, this will only be present if we 
 	    // did introspect
@@ -279,6 +730,8 @@ public class AuthzInfo implements Endpoint, AutoCloseable{
             return msg.failReply(Message.FAIL_BAD_REQUEST, map);
 	    }
 	    
+	    IngestionMetrics.record(Stage.VALIDATE, start);
+	    
 	    //7. Store the claims of this token
 	    CBORObject cti = null;
 	    //Check if we have a sid
@@ -329,22 +782,69 @@ public class AuthzInfo implements Endpoint, AutoCloseable{
 	private Map<Short,CBORObject> processCWT(Message msg) 
 	        throws IntrospectionException, AceException, 
 	        CoseException, Exception {
-	    CWT cwt = CWT.processCOSE(msg.getRawPayload(), this.ctx);
+	    return introspectCWT(verifyCWT(msg));
+    }
+	
+	/**
+	 * Add the introspection results to the claims of a verified CWT, if we
+	 * have an introspection handler and the CWT has a cti.
+	 * 
+	 * @param claims  the claims of the CWT
+	 * 
+	 * @return  a view of the claims, including the introspection results
+	 * 
+	 * @throws AceException 
+	 * @throws IntrospectionException 
+	 */
+	private Map<Short,CBORObject> introspectCWT(Map<Short, CBORObject> claims)
+	        throws IntrospectionException, AceException {
 	    //Check if we can introspect this token
-	    Map<Short, CBORObject> claims = cwt.getClaims();
 	   if (this.intro != null) {
 	       CBORObject cti = claims.get(Constants.CTI);
 	       if (cti != null && cti.getType().equals(CBORType.ByteString)) {
+	           long start = System.nanoTime();
 	           Map<Short, CBORObject> introClaims 
 	               = this.intro.getParams(cti.GetByteString());
-	           if (introClaims != null) {
-	               claims.putAll(introClaims);
-	           }
+	           IngestionMetrics.record(Stage.INTROSPECT, start);
+	           return ClaimsView.of(claims).with(introClaims);
 	       }
 	   }
 	   return claims;
     }
     
+	/**
+	 * Verify the crypto wrapper of a message containing a CWT.
+	 * 
+	 * Tokens that were verified before are taken from the cache, e.g. 
+	 * when a client sends the same token in the psk_identity of every 
+	 * DTLS handshake.
+	 * 
+	 * @param msg  the message
+	 * 
+	 * @return  the claims of the CWT
+	 * 
+	 * @throws CoseException
+	 * @throws Exception  when using a not supported key wrap
+	 */
+	private Map<Short, CBORObject> verifyCWT(Message msg) 
+	        throws CoseException, Exception {
+	    if (msg instanceof CoapExchangeMessage) {
+	        CoapExchangeMessage m = (CoapExchangeMessage)msg;
+	        CWT cwt = (this.cache == null)
+	            ? CWT.processCOSE(m.getPayloadArray(), m.getPayloadOffset(), 
+	                    m.getPayloadLength(), this.ctx)
+	            : this.cache.processCOSE(m.getPayloadArray(), 
+	                    m.getPayloadOffset(), m.getPayloadLength(), this.ctx, 
+	                    this.time.getCurrentTime());
+	        return cwt.getClaims();
+	    }
+	    CWT cwt = (this.cache == null) 
+	            ? CWT.processCOSE(msg.getRawPayload(), this.ctx)
+	            : this.cache.processCOSE(msg.getRawPayload(), this.ctx, 
+	                    this.time.getCurrentTime());
+	    return cwt.getClaims();
+	}
+	
 	/**
 	 * Process a message containing a reference token.
 	 * 
@@ -367,8 +867,10 @@ public class AuthzInfo implements Endpoint, AutoCloseable{
         if (this.intro == null) {
             throw new AceException("Introspection handler not found");
         }
+        long start = System.nanoTime();
         Map<Short, CBORObject> params 
-            = this.intro.getParams(token.GetByteString());        
+            = this.intro.getParams(token.GetByteString());
+        IngestionMetrics.record(Stage.INTROSPECT, start);
         if (params == null) {
             params = new HashMap<>();
             params.put(Constants.ACTIVE, CBORObject.False);
@@ -405,6 +907,7 @@ public class AuthzInfo implements Endpoint, AutoCloseable{
 
     @Override
     public void close() throws AceException, JSONException {
+        this.storer.shutdown();
         this.tr.close();
         
     }	
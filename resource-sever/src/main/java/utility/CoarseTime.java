@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package utility;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import ace.TimeProvider;
+
+/**
+ * A time provider that returns a cached clock value, refreshed by a 
+ * background ticker at a configurable resolution.
+ * 
+ * Reading the time costs a single volatile read and does not allocate,
+ * which makes this provider suitable for the per-request checks of the 
+ * resource server.  The returned time lags the system clock by at most 
+ * the resolution.
+ * 
+ * One instance should be shared by all components of a server, see 
+ * <code>getShared()</code>.
+ */
+public class CoarseTime implements TimeProvider, AutoCloseable {
+    
+    /**
+     * The default resolution in milliseconds
+     */
+    public static final long DEFAULT_RESOLUTION = 10L;
+    
+    /**
+     * The shared instance
+     */
+    private static CoarseTime shared = null;
+    
+    /**
+     * The current time in milliseconds, as of the last tick
+     */
+    private volatile long now;
+    
+    /**
+     * The resolution in milliseconds
+     */
+    private final long resolution;
+    
+    /**
+     * The ticker updating the time
+     */
+    private final ScheduledExecutorService ticker;
+    
+    /**
+     * Constructor, starts the ticker.
+     * 
+     * @param resolution  the resolution in milliseconds, e.g. 1 or 100
+     */
+    public CoarseTime(long resolution) {
+        if (resolution < 1) {
+            throw new IllegalArgumentException(
+                    "Resolution must be at least 1 ms");
+        }
+        this.resolution = resolution;
+        this.now = System.currentTimeMillis();
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "CoarseTime-ticker");
+            t.setDaemon(true);
+            return t;
+        });
+        this.ticker.scheduleAtFixedRate(
+                () -> this.now = System.currentTimeMillis(), 
+                resolution, resolution, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Get the instance shared by the components of this server, creating 
+     * it with the default resolution if it doesn't exist yet.
+     * 
+     * @return  the shared instance
+     */
+    public static synchronized CoarseTime getShared() {
+        if (shared == null) {
+            shared = new CoarseTime(DEFAULT_RESOLUTION);
+        }
+        return shared;
+    }
+    
+    /**
+     * Set the instance shared by the components of this server.  Call
+     * this before creating the components to use another resolution.
+     * 
+     * @param time  the instance to share
+     */
+    public static synchronized void setShared(CoarseTime time) {
+        shared = time;
+    }
+    
+    @Override
+    public long getCurrentTime() {
+        return this.now;
+    }
+    
+    /**
+     * @return  the resolution in milliseconds
+     */
+    public long getResolution() {
+        return this.resolution;
+    }
+    
+    /**
+     * Stop the ticker, the time returned by this provider is frozen 
+     * afterwards.
+     */
+    @Override
+    public void close() {
+        this.ticker.shutdownNow();
+    }
+}
@@ -143,7 +143,8 @@ public class DtlspPskStore implements PskStore {
             return null;
         }
         
-        //We have an access token, continue processing it        
+        //We have an access token, continue processing it, a token that
+        //was sent in an earlier handshake is not verified again
         LocalMessage message = new LocalMessage(0, identity, null, payload);
         LocalMessage res
             = (LocalMessage)this.authzInfo.processMessage(message);
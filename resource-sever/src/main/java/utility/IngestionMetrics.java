@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package utility;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.upokecenter.cbor.CBORObject;
+
+/**
+ * Per-stage latency metrics for the ingestion of access tokens at the
+ * authz-info endpoint.
+ * 
+ * The stages are timed by <code>AuthzInfo</code>, <code>CWT</code> and
+ * <code>TokenRepository</code> and can be read through this class or 
+ * through the <code>CoapMetrics</code> resource.
+ * 
+ * Usage: 
+ * <pre>
+ * long start = System.nanoTime();
+ * ... do the work of a stage ...
+ * start = IngestionMetrics.record(Stage.DECODE, start);
+ * ... do the work of the next stage ...
+ * </pre>
+ *
+ */
+public class IngestionMetrics {
+
+    /**
+     * The stages of token ingestion
+     */
+    public enum Stage {
+        /**
+         * Checking and decoding the CBOR payload of a request
+         */
+        DECODE,
+        /**
+         * Decoding the COSE structure of the token
+         */
+        COSE,
+        /**
+         * Verifying the MAC or signature or decrypting the token, 
+         * successful or not
+         */
+        VERIFY,
+        /**
+         * Decoding the claims of the verified token
+         */
+        CLAIMS,
+        /**
+         * Introspecting the token at the AS
+         */
+        INTROSPECT,
+        /**
+         * Validating the claims of the token
+         */
+        VALIDATE,
+        /**
+         * Storing the token in the token repository
+         */
+        STORE,
+        /**
+         * Persisting the token repository to disk
+         */
+        PERSIST
+    }
+    
+    /**
+     * The histograms for each stage
+     */
+    private static final Map<Stage, LatencyHistogram> histograms 
+        = new EnumMap<>(Stage.class);
+    
+    static {
+        for (Stage s : Stage.values()) {
+            histograms.put(s, new LatencyHistogram());
+        }
+    }
+    
+    /**
+     * Is recording enabled?
+     */
+    private static volatile boolean enabled = true;
+    
+    private IngestionMetrics() {
+        //Only static methods
+    }
+    
+    /**
+     * Record the duration of a stage that started at the given time.
+     * 
+     * @param stage  the stage
+     * @param startNanos  the start of the stage as given by 
+     *     <code>System.nanoTime()</code>
+     * 
+     * @return  the current <code>System.nanoTime()</code>, to be used as 
+     *     start of the next stage
+     */
+    public static long record(Stage stage, long startNanos) {
+        long now = System.nanoTime();
+        if (enabled) {
+            histograms.get(stage).record(now - startNanos);
+        }
+        return now;
+    }
+    
+    /**
+     * @param stage  the stage
+     * 
+     * @return  the histogram of that stage
+     */
+    public static LatencyHistogram getHistogram(Stage stage) {
+        return histograms.get(stage);
+    }
+    
+    /**
+     * Enable or disable recording.  Recording is enabled by default.
+     * 
+     * @param enable  true to record samples, false to ignore them
+     */
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+    
+    /**
+     * Clear the histograms of all stages.
+     */
+    public static void reset() {
+        for (LatencyHistogram h : histograms.values()) {
+            h.reset();
+        }
+    }
+    
+    /**
+     * @return  a CBOR map from the lower case stage names to the CBOR 
+     *     encoding of their histograms
+     */
+    public static CBORObject getCBOR() {
+        CBORObject cbor = CBORObject.NewMap();
+        for (Map.Entry<Stage, LatencyHistogram> e : histograms.entrySet()) {
+            cbor.Add(e.getKey().name().toLowerCase(), e.getValue().getCBOR());
+        }
+        return cbor;
+    }
+}
@@ -31,8 +31,6 @@
  *******************************************************************************/
 package utility;
 
-import java.util.Date;
-
 import ace.TimeProvider;
 
 /**
@@ -45,7 +43,7 @@ public class KissTime implements TimeProvider {
 	
 	@Override
 	public long getCurrentTime() {
-		return new Date().getTime();
+		return System.currentTimeMillis();
 	}
 
 }
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package utility;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.upokecenter.cbor.CBORObject;
+
+/**
+ * A lock-free latency histogram with power-of-two buckets.
+ * 
+ * Bucket i counts the samples with a duration (in nanoseconds) in the range
+ * [2^(i-1), 2^i[, which gives a relative error of at most a factor 2 on 
+ * the reported percentiles.  Recording a sample costs a few atomic 
+ * increments and never blocks, so this can be used on the request path.
+ *
+ */
+public class LatencyHistogram {
+
+    /**
+     * The number of buckets, enough for any positive long value
+     */
+    private static final int BUCKETS = 64;
+    
+    /**
+     * The sample counts per bucket
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    
+    /**
+     * The total number of samples
+     */
+    private final LongAdder count = new LongAdder();
+    
+    /**
+     * The sum of all samples in nanoseconds
+     */
+    private final LongAdder sum = new LongAdder();
+    
+    /**
+     * The largest sample seen so far in nanoseconds
+     */
+    private final AtomicLong max = new AtomicLong();
+    
+    /**
+     * Record a sample.
+     * 
+     * @param nanos  the duration in nanoseconds, negative values are 
+     *     recorded as 0
+     */
+    public void record(long nanos) {
+        long value = (nanos < 0) ? 0 : nanos;
+        this.buckets.incrementAndGet(
+                BUCKETS - Long.numberOfLeadingZeros(value));
+        this.count.increment();
+        this.sum.add(value);
+        long current = this.max.get();
+        while (value > current && !this.max.compareAndSet(current, value)) {
+            current = this.max.get();
+        }
+    }
+    
+    /**
+     * @return  the number of samples recorded
+     */
+    public long getCount() {
+        return this.count.sum();
+    }
+    
+    /**
+     * @return  the mean of the samples in nanoseconds, 0 if there are none
+     */
+    public long getMean() {
+        long n = this.count.sum();
+        return (n == 0) ? 0 : this.sum.sum() / n;
+    }
+    
+    /**
+     * @return  the largest sample in nanoseconds
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+    
+    /**
+     * Returns an upper bound of the given percentile.
+     * 
+     * @param percentile  the percentile between 0.0 and 100.0
+     * 
+     * @return  the upper bound of the bucket containing the percentile 
+     *     in nanoseconds, 0 if there are no samples
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            snapshot[i] = this.buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0) {
+                return Math.min((i == 0) ? 0 : (1L << i) - 1, getMax());
+            }
+        }
+        return getMax();
+    }
+    
+    /**
+     * Clear all recorded samples.  Samples recorded concurrently with
+     * this call may be partially lost.
+     */
+    public void reset() {
+        for (int i=0; i<BUCKETS; i++) {
+            this.buckets.set(i, 0);
+        }
+        this.count.reset();
+        this.sum.reset();
+        this.max.set(0);
+    }
+    
+    /**
+     * @return  a CBOR map with the count, mean, p50, p90, p99 and max of 
+     *     this histogram, all durations in microseconds
+     */
+    public CBORObject getCBOR() {
+        CBORObject cbor = CBORObject.NewMap();
+        cbor.Add("count", getCount());
+        cbor.Add("mean", getMean() / 1000);
+        cbor.Add("p50", getPercentile(50.0) / 1000);
+        cbor.Add("p90", getPercentile(90.0) / 1000);
+        cbor.Add("p99", getPercentile(99.0) / 1000);
+        cbor.Add("max", getMax() / 1000);
+        return cbor;
+    }
+}
@@ -0,0 +1,313 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package utility;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import ace.AceException;
+
+/**
+ * A cheap structural check of a CBOR encoded token, done before the
+ * token is handed to the CBOR and COSE libraries.
+ * 
+ * The check walks the encoded bytes once, without building any objects,
+ * and rejects tokens that exceed the configured size, nesting depth or
+ * array/map lengths, that use a tag that is not allowed, or that are not
+ * well-formed CBOR.  The content of byte and text strings is skipped, 
+ * i.e. the payload of a COSE object is only checked by the COSE library
+ * after the crypto wrapper has been verified.  Hence a token passing the
+ * check can still be rejected by the CBOR library, e.g. for invalid UTF-8
+ * in a text string or for duplicate map keys.
+ *
+ */
+public class TokenGuard {
+
+    /**
+     * The default maximum size of a token in bytes
+     */
+    public static final int DEFAULT_MAX_SIZE = 8192;
+    
+    /**
+     * The default maximum nesting depth of arrays and maps
+     */
+    public static final int DEFAULT_MAX_DEPTH = 8;
+    
+    /**
+     * The default maximum number of entries in an array or map
+     */
+    public static final int DEFAULT_MAX_LENGTH = 64;
+    
+    /**
+     * The tags allowed by default: epoch date (1), CWT (61) and the 
+     * COSE message tags (16, 17, 18, 96, 97, 98)
+     */
+    public static final Set<Long> DEFAULT_TAGS = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList(1L, 16L, 17L, 18L, 61L, 
+                    96L, 97L, 98L)));
+    
+    /**
+     * Marks the remaining items of an indefinite length array or map
+     */
+    private static final long INDEFINITE = -1L;
+    
+    /**
+     * The maximum size of a token in bytes
+     */
+    private final int maxSize;
+    
+    /**
+     * The maximum nesting depth of arrays and maps
+     */
+    private final int maxDepth;
+    
+    /**
+     * The maximum number of entries in an array or map
+     */
+    private final int maxLength;
+    
+    /**
+     * The allowed tags
+     */
+    private final Set<Long> allowedTags;
+    
+    /**
+     * Constructor using the default limits.
+     */
+    public TokenGuard() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_MAX_DEPTH, DEFAULT_MAX_LENGTH, 
+                DEFAULT_TAGS);
+    }
+    
+    /**
+     * Constructor.
+     * 
+     * @param maxSize  the maximum size of a token in bytes
+     * @param maxDepth  the maximum nesting depth of arrays and maps
+     * @param maxLength  the maximum number of entries in an array or map,
+     *     a map entry counts as one
+     * @param allowedTags  the allowed CBOR tags
+     */
+    public TokenGuard(int maxSize, int maxDepth, int maxLength, 
+            Set<Long> allowedTags) {
+        if (maxSize < 1 || maxDepth < 1 || maxLength < 0 
+                || allowedTags == null) {
+            throw new IllegalArgumentException("Invalid token guard limits");
+        }
+        this.maxSize = maxSize;
+        this.maxDepth = maxDepth;
+        this.maxLength = maxLength;
+        this.allowedTags = new HashSet<>(allowedTags);
+    }
+    
+    /**
+     * Check a CBOR encoded token against the limits of this guard.
+     * 
+     * @param token  the encoded token
+     * 
+     * @throws AceException  if the token breaks a limit or is not 
+     *     well-formed CBOR
+     */
+    public void check(byte[] token) throws AceException {
+        check(token, 0, (token == null) ? 0 : token.length);
+    }
+    
+    /**
+     * Check a CBOR encoded token that is a slice of a larger array, e.g.
+     * of a reassembly buffer, against the limits of this guard.
+     * 
+     * @param data  the array holding the encoded token
+     * @param offset  the offset of the token in the array
+     * @param length  the length of the token in bytes
+     * 
+     * @throws AceException  if the token breaks a limit or is not 
+     *     well-formed CBOR
+     */
+    public void check(byte[] data, int offset, int length) 
+            throws AceException {
+        if (data == null || length == 0) {
+            throw new AceException("Token is empty");
+        }
+        if (offset < 0 || length < 0 || length > data.length - offset) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (length > this.maxSize) {
+            throw new AceException("Token exceeds maximum size");
+        }
+        //The number of items left to read on each nesting level
+        long[] remaining = new long[this.maxDepth + 1];
+        //The number of entries read so far on each nesting level
+        long[] entries = new long[this.maxDepth + 1];
+        //The major type of each nesting level, the top level is treated as 
+        //an array with one item
+        int[] types = new int[this.maxDepth + 1];
+        int depth = 0;
+        remaining[0] = 1;
+        types[0] = 4;
+        int pos = offset;
+        int end = offset + length;
+        //Whether the last item read was a tag
+        boolean tagged = false;
+        
+        while (depth > 0 || remaining[0] > 0) {
+            if (remaining[depth] == 0) {
+                depth--;
+                continue;
+            }
+            if (pos >= end) {
+                throw new AceException("Token is truncated");
+            }
+            int initial = data[pos++] & 0xFF;
+            if (initial == 0xFF) { //Break
+                if (remaining[depth] != INDEFINITE || tagged
+                        || (types[depth] == 5 && entries[depth] % 2 != 0)) {
+                    throw new AceException("Unexpected break in token");
+                }
+                remaining[depth] = 0;
+                continue;
+            }
+            int major = initial >>> 5;
+            int info = initial & 0x1F;
+            if ((types[depth] == 2 || types[depth] == 3) 
+                    && (major != types[depth] || info == 31)) {
+                throw new AceException(
+                        "Invalid chunk in indefinite length string");
+            }
+            tagged = false;
+            if (remaining[depth] != INDEFINITE) {
+                remaining[depth]--;
+            } else if (major != 6 && ++entries[depth] > 2L*this.maxLength) {
+                throw new AceException(
+                        "Token exceeds maximum array or map length");
+            }
+            
+            long arg;
+            if (info < 24) {
+                arg = info;
+            } else if (info < 28) {
+                int len = 1 << (info - 24);
+                if (len > end - pos) {
+                    throw new AceException("Token is truncated");
+                }
+                arg = 0;
+                for (int i=0; i<len; i++) {
+                    arg = (arg << 8) | (data[pos++] & 0xFF);
+                }
+            } else if (info == 31 && major >= 2 && major <= 5) {
+                arg = INDEFINITE;
+            } else {
+                throw new AceException("Token is not well-formed CBOR");
+            }
+            
+            switch (major) {
+            case 0: //Unsigned integer
+            case 1: //Negative integer
+                break;
+            case 7: //Simple value or float, already skipped
+                if (info == 24 && arg < 32) {
+                    throw new AceException("Token is not well-formed CBOR");
+                }
+                break;
+            case 2: //Byte string
+            case 3: //Text string
+                if (arg == INDEFINITE) {
+                    depth = push(remaining, entries, types, depth, 
+                            INDEFINITE, major);
+                } else {
+                    if (arg < 0 || arg > end - pos) {
+                        throw new AceException("Token is truncated");
+                    }
+                    pos += (int)arg;
+                }
+                break;
+            case 4: //Array
+            case 5: //Map
+                if (arg != INDEFINITE) {
+                    if (arg < 0 || arg > this.maxLength) {
+                        throw new AceException(
+                                "Token exceeds maximum array or map length");
+                    }
+                    arg = (major == 5) ? 2*arg : arg;
+                }
+                depth = push(remaining, entries, types, depth, arg, major);
+                break;
+            case 6: //Tag, followed by exactly one item
+                if (!this.allowedTags.contains(arg)) {
+                    throw new AceException("Token uses disallowed tag");
+                }
+                if (remaining[depth] != INDEFINITE) {
+                    remaining[depth]++;
+                }
+                tagged = true;
+                break;
+            default:
+                throw new AceException("Token is not well-formed CBOR");
+            }
+        }
+        if (pos != end) {
+            throw new AceException("Token has trailing data");
+        }
+    }
+    
+    /**
+     * Open a new nesting level.
+     * 
+     * @param remaining  the items left per level
+     * @param entries  the entries read per level
+     * @param types  the major type per level
+     * @param depth  the current level
+     * @param items  the number of items in the new level
+     * @param type  the major type of the new level
+     * 
+     * @return  the new level
+     * @throws AceException  if the maximum depth is exceeded
+     */
+    private int push(long[] remaining, long[] entries, int[] types, 
+            int depth, long items, int type) throws AceException {
+        if (depth + 1 > this.maxDepth) {
+            throw new AceException("Token exceeds maximum nesting depth");
+        }
+        remaining[depth + 1] = items;
+        entries[depth + 1] = 0;
+        types[depth + 1] = type;
+        return depth + 1;
+    }
+    
+    /**
+     * @return  the maximum size of a token in bytes
+     */
+    public int getMaxSize() {
+        return this.maxSize;
+    }
+}
@@ -37,12 +37,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import org.bouncycastle.crypto.InvalidCipherTextException;
@@ -56,15 +58,18 @@ import com.upokecenter.cbor.CBORObject;
 import com.upokecenter.cbor.CBORType;
 
 import COSE.CoseException;
-import COSE.Encrypt0Message;
 import COSE.KeyKeys;
 import COSE.OneKey;
 
 import ace.AceException;
 import ace.Constants;
 import ace.TimeProvider;
+import cwt.CWT;
+import cwt.ClaimsView;
 import cwt.CwtCryptoCtx;
+import cwt.EdDSAVerifier;
 import exception.IntrospectionException;
+import utility.IngestionMetrics.Stage;
 
 /**
  * This class is used to store valid access tokens and 
@@ -145,6 +150,17 @@ public class TokenRepository implements AutoCloseable {
 	 */
 	private Map<String, String>sid2kid;
 	
+	/**
+	 * Incremented each time keys are removed from this repository
+	 */
+	private volatile long keyGeneration = 0L;
+	
+	/**
+	 * Incremented each time tokens are added to or removed from this 
+	 * repository
+	 */
+	private volatile long generation = 0L;
+	
 	/**
 	 * The scope validator
 	 */
@@ -221,10 +237,12 @@ public class TokenRepository implements AutoCloseable {
 	        String tokenFile, CwtCryptoCtx ctx) 
 			        throws IOException, AceException {
 	    this.closed = false;
-	    this.cti2claims = new HashMap<>();
-	    this.kid2key = new HashMap<>();
-	    this.cti2kid = new HashMap<>();
-	    this.sid2kid = new HashMap<>();
+	    //Written under the lock of this repository, but read without it
+	    //by the request threads
+	    this.cti2claims = new ConcurrentHashMap<>();
+	    this.kid2key = new ConcurrentHashMap<>();
+	    this.cti2kid = new ConcurrentHashMap<>();
+	    this.sid2kid = new ConcurrentHashMap<>();
 	    this.scopeValidator = scopeValidator;
 	    if (tokenFile == null) {
 	        throw new IllegalArgumentException("Must provide a token file path");
@@ -281,6 +299,7 @@ public class TokenRepository implements AutoCloseable {
 	 */
 	public synchronized CBORObject addToken(Map<Short, CBORObject> claims, 
 	        CwtCryptoCtx ctx, String sid) throws AceException, JSONException {
+	    long start = System.nanoTime();
 		CBORObject so = claims.get(Constants.SCOPE);
 		if (so == null) {
 			throw new AceException("Token has no scope");
@@ -292,7 +311,7 @@ public class TokenRepository implements AutoCloseable {
 		    cticb = CBORObject.FromObject(
 		            buffer.putInt(0, claims.hashCode()).array());
 			cti = Base64.getEncoder().encodeToString(cticb.GetByteString());
-			claims.put(Constants.CTI, cticb);
+			claims = ClaimsView.of(claims).with(Constants.CTI, cticb);
 		} else if (!cticb.getType().equals(CBORType.ByteString)) {
 		    LOGGER.info("Token's cti in not a ByteString");
             throw new AceException("Cti has invalid format");
@@ -328,15 +347,14 @@ public class TokenRepository implements AutoCloseable {
                         + e.getMessage());
             } 
         } else if (cnf.getKeys().contains(Constants.COSE_ENCRYPTED_CBOR)) {
-            Encrypt0Message msg = new Encrypt0Message();
             CBORObject encC = cnf.get(Constants.COSE_ENCRYPTED_CBOR);
           try {
-              msg.DecodeFromCBORObject(encC);
-              msg.decrypt(ctx.getKey());
-              CBORObject keyData = CBORObject.DecodeFromBytes(msg.GetContent());
+              CBORObject keyData = CBORObject.DecodeFromBytes(
+                      CWT.decrypt(ctx, encC));
               OneKey key = new OneKey(keyData);
               processKey(key, sid, cti);
-          } catch (CoseException | InvalidCipherTextException e) {
+          } catch (CoseException | InvalidCipherTextException 
+                  | exception.AceException e) {
               LOGGER.severe("Error while decrypting a cnf claim: "
                       + e.getMessage());
               throw new AceException("Error while decrypting a cnf claim");
@@ -366,10 +384,10 @@ public class TokenRepository implements AutoCloseable {
             throw new AceException("Malformed cnf claim in token");
         }
         
-        //Now store the claims. Need deep copy here
-        Map<Short, CBORObject> foo = new HashMap<>();
-        foo.putAll(claims);
-        this.cti2claims.put(cti, foo);
+        //Now store the claims, views are immutable and need no copy
+        this.cti2claims.put(cti, ClaimsView.of(claims));
+        this.generation++;
+        IngestionMetrics.record(Stage.STORE, start);
         
         persist();
         
@@ -400,6 +418,11 @@ public class TokenRepository implements AutoCloseable {
             LOGGER.severe("kid is not a byte string");
             throw new AceException("COSE_Key contains invalid kid");
         }
+        if (EdDSAVerifier.KEY_TYPE_OKP.equals(key.get(KeyKeys.KeyType))
+                && !EdDSAVerifier.isEd25519(key)) {
+            LOGGER.severe("OKP key is not an Ed25519 public key");
+            throw new AceException("COSE_Key is an unsupported OKP key");
+        }
         this.cti2kid.put(cti, kid);
         this.kid2key.put(kid, key);
         if (sid != null) {
@@ -409,7 +432,8 @@ public class TokenRepository implements AutoCloseable {
             RawPublicKeyIdentity rpk 
                 = new RawPublicKeyIdentity(key.AsPublicKey());
             this.sid2kid.put(rpk.getName(), kid);
-        } else { //Take the kid as sid
+        } else { //Take the kid as sid, also for OKP keys, since Scandium
+                 //has no raw public key identities for them
             this.sid2kid.put(kid, kid);
         }        
     }
@@ -431,6 +455,7 @@ public class TokenRepository implements AutoCloseable {
  
 		//Remove the mapping to the pop key
 		this.cti2kid.remove(cti);
+		this.generation++;
 		
 		//Remove unused keys
 		Set<String> remove = new HashSet<>();
@@ -442,6 +467,9 @@ public class TokenRepository implements AutoCloseable {
 		for (String kid : remove) {
 		    this.kid2key.remove(kid);
 		}
+		if (!remove.isEmpty()) {
+		    this.keyGeneration++;
+		}
 		
 		persist();
 	}
@@ -495,20 +523,82 @@ public class TokenRepository implements AutoCloseable {
 	public int canAccess(String kid, String subject, String resource, 
 	        String action, TimeProvider time, IntrospectionHandler intro) 
 			        throws AceException, IntrospectionException {
-	    //Check if we have tokens for this pop-key
-	    if (!this.cti2kid.containsValue(kid)) {
-	        return UNAUTHZ; //No tokens for this pop-key
+	    return canAccess(getCtis(kid), subject, resource, action, time, 
+	            intro);
+	}
+	
+	/**
+	 * Check if one of a given set of tokens allows access.  This allows 
+	 * callers to collect the tokens of a pop-key once, see 
+	 * <code>getCtis(String)</code>.
+	 *
+	 * @param ctis  the token ids (cti) bound to the pop-key used
+	 * @param subject  the authenticated subject if there is any, can be null
+	 * @param resource  the resource that is accessed
+	 * @param action  the RESTful action on that resource
+	 * @param time  the time provider
+	 * @param intro  the introspection handler, can be null
+	 * @return  1 if there is a token giving access, 0 if there is no token 
+	 * for this resource and user,-1 if the existing token(s) do not authorize 
+	 * the action requested.
+	 * @throws AceException 
+	 * @throws IntrospectionException 
+	 */
+	public int canAccess(Set<String> ctis, String subject, String resource, 
+	        String action, TimeProvider time, IntrospectionHandler intro) 
+	                throws AceException, IntrospectionException {
+	    return check(ctis, subject, resource, action, time, intro, null);
+	}
+	
+	/**
+	 * Find the token that allows access, e.g. to track its lifetime.
+	 *
+	 * @param ctis  the token ids (cti) bound to the pop-key used
+	 * @param subject  the authenticated subject if there is any, can be null
+	 * @param resource  the resource that is accessed
+	 * @param action  the RESTful action on that resource
+	 * @param time  the time provider
+	 * @param intro  the introspection handler, can be null
+	 * @return  the cti of the first token giving access or null if there
+	 *     is none
+	 * @throws AceException 
+	 * @throws IntrospectionException 
+	 */
+	public String getGrantingToken(Set<String> ctis, String subject, 
+	        String resource, String action, TimeProvider time, 
+	        IntrospectionHandler intro) 
+	                throws AceException, IntrospectionException {
+	    String[] granted = new String[1];
+	    if (check(ctis, subject, resource, action, time, intro, granted) 
+	            == OK) {
+	        return granted[0];
 	    }
-	    
-	    //Collect the token id's of matching tokens
-	    Set<String> ctis = new HashSet<>();
-	    for (String cti : this.cti2kid.keySet()) {
-	        if (this.cti2kid.get(cti).equals(kid)) {
-	            ctis.add(cti);
-	        }
+	    return null;
+	}
+	
+	/**
+	 * Check if one of a given set of tokens allows access.
+	 *
+	 * @param ctis  the token ids (cti) bound to the pop-key used
+	 * @param subject  the authenticated subject if there is any, can be null
+	 * @param resource  the resource that is accessed
+	 * @param action  the RESTful action on that resource
+	 * @param time  the time provider
+	 * @param intro  the introspection handler, can be null
+	 * @param granted  receives the cti of the token giving access, 
+	 *     can be null
+	 * @return  the result as for <code>canAccess()</code>
+	 * @throws AceException 
+	 * @throws IntrospectionException 
+	 */
+	private int check(Set<String> ctis, String subject, String resource, 
+	        String action, TimeProvider time, IntrospectionHandler intro,
+	        String[] granted) throws AceException, IntrospectionException {
+	    if (ctis.isEmpty()) {
+	        return UNAUTHZ; //No tokens for this pop-key
 	    }
-	 
 	    
+	    long now = time.getCurrentTime();
 	    boolean methodNA = false;   
 	    for (String cti : ctis) { //All tokens linked to that pop key
 	        //Check if we have the claims for that cti
@@ -537,7 +627,7 @@ public class TokenRepository implements AutoCloseable {
              if (exp != null && !exp.isIntegral()) {
                     throw new AceException("Expiration time is in wrong format");
              }
-             if (exp != null && exp.AsInt64() < time.getCurrentTime()) {
+             if (exp != null && exp.AsInt64() < now) {
                  //Token is expired
                  continue;
              }
@@ -547,7 +637,7 @@ public class TokenRepository implements AutoCloseable {
              if (nbf != null &&  !nbf.isIntegral()) {
                  throw new AceException("NotBefore time is in wrong format");
              }
-             if (nbf != null && nbf.AsInt64() > time.getCurrentTime()) {
+             if (nbf != null && nbf.AsInt64() > now) {
                  //Token not valid yet
                  continue;
              }   
@@ -575,9 +665,15 @@ public class TokenRepository implements AutoCloseable {
                              }
                              if (introspect != null && introspect.get(
                                      Constants.ACTIVE).isTrue()) {
+                                 if (granted != null) {
+                                     granted[0] = cti;
+                                 }
                                  return OK; // Token is active and passed all other tests
                              }
                          }
+                         if (granted != null) {
+                             granted[0] = cti;
+                         }
                         return OK; //We didn't introspect, but the token is ok otherwise
                      }
                     methodNA = true; //scope did match resource but not action
@@ -594,6 +690,7 @@ public class TokenRepository implements AutoCloseable {
 	 * @throws JSONException 
 	 */
 	private void persist() throws AceException, JSONException {
+	    long start = System.nanoTime();
 	    JSONArray config = new JSONArray();
 	    for (String cti : this.cti2claims.keySet()) {
 	        Map<Short, CBORObject> claims = this.cti2claims.get(cti);
@@ -612,6 +709,7 @@ public class TokenRepository implements AutoCloseable {
         } catch (JSONException | IOException e) {
             throw new AceException(e.getMessage());
         }
+        IngestionMetrics.record(Stage.PERSIST, start);
 	}
 	
 	/**
@@ -625,7 +723,7 @@ public class TokenRepository implements AutoCloseable {
 	public OneKey getPoP(String cti) throws AceException {
 	    if (cti != null) {
 	        String kid = this.cti2kid.get(cti);
-	        OneKey key = this.kid2key.get(kid);
+	        OneKey key = kid == null ? null : this.kid2key.get(kid);
 	        if (key == null) {
 	            LOGGER.finest("Token with cti: " + cti 
 	                    + " not found in getPoP()");
@@ -685,6 +783,66 @@ public class TokenRepository implements AutoCloseable {
         }
     }
     
+    /**
+     * Get the expiration time of a token.
+     * 
+     * @param cti  the cti of the token Base64 encoded
+     * @return  the exp claim of the token, or null if the token is 
+     *     unknown or does not expire
+     */
+    public Long getExpiration(String cti) {
+        Map<Short, CBORObject> claims = this.cti2claims.get(cti);
+        if (claims == null) {
+            return null;
+        }
+        CBORObject exp = claims.get(Constants.EXP);
+        if (exp == null || !exp.isIntegral()) {
+            return null;
+        }
+        return exp.AsInt64();
+    }
+    
+    /**
+     * @param cti  the cti of a token Base64 encoded
+     * @return  true if the token is stored in this repository
+     */
+    public boolean hasToken(String cti) {
+        return this.cti2claims.containsKey(cti);
+    }
+    
+    /**
+     * Get the tokens bound to a pop-key.
+     * 
+     * @param kid  the key identifier of the pop-key
+     * @return  the token ids (cti) of the tokens bound to this key
+     */
+    public Set<String> getCtis(String kid) {
+        Set<String> ctis = new HashSet<>();
+        for (Map.Entry<String, String> e : this.cti2kid.entrySet()) {
+            if (e.getValue().equals(kid)) {
+                ctis.add(e.getKey());
+            }
+        }
+        return Collections.unmodifiableSet(ctis);
+    }
+    
+    /**
+     * @return  a counter that changes each time tokens are added to or 
+     *     removed from this repository, allowing authorization state 
+     *     derived from the tokens to detect that it is stale
+     */
+    public long getGeneration() {
+        return this.generation;
+    }
+    
+    /**
+     * @return  a counter that changes each time keys are removed from this
+     *     repository, allowing caches of kids to detect stale entries
+     */
+    public long getKeyGeneration() {
+        return this.keyGeneration;
+    }
+    
     /**
      * @return  a set of all token ids (cti) stored in this repository
      */
@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.AlgorithmID;
+import COSE.OneKey;
+import cwt.CWT;
+import cwt.CwtCryptoCtx;
+import cwt.VerificationResult;
+
+/**
+ * Measures the time to verify a batch of ECDSA P-256 signed CWTs with 
+ * <code>CWT.processCOSE(List, CwtCryptoCtx, ForkJoinPool)</code>, for
+ * pools of different parallelism.  The time per batch should drop close 
+ * to linearly with the parallelism, up to the number of cores.
+ * 
+ * Run with e.g.:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -cp target/classes:target/test-classes:$(cat cp.txt) \
+ *     org.openjdk.jmh.Main BatchVerifyBenchmark
+ * </pre>
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchVerifyBenchmark {
+    
+    /**
+     * The number of tokens per batch
+     */
+    @Param({"1000"})
+    public int batchSize;
+    
+    /**
+     * The parallelism of the pool
+     */
+    @Param({"1", "2", "4", "8"})
+    public int parallelism;
+    
+    /**
+     * The verification context
+     */
+    private CwtCryptoCtx ctx;
+    
+    /**
+     * The encoded tokens
+     */
+    private List<byte[]> tokens;
+    
+    /**
+     * The pool
+     */
+    private ForkJoinPool pool;
+    
+    /**
+     * Create the signed tokens and the pool.
+     * 
+     * @throws Exception
+     */
+    @Setup
+    public void setup() throws Exception {
+        OneKey key = OneKey.generateKey(AlgorithmID.ECDSA_256);
+        CwtCryptoCtx signCtx = CwtCryptoCtx.sign1Create(key, 
+                AlgorithmID.ECDSA_256.AsCBOR());
+        this.ctx = CwtCryptoCtx.sign1Verify(key.PublicKey(), 
+                AlgorithmID.ECDSA_256.AsCBOR());
+        this.tokens = new ArrayList<>(this.batchSize);
+        for (int i = 0; i < this.batchSize; i++) {
+            Map<Short, CBORObject> claims = new HashMap<>();
+            claims.put((short)1, CBORObject.FromObject("AS"));
+            claims.put((short)3, CBORObject.FromObject("rs1"));
+            claims.put((short)7, CBORObject.FromObject(
+                    new byte[]{(byte)(i >> 8), (byte)i}));
+            claims.put((short)12, CBORObject.FromObject("r_temp"));
+            this.tokens.add(new CWT(claims).encode(signCtx).EncodeToBytes());
+        }
+        this.pool = new ForkJoinPool(this.parallelism);
+    }
+    
+    /**
+     * Shut down the pool.
+     */
+    @TearDown
+    public void tearDown() {
+        this.pool.shutdown();
+    }
+    
+    /**
+     * @return  the verification results
+     */
+    @Benchmark
+    public List<VerificationResult> verifyBatch() {
+        return CWT.processCOSE(this.tokens, this.ctx, this.pool);
+    }
+}
@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package benchmarks;
+
+import java.security.Provider;
+import java.security.Security;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.AlgorithmID;
+import COSE.OneKey;
+import cwt.CWT;
+import cwt.CryptoProviders;
+import cwt.CryptoProviders.Primitive;
+import cwt.CwtCryptoCtx;
+
+/**
+ * Compares the crypto providers selectable in <code>CryptoProviders</code>
+ * for processing CWTs protected with HMAC (MAC0), AES-CCM (Encrypt0) and 
+ * ECDSA (Sign1).  "default" is the built-in choice for each primitive: 
+ * the JCA lookup order for HMAC, BouncyCastle's lightweight engine for 
+ * AES-CCM and the COSE library for ECDSA.  For AES-CCM a JDK provider 
+ * only supplies the AES block cipher, the CCM mode is done locally.
+ * 
+ * Run with e.g.:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -cp target/classes:target/test-classes:$(cat cp.txt) \
+ *     org.openjdk.jmh.Main CryptoProviderBenchmark
+ * </pre>
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoProviderBenchmark {
+    
+    /**
+     * The 128 bit test key
+     */
+    private static final byte[] KEY = {0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 
+            0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b, 0x0c, 0x0d, 0x0e, 0x0f};
+    
+    /**
+     * @return  the CWT used in all benchmarks
+     */
+    private static CWT token() {
+        Map<Short, CBORObject> claims = new HashMap<>();
+        claims.put((short)1, CBORObject.FromObject("AS"));
+        claims.put((short)3, CBORObject.FromObject("rs1"));
+        claims.put((short)7, CBORObject.FromObject(new byte[]{0x01, 0x02}));
+        claims.put((short)12, CBORObject.FromObject("r_temp"));
+        return new CWT(claims);
+    }
+    
+    /**
+     * Select a provider for a primitive.
+     * 
+     * @param primitive  the primitive
+     * @param provider  the provider name or "default"
+     * @throws Exception
+     */
+    private static void select(Primitive primitive, String provider) 
+            throws Exception {
+        if (Security.getProvider("BC") == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        CryptoProviders.setProvider(primitive, (Provider)null);
+        if (!provider.equals("default")) {
+            CryptoProviders.setProvider(primitive, provider);
+        }
+    }
+    
+    /**
+     * A MAC0 token with HMAC 256/256
+     */
+    @State(Scope.Benchmark)
+    public static class Hmac {
+        /**
+         * The provider
+         */
+        @Param({"default", "SunJCE", "BC"})
+        public String provider;
+        
+        CwtCryptoCtx ctx;
+        byte[] token;
+        
+        /**
+         * @throws Exception
+         */
+        @Setup
+        public void setup() throws Exception {
+            select(Primitive.HMAC, this.provider);
+            this.ctx = CwtCryptoCtx.mac0(KEY, 
+                    AlgorithmID.HMAC_SHA_256.AsCBOR());
+            this.token = token().encode(this.ctx).EncodeToBytes();
+        }
+    }
+    
+    /**
+     * An Encrypt0 token with AES-CCM-16-64-128
+     */
+    @State(Scope.Benchmark)
+    public static class AesCcm {
+        /**
+         * The provider
+         */
+        @Param({"default", "SunJCE", "BC"})
+        public String provider;
+        
+        CwtCryptoCtx ctx;
+        byte[] token;
+        
+        /**
+         * @throws Exception
+         */
+        @Setup
+        public void setup() throws Exception {
+            select(Primitive.AES_CCM, this.provider);
+            this.ctx = CwtCryptoCtx.encrypt0(KEY, 
+                    AlgorithmID.AES_CCM_16_64_128.AsCBOR());
+            this.token = token().encode(this.ctx).EncodeToBytes();
+        }
+    }
+    
+    /**
+     * A Sign1 token with ECDSA P-256
+     */
+    @State(Scope.Benchmark)
+    public static class Ecdsa {
+        /**
+         * The provider
+         */
+        @Param({"default", "SunEC", "BC"})
+        public String provider;
+        
+        CwtCryptoCtx ctx;
+        byte[] token;
+        
+        /**
+         * @throws Exception
+         */
+        @Setup
+        public void setup() throws Exception {
+            select(Primitive.ECDSA, this.provider);
+            OneKey key = OneKey.generateKey(AlgorithmID.ECDSA_256);
+            this.token = token().encode(CwtCryptoCtx.sign1Create(key, 
+                    AlgorithmID.ECDSA_256.AsCBOR())).EncodeToBytes();
+            this.ctx = CwtCryptoCtx.sign1Verify(key.PublicKey(), 
+                    AlgorithmID.ECDSA_256.AsCBOR());
+        }
+    }
+    
+    /**
+     * @param s  the state
+     * @return  the verified token
+     * @throws Exception
+     */
+    @Benchmark
+    public CWT hmac(Hmac s) throws Exception {
+        return CWT.processCOSE(s.token, s.ctx);
+    }
+    
+    /**
+     * @param s  the state
+     * @return  the decrypted token
+     * @throws Exception
+     */
+    @Benchmark
+    public CWT aesCcm(AesCcm s) throws Exception {
+        return CWT.processCOSE(s.token, s.ctx);
+    }
+    
+    /**
+     * @param s  the state
+     * @return  the verified token
+     * @throws Exception
+     */
+    @Benchmark
+    public CWT ecdsa(Ecdsa s) throws Exception {
+        return CWT.processCOSE(s.token, s.ctx);
+    }
+}
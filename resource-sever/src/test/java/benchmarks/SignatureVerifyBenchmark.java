@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package benchmarks;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.crypto.params.Ed25519PrivateKeyParameters;
+import org.bouncycastle.crypto.signers.Ed25519Signer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.AlgorithmID;
+import COSE.MessageTag;
+import COSE.OneKey;
+import cwt.CWT;
+import cwt.CwtCryptoCtx;
+import cwt.EdDSAVerifier;
+
+/**
+ * Compares verifying Sign1 CWTs signed with Ed25519 and with ECDSA P-256,
+ * as done by <code>CWT.processCOSE()</code> when a token is posted to
+ * authz-info.
+ * 
+ * Run with e.g.:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -cp target/classes:target/test-classes:$(cat cp.txt) \
+ *     org.openjdk.jmh.Main SignatureVerifyBenchmark
+ * </pre>
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignatureVerifyBenchmark {
+    
+    /**
+     * The signature algorithm
+     */
+    @Param({"EdDSA", "ES256"})
+    public String alg;
+    
+    /**
+     * The verification context
+     */
+    private CwtCryptoCtx ctx;
+    
+    /**
+     * The encoded token
+     */
+    private byte[] token;
+    
+    /**
+     * Create the key and the signed token.
+     * 
+     * @throws Exception
+     */
+    @Setup
+    public void setup() throws Exception {
+        Map<Short, CBORObject> claims = new HashMap<>();
+        claims.put((short)1, CBORObject.FromObject("AS"));
+        claims.put((short)3, CBORObject.FromObject("rs1"));
+        claims.put((short)7, CBORObject.FromObject(new byte[]{0x01, 0x02}));
+        claims.put((short)12, CBORObject.FromObject("r_temp"));
+        CWT cwt = new CWT(claims);
+        
+        if (this.alg.equals("ES256")) {
+            OneKey key = OneKey.generateKey(AlgorithmID.ECDSA_256);
+            this.token = cwt.encode(CwtCryptoCtx.sign1Create(key, 
+                    AlgorithmID.ECDSA_256.AsCBOR())).EncodeToBytes();
+            this.ctx = CwtCryptoCtx.sign1Verify(key.PublicKey(), 
+                    AlgorithmID.ECDSA_256.AsCBOR());
+            return;
+        }
+        
+        Ed25519PrivateKeyParameters privateKey 
+            = new Ed25519PrivateKeyParameters(new SecureRandom());
+        CBORObject keyMap = CBORObject.NewMap();
+        keyMap.Add(1, EdDSAVerifier.KEY_TYPE_OKP);
+        keyMap.Add(-1, EdDSAVerifier.CURVE_ED25519);
+        keyMap.Add(-2, privateKey.generatePublicKey().getEncoded());
+        this.ctx = CwtCryptoCtx.sign1Verify(new OneKey(keyMap), 
+                EdDSAVerifier.EDDSA);
+        
+        //The COSE library cannot create EdDSA signatures
+        CBORObject prot = CBORObject.NewMap();
+        prot.Add(1, EdDSAVerifier.EDDSA);
+        byte[] protBytes = prot.EncodeToBytes();
+        byte[] payload = cwt.encode().EncodeToBytes();
+        CBORObject toBeSigned = CBORObject.NewArray();
+        toBeSigned.Add("Signature1");
+        toBeSigned.Add(protBytes);
+        toBeSigned.Add(new byte[0]);
+        toBeSigned.Add(payload);
+        byte[] tbs = toBeSigned.EncodeToBytes();
+        Ed25519Signer signer = new Ed25519Signer();
+        signer.init(true, privateKey);
+        signer.update(tbs, 0, tbs.length);
+        CBORObject msg = CBORObject.NewArray();
+        msg.Add(protBytes);
+        msg.Add(CBORObject.NewMap());
+        msg.Add(payload);
+        msg.Add(signer.generateSignature());
+        this.token = CBORObject.FromObjectAndTag(msg, 
+                MessageTag.Sign1.value).EncodeToBytes();
+    }
+    
+    /**
+     * @return  the verified token
+     * @throws Exception
+     */
+    @Benchmark
+    public CWT verify() throws Exception {
+        return CWT.processCOSE(this.token, this.ctx);
+    }
+}
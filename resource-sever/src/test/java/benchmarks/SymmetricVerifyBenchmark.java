@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.AlgorithmID;
+import cwt.CWT;
+import cwt.CwtCryptoCtx;
+
+/**
+ * Compares the pre-keyed per-thread engines of the MAC0/Encrypt0 fast 
+ * path with the COSE library when processing CWTs.
+ * 
+ * Run with e.g.:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -cp target/classes:target/test-classes:$(cat cp.txt) \
+ *     org.openjdk.jmh.Main SymmetricVerifyBenchmark
+ * </pre>
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SymmetricVerifyBenchmark {
+    
+    /**
+     * The message type and algorithm
+     */
+    @Param({"MAC0_HMAC_SHA_256", "ENCRYPT0_AES_CCM_16_64_128"})
+    public String type;
+    
+    /**
+     * Use the fast path or the COSE library
+     */
+    @Param({"true", "false"})
+    public boolean fastPath;
+    
+    /**
+     * The crypto context
+     */
+    private CwtCryptoCtx ctx;
+    
+    /**
+     * The encoded token
+     */
+    private byte[] token;
+    
+    /**
+     * Create the context and token.
+     * 
+     * @throws Exception
+     */
+    @Setup
+    public void setup() throws Exception {
+        byte[] key = new byte[16];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (byte)i;
+        }
+        if (this.type.startsWith("MAC0")) {
+            this.ctx = CwtCryptoCtx.mac0(key, 
+                    AlgorithmID.HMAC_SHA_256.AsCBOR());
+        } else {
+            this.ctx = CwtCryptoCtx.encrypt0(key, 
+                    AlgorithmID.AES_CCM_16_64_128.AsCBOR());
+        }
+        this.ctx.setSymmetricFastPath(this.fastPath);
+        Map<Short, CBORObject> claims = new HashMap<>();
+        claims.put((short)1, CBORObject.FromObject("AS"));
+        claims.put((short)3, CBORObject.FromObject("rs1"));
+        claims.put((short)4, CBORObject.FromObject(
+                System.currentTimeMillis() / 1000 + 3600));
+        claims.put((short)7, CBORObject.FromObject(new byte[]{0x01, 0x02}));
+        claims.put((short)12, CBORObject.FromObject("r_temp"));
+        this.token = new CWT(claims).encode(this.ctx).EncodeToBytes();
+    }
+    
+    /**
+     * @return  the processed token
+     * @throws Exception
+     */
+    @Benchmark
+    public CWT processSingleThread() throws Exception {
+        return CWT.processCOSE(this.token, this.ctx);
+    }
+    
+    /**
+     * @return  the processed token
+     * @throws Exception
+     */
+    @Benchmark
+    @Threads(4)
+    public CWT processFourThreads() throws Exception {
+        return CWT.processCOSE(this.token, this.ctx);
+    }
+}
@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package cwt;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.upokecenter.cbor.CBORException;
+import com.upokecenter.cbor.CBORObject;
+
+import ace.Constants;
+import exception.AceException;
+
+/**
+ * Tests for <code>CwtClaims</code>, comparing it to the CBOR library it 
+ * replaces on the token path.
+ */
+public class CwtClaimsTest extends TestCase {
+    
+    /**
+     * Decode a hex string.
+     * 
+     * @param hex  the hex string
+     * @return  the bytes
+     */
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)Integer.parseInt(
+                    hex.substring(2*i, 2*i + 2), 16);
+        }
+        return bytes;
+    }
+    
+    /**
+     * Assert that the claims decode to the same values as with the CBOR 
+     * library.
+     * 
+     * @param hex  the hex encoded claims
+     * @throws AceException 
+     */
+    private static void assertSameAsLibrary(String hex) throws AceException {
+        CBORObject expected = CBORObject.DecodeFromBytes(hex(hex));
+        CwtClaims claims = CwtClaims.decode(hex(hex));
+        Set<Short> keys = new HashSet<>();
+        for (CBORObject key : expected.getKeys()) {
+            keys.add((short)key.AsInt32());
+        }
+        assertEquals(hex, keys, claims.keySet());
+        for (CBORObject key : expected.getKeys()) {
+            assertEquals(hex, expected.get(key), 
+                    claims.get((short)key.AsInt32()));
+        }
+    }
+    
+    /**
+     * Assert that both the CBOR library and the claims decoder reject 
+     * the claims.
+     * 
+     * @param hex  the hex encoded claims
+     */
+    private static void assertBothReject(String hex) {
+        try {
+            CBORObject.DecodeFromBytes(hex(hex));
+            fail("Library accepted: " + hex);
+        } catch (CBORException e) {
+            //Expected
+        }
+        assertRejected(hex);
+    }
+    
+    /**
+     * Assert that the claims decoder rejects the claims.
+     * 
+     * @param hex  the hex encoded claims
+     */
+    private static void assertRejected(String hex) {
+        try {
+            CwtClaims.decode(hex(hex));
+            fail("Claims accepted: " + hex);
+        } catch (AceException e) {
+            //Expected
+        }
+    }
+    
+    /**
+     * Test well-formed claims against the CBOR library.
+     * 
+     * @throws AceException 
+     */
+    public void testWellFormed() throws AceException {
+        assertSameAsLibrary("A0");
+        //iss, aud, exp, cti, scope
+        assertSameAsLibrary("A5016241530363727331041903E8074201020C6172");
+        //cnf with a symmetric COSE_Key
+        assertSameAsLibrary("A108A101A30104024201022050"
+                + "000102030405060708090A0B0C0D0E0F");
+        //Indefinite length map and text string
+        assertSameAsLibrary("BF017F61416142FFFF");
+        //Indefinite byte string, half float and simple value 32
+        assertSameAsLibrary("A318645F41004101FF1865F93C001866F820");
+        //Decimal fraction tag
+        assertSameAsLibrary("A11864C4820102");
+        //exp as float
+        assertSameAsLibrary("A104FB408F400000000000");
+        //Negative key
+        assertSameAsLibrary("A12001");
+        //Indefinite map in an unknown claim
+        assertSameAsLibrary("A11864BF0102FF");
+        //Non-ASCII sub
+        assertSameAsLibrary("A10262C3A9");
+    }
+    
+    /**
+     * Test the fields of the claims the RS uses.
+     * 
+     * @throws AceException 
+     */
+    public void testKnownClaims() throws AceException {
+        CwtClaims claims = CwtClaims.decode(
+                hex("A6016241530262C3A90363727331041903E8074201020C6172"));
+        assertEquals("AS", claims.getIss());
+        assertEquals("\u00e9", claims.getSub());
+        assertEquals("rs1", claims.getAud());
+        assertEquals(1000L, claims.getExp());
+        assertEquals("r", claims.getScope());
+        assertEquals(2, claims.getCti().length);
+        assertTrue(claims.has(Constants.EXP));
+        assertFalse(claims.has(Constants.NBF));
+        
+        //Epoch date tag and float
+        assertEquals(1000L, CwtClaims.decode(hex("A104C11903E8")).getExp());
+        assertEquals(1000L, 
+                CwtClaims.decode(hex("A104FB408F400000000000")).getExp());
+    }
+    
+    /**
+     * Test claims that are not well-formed or that the CBOR library 
+     * rejects.
+     */
+    public void testMalformed() {
+        //Overlong simple value
+        assertBothReject("A101F810");
+        //Chunk of another type in an indefinite length string
+        assertBothReject("A1017F4100FF");
+        //Indefinite length chunk
+        assertBothReject("A1015F5F4100FFFF");
+        //Indefinite length map closed after a key
+        assertBothReject("A101BF01FF");
+        assertBothReject("BF01FF");
+        //Break after a tag
+        assertBothReject("A1019FC1FF");
+        //Invalid UTF-8 in a chunk
+        assertBothReject("A1017F61C3FF");
+        //Bignum tag on a text string
+        assertBothReject("A101C26161");
+        //Rational with zero denominator
+        assertBothReject("A101D81E820100");
+        //Truncated, trailing data, missing value, break as value
+        assertBothReject("A101A2010101");
+        assertBothReject("A1010102");
+        assertBothReject("A101");
+        assertBothReject("A101FF");
+    }
+    
+    /**
+     * Test that invalid UTF-8 in definite length text strings is 
+     * rejected, which the CBOR library silently decodes.
+     */
+    public void testInvalidUtf8() {
+        assertRejected("A10162C328");
+        assertRejected("A10263EDA080");
+        assertRejected("A1186462C328");
+        assertRejected("A11864A10161FF");
+    }
+}
@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package cwt;
+
+import junit.framework.TestCase;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.CoseException;
+import COSE.OneKey;
+import exception.AceException;
+
+/**
+ * Tests for <code>EdDSAVerifier</code> and the EdDSA paths of 
+ * <code>SignatureVerifier</code>.
+ */
+public class EdDSAVerifierTest extends TestCase {
+    
+    /**
+     * The public key of test 1 of RFC 8032, section 7.1, also used by the
+     * EdDSA examples of the COSE WG
+     */
+    private static final String X_1 = "d75a980182b10ab7d54bfed3c964073a"
+            + "0ee172f3daa62325af021a68f707511a";
+    
+    /**
+     * The public key of test 2 of RFC 8032, section 7.1
+     */
+    private static final String X_2 = "3d4017c3e843895a92b70aa74d1b7ebc"
+            + "9c982ccf2ec4968cc0cd55f12af4660c";
+    
+    /**
+     * The signature of test 2 of RFC 8032, section 7.1, over the single
+     * byte 72
+     */
+    private static final String SIG_2 = "92a009a9f0d4cab8720e820b5f642540"
+            + "a2b27b5416503f8fb3762223ebdb69da085ac1e43e15996e458f3613d0f11d"
+            + "8c387b2eaeb4302aeeb00d291612bb0c00";
+    
+    /**
+     * The content signed by the COSE messages
+     */
+    private static final String CONTENT = "This is the content.";
+    
+    /**
+     * A COSE_Sign1 with the inputs of eddsa-sig-01 of the COSE WG 
+     * examples: alg EdDSA protected, kid "11" unprotected, signed with 
+     * the key of test 1.  Ed25519 signatures are deterministic, the 
+     * signature was computed with an independent implementation.
+     */
+    private static final String SIGN1 = "D28443A10127A1044231315454686973"
+            + "2069732074686520636F6E74656E742E58406354488F9F290E36CD80E23762"
+            + "E664A5CB03E4267C66A8CFFAEF7C66D89A40BF2CBB8222432A08E5EE410D8B"
+            + "540C6931D26FB6AF673F7E2100655D8BAE765C04";
+    
+    /**
+     * The COSE_Sign of eddsa-01 of the COSE WG examples, with one signer
+     * using the key of test 1
+     */
+    private static final String SIGN = "D8628443A10300A05454686973206973"
+            + "2074686520636F6E74656E742E818343A10127A104423131584077F3EACD11"
+            + "852C4BF9CB1D72FABE6B26FBA1D76092B2B5B7EC83B83557652264E69690DB"
+            + "C1172DDC0BF88411C0D25A507FDB247A20C40D5E245FABD3FC9EC106";
+    
+    /**
+     * Decode a hex string.
+     * 
+     * @param hex  the hex string
+     * @return  the bytes
+     */
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)Integer.parseInt(
+                    hex.substring(2*i, 2*i + 2), 16);
+        }
+        return bytes;
+    }
+    
+    /**
+     * Create an OKP public key with the kid "11".
+     * 
+     * @param curve  the curve
+     * @param x  the hex encoded public key
+     * @return  the COSE key
+     * @throws CoseException 
+     */
+    private static OneKey key(CBORObject curve, String x) 
+            throws CoseException {
+        CBORObject map = CBORObject.NewMap();
+        map.Add(1, EdDSAVerifier.KEY_TYPE_OKP);
+        map.Add(2, new byte[] {0x31, 0x31});
+        map.Add(-1, curve);
+        map.Add(-2, hex(x));
+        return new OneKey(map);
+    }
+    
+    /**
+     * Test the Ed25519 verification with test 2 of RFC 8032.
+     * 
+     * @throws CoseException 
+     */
+    public void testRfc8032() throws CoseException {
+        OneKey key = key(EdDSAVerifier.CURVE_ED25519, X_2);
+        assertTrue(EdDSAVerifier.isEd25519(key));
+        byte[] message = {0x72};
+        byte[] signature = hex(SIG_2);
+        assertTrue(EdDSAVerifier.verify(key, message, signature));
+        
+        assertFalse(EdDSAVerifier.verify(key, new byte[] {0x73}, signature));
+        signature[0] ^= 1;
+        assertFalse(EdDSAVerifier.verify(key, message, signature));
+        signature[0] ^= 1;
+        assertFalse(EdDSAVerifier.verify(
+                key(EdDSAVerifier.CURVE_ED25519, X_1), message, signature));
+        
+        //Ed448 is not supported
+        OneKey ed448 = key(CBORObject.FromObject(7), X_2);
+        assertFalse(EdDSAVerifier.isEd25519(ed448));
+        assertFalse(EdDSAVerifier.verify(ed448, message, signature));
+    }
+    
+    /**
+     * Test verifying an EdDSA COSE_Sign1.
+     * 
+     * @throws Exception 
+     */
+    public void testSign1() throws Exception {
+        CwtCryptoCtx ctx = CwtCryptoCtx.sign1Verify(
+                key(EdDSAVerifier.CURVE_ED25519, X_1), EdDSAVerifier.EDDSA);
+        assertTrue(SignatureVerifier.appliesTo(ctx));
+        assertProcessed(ctx, SIGN1);
+        
+        assertRejected(CwtCryptoCtx.sign1Verify(
+                key(EdDSAVerifier.CURVE_ED25519, X_2), EdDSAVerifier.EDDSA),
+                hex(SIGN1));
+    }
+    
+    /**
+     * Test verifying an EdDSA COSE_Sign.
+     * 
+     * @throws Exception 
+     */
+    public void testSign() throws Exception {
+        CwtCryptoCtx ctx = CwtCryptoCtx.signVerify(
+                key(EdDSAVerifier.CURVE_ED25519, X_1), EdDSAVerifier.EDDSA);
+        assertTrue(SignatureVerifier.appliesTo(ctx));
+        assertProcessed(ctx, SIGN);
+        
+        assertRejected(CwtCryptoCtx.signVerify(
+                key(EdDSAVerifier.CURVE_ED25519, X_2), EdDSAVerifier.EDDSA),
+                hex(SIGN));
+    }
+    
+    /**
+     * Assert that a message is verified, and that it is rejected once its
+     * signature is modified.
+     * 
+     * @param ctx  the crypto context
+     * @param message  the hex encoded message, ending with the signature
+     * 
+     * @throws AceException 
+     */
+    private static void assertProcessed(CwtCryptoCtx ctx, String message) 
+            throws AceException {
+        byte[] cose = hex(message);
+        assertEquals(CONTENT, new String(SignatureVerifier.process(
+                CBORObject.DecodeFromBytes(cose), ctx)));
+        cose[cose.length - 1] ^= 1;
+        assertRejected(ctx, cose);
+    }
+    
+    /**
+     * Assert that a message is rejected.
+     * 
+     * @param ctx  the crypto context
+     * @param cose  the message
+     */
+    private static void assertRejected(CwtCryptoCtx ctx, byte[] cose) {
+        try {
+            SignatureVerifier.process(CBORObject.DecodeFromBytes(cose), ctx);
+            fail("Invalid signature accepted");
+        } catch (AceException e) {
+            //Expected
+        }
+    }
+}
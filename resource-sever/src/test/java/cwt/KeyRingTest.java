@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package cwt;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.upokecenter.cbor.CBORObject;
+
+import cwt.KeyRing.Entry;
+import cwt.KeyRing.Status;
+
+/**
+ * Tests for <code>KeyRing</code>.
+ */
+public class KeyRingTest extends TestCase {
+    
+    /**
+     * HMAC 256/256
+     */
+    private static final CBORObject HMAC = CBORObject.FromObject(5);
+    
+    /**
+     * AES-CCM-16-64-128
+     */
+    private static final CBORObject CCM = CBORObject.FromObject(10);
+    
+    /**
+     * @param id  the byte of the kid
+     * @return  a one byte kid
+     */
+    private static CBORObject kid(int id) {
+        return CBORObject.FromObject(new byte[] {(byte)id});
+    }
+    
+    /**
+     * @param id  the value of the key bytes
+     * @return  a 32 byte key
+     */
+    private static byte[] key(int id) {
+        byte[] key = new byte[32];
+        Arrays.fill(key, (byte)id);
+        return key;
+    }
+    
+    /**
+     * Test that the most recently added active key is the primary key,
+     * and that retiring and removing keys changes it.
+     */
+    public void testPrimary() {
+        KeyRing ring = new KeyRing();
+        assertNull(ring.getPrimary());
+        ring.addSymmetricKey(kid(1), HMAC, key(1));
+        assertEquals(kid(1), ring.getPrimary().getKid());
+        ring.addSymmetricKey(kid(2), HMAC, key(2));
+        assertEquals(kid(2), ring.getPrimary().getKid());
+        CwtCryptoCtx ctx = CwtCryptoCtx.mac0(ring, HMAC);
+        assertEquals(2, ctx.getKey()[0]);
+        
+        ring.retire(kid(2));
+        assertEquals(kid(1), ring.getPrimary().getKid());
+        assertEquals(1, ctx.getKey()[0]);
+        List<Entry> entries = ring.getEntries();
+        assertEquals(2, entries.size());
+        assertEquals(Status.ACTIVE, entries.get(0).getStatus());
+        assertEquals(Status.RETIRING, entries.get(1).getStatus());
+        
+        ring.remove(kid(1));
+        assertNull(ring.getPrimary());
+        assertNull(ctx.getKey());
+        assertEquals(1, ring.getEntries().size());
+        ring.remove(kid(2));
+        assertTrue(ring.getEntries().isEmpty());
+    }
+    
+    /**
+     * Test that every change of the ring changes its version.
+     */
+    public void testVersion() {
+        KeyRing ring = new KeyRing();
+        long version = ring.getVersion();
+        ring.addSymmetricKey(kid(1), HMAC, key(1));
+        assertTrue(ring.getVersion() != version);
+        version = ring.getVersion();
+        ring.retire(kid(1));
+        assertTrue(ring.getVersion() != version);
+        version = ring.getVersion();
+        ring.remove(kid(1));
+        assertTrue(ring.getVersion() != version);
+    }
+    
+    /**
+     * Test looking up keys by kid and algorithm.
+     */
+    public void testLookup() {
+        KeyRing ring = new KeyRing();
+        ring.addSymmetricKey(kid(1), HMAC, key(1));
+        ring.addSymmetricKey(kid(1), CCM, key(2));
+        ring.addSymmetricKey(kid(2), HMAC, key(3));
+        
+        assertEquals(2, ring.lookup(kid(1), null).size());
+        List<Entry> keys = ring.lookup(kid(1), HMAC);
+        assertEquals(1, keys.size());
+        assertEquals(1, keys.get(0).getSymmetricKey()[0]);
+        assertEquals(3, ring.lookup(kid(2), HMAC).get(0)
+                .getSymmetricKey()[0]);
+        assertTrue(ring.lookup(kid(2), CCM).isEmpty());
+        assertTrue(ring.lookup(kid(3), null).isEmpty());
+        
+        //Retiring keys are tried after the active ones
+        ring.retire(kid(1));
+        ring.addSymmetricKey(kid(1), HMAC, key(4));
+        keys = ring.lookup(kid(1), HMAC);
+        assertEquals(2, keys.size());
+        assertEquals(4, keys.get(0).getSymmetricKey()[0]);
+        assertEquals(Status.RETIRING, keys.get(1).getStatus());
+        assertEquals(0, ring.getFallbackCount());
+    }
+    
+    /**
+     * Test the lookups that cannot select the keys by kid, and that they
+     * are counted.
+     */
+    public void testFallback() {
+        KeyRing ring = new KeyRing();
+        ring.addSymmetricKey(kid(1), HMAC, key(1));
+        ring.addSymmetricKey(null, HMAC, key(2));
+        
+        //No kid in the message, all keys are tried
+        assertEquals(2, ring.lookup(null, HMAC).size());
+        assertEquals(1, ring.getFallbackCount());
+        
+        //An unknown kid, the keys without kid are tried
+        List<Entry> keys = ring.lookup(kid(3), HMAC);
+        assertEquals(1, keys.size());
+        assertNull(keys.get(0).getKid());
+        assertEquals(2, ring.getFallbackCount());
+        
+        //A known kid only selects its keys
+        keys = ring.lookup(kid(1), HMAC);
+        assertEquals(1, keys.size());
+        assertEquals(kid(1), keys.get(0).getKid());
+        assertEquals(2, ring.getFallbackCount());
+        
+        //Without keys without kid, an unknown kid finds nothing
+        ring = new KeyRing();
+        ring.addSymmetricKey(kid(1), HMAC, key(1));
+        assertTrue(ring.lookup(kid(3), HMAC).isEmpty());
+        assertEquals(0, ring.getFallbackCount());
+    }
+}
@@ -0,0 +1,350 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package cwt;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.MessageTag;
+import cwt.CryptoProviders.Primitive;
+import exception.AceException;
+
+/**
+ * Known-answer tests for the MAC0 and Encrypt0 fast path of 
+ * <code>SymmetricEngine</code> and for <code>CcmDecryptor</code>.
+ * 
+ * The expected values were computed with an independent COSE and AEAD
+ * implementation.  The keys are 00 01 02 ..., the IVs 10 11 12 ...
+ */
+public class SymmetricEngineTest extends TestCase {
+    
+    /**
+     * The CWT claims in all test messages
+     */
+    private static final String PAYLOAD = "a50169636f61703a2f2f617303637273"
+            + "31041a6553f1000966725f74656d70074401020304";
+    
+    /**
+     * MAC0 with HMAC 256/64
+     */
+    private static final String MAC0_4 = "d18443a10104a05825" + PAYLOAD
+            + "48d5f75ffd9de476ba";
+    
+    /**
+     * MAC0 with HMAC 256/256
+     */
+    private static final String MAC0_5 = "d18443a10105a05825" + PAYLOAD
+            + "58204c47cbf44fc8cbf8e70f048a3c1fbb0b2bfb8138d963c86f2f98"
+            + "6844d8b9dc09";
+    
+    /**
+     * MAC0 with HMAC 384/384 and a 48 byte key
+     */
+    private static final String MAC0_6 = "d18443a10106a05825" + PAYLOAD
+            + "5830040b626a1739d1efc5a4c71fa7d36c0b1414526310090f1e0245"
+            + "e4d52f6e6950c2fbb7012879a5f4d1109dd75e5deb70";
+    
+    /**
+     * Encrypt0 with A128GCM
+     */
+    private static final String ENC0_1 = "d08343a10101a1054c101112131415"
+            + "161718191a1b5835612f6acc602ec6d538f23c86c444994d0bb86ee2"
+            + "65056bb6e3b97665026861aa96d8233c85081dfdffe683585447d30c"
+            + "a740be12c5";
+    
+    /**
+     * Encrypt0 with A256GCM
+     */
+    private static final String ENC0_3 = "d08343a10103a1054c101112131415"
+            + "161718191a1b5835d8fff17526a84a89e55a696e0c1a1b20e654546b"
+            + "483357b8818bbd133b3924dc14e85500f18c7dd4ee155ffa01293429"
+            + "3a01b3a4a8";
+    
+    /**
+     * Encrypt0 with AES-CCM-16-64-128
+     */
+    private static final String ENC0_10 = "d08343a1010aa1054d10111213141"
+            + "5161718191a1b1c582dd9e01922d73d9eee947629e22c641ef21bd74f"
+            + "1c2c669e235b3f45a7ebd5f544417b9ddd259f2eaef7abae4604";
+    
+    /**
+     * Encrypt0 with AES-CCM-16-64-256
+     */
+    private static final String ENC0_11 = "d08343a1010ba1054d10111213141"
+            + "5161718191a1b1c582db8b3258bb8ce0642480ff6efad55023b7318ae"
+            + "497f20f6e1b9b5044cb26236063a8839840a37c8a3d45822966b";
+    
+    /**
+     * Encrypt0 with AES-CCM-64-64-128
+     */
+    private static final String ENC0_12 = "d08343a1010ca1054710111213141"
+            + "516582d0f6f5431fa88817dc92c96bd1e8d87334abc6f63ecc8522816"
+            + "3d1c9b2f1c2beb8a6d5863ceaeae2f642319317f";
+    
+    /**
+     * Encrypt0 with AES-CCM-16-128-128
+     */
+    private static final String ENC0_30 = "d08344a101181ea1054d101112131"
+            + "415161718191a1b1c5835d9e01922d73d9eee947629e22c641ef21bd7"
+            + "4f1c2c669e235b3f45a7ebd5f544417b9ddd25915cfcd142033753d5"
+            + "bf2b0dc1047833";
+    
+    /**
+     * Encrypt0 with AES-CCM-64-128-256
+     */
+    private static final String ENC0_33 = "d08344a1011821a1054710111213"
+            + "1415165835a1366c957e8015d0ded9adb4f4c141b1e2e5940728797a"
+            + "e6c25984f246d51bcf33339924748125de5563f1a090a5830041d9a4"
+            + "3ea4";
+    
+    /**
+     * Test MAC0 verification with HMAC.
+     * 
+     * @throws AceException 
+     */
+    public void testMac0() throws AceException {
+        assertProcessed(MessageTag.MAC0, 4, key(32), MAC0_4);
+        assertProcessed(MessageTag.MAC0, 5, key(32), MAC0_5);
+        assertProcessed(MessageTag.MAC0, 6, key(48), MAC0_6);
+    }
+    
+    /**
+     * Test Encrypt0 decryption with AES-GCM.
+     * 
+     * @throws AceException 
+     */
+    public void testEncrypt0Gcm() throws AceException {
+        assertProcessed(MessageTag.Encrypt0, 1, key(16), ENC0_1);
+        assertProcessed(MessageTag.Encrypt0, 3, key(32), ENC0_3);
+    }
+    
+    /**
+     * Test Encrypt0 decryption with AES-CCM.
+     * 
+     * @throws AceException 
+     */
+    public void testEncrypt0Ccm() throws AceException {
+        assertProcessed(MessageTag.Encrypt0, 10, key(16), ENC0_10);
+        assertProcessed(MessageTag.Encrypt0, 11, key(32), ENC0_11);
+        assertProcessed(MessageTag.Encrypt0, 12, key(16), ENC0_12);
+        assertProcessed(MessageTag.Encrypt0, 30, key(16), ENC0_30);
+        assertProcessed(MessageTag.Encrypt0, 33, key(32), ENC0_33);
+    }
+    
+    /**
+     * Test Encrypt0 decryption with the ciphers of a JCA provider.
+     * 
+     * @throws AceException 
+     * @throws NoSuchAlgorithmException 
+     */
+    public void testEncrypt0Provider() 
+            throws AceException, NoSuchAlgorithmException {
+        CryptoProviders.setProvider(Primitive.AES_GCM, "SunJCE");
+        CryptoProviders.setProvider(Primitive.AES_CCM, "SunJCE");
+        try {
+            assertProcessed(MessageTag.Encrypt0, 1, key(16), ENC0_1);
+            assertProcessed(MessageTag.Encrypt0, 3, key(32), ENC0_3);
+            assertProcessed(MessageTag.Encrypt0, 10, key(16), ENC0_10);
+            assertProcessed(MessageTag.Encrypt0, 33, key(32), ENC0_33);
+        } finally {
+            CryptoProviders.setProvider(Primitive.AES_GCM, (Provider)null);
+            CryptoProviders.setProvider(Primitive.AES_CCM, (Provider)null);
+        }
+    }
+    
+    /**
+     * Test that keys not matching the key size of an AES algorithm are
+     * refused, like the COSE library does.
+     */
+    public void testKeySize() {
+        assertKeyRefused(1, key(32));
+        assertKeyRefused(2, key(16));
+        assertKeyRefused(3, key(16));
+        assertKeyRefused(10, key(32));
+        assertKeyRefused(11, key(16));
+        assertKeyRefused(33, key(16));
+        assertFalse(SymmetricEngine.fitsKey(MessageTag.Encrypt0, 
+                CBORObject.FromObject(1), new byte[0]));
+        assertTrue(SymmetricEngine.fitsKey(MessageTag.MAC0, 
+                CBORObject.FromObject(5), key(16)));
+    }
+    
+    /**
+     * Test that messages using another algorithm than the engine are left
+     * to the COSE library.
+     * 
+     * @throws AceException 
+     */
+    public void testOtherAlgorithm() throws AceException {
+        SymmetricEngine engine = new SymmetricEngine(MessageTag.Encrypt0, 
+                key(16), CBORObject.FromObject(10));
+        assertNull(engine.process(CBORObject.DecodeFromBytes(hex(ENC0_1))));
+        assertNull(engine.process(CBORObject.DecodeFromBytes(hex(MAC0_4))));
+    }
+    
+    /**
+     * Test CCM with an empty plaintext, empty AAD and AAD that needs the 
+     * long length encoding.
+     * 
+     * @throws AceException 
+     */
+    public void testCcmDecryptor() throws AceException {
+        byte[] nonce = new byte[13];
+        for (int i = 0; i < nonce.length; i++) {
+            nonce[i] = (byte)(0x20 + i);
+        }
+        AESEngine aes = new AESEngine();
+        aes.init(true, new KeyParameter(key(16)));
+        CcmDecryptor ccm = new CcmDecryptor(aes, null, 8, 13);
+        
+        assertEquals("000306090c", toHex(ccm.decrypt(nonce, new byte[0], 
+                hex("6ab694cf37833bb12aadeed23d"))));
+        assertEquals("000306090c0f1215181b1e2124272a2d303336393c3f4245484b"
+                + "4e5154575a5d60", toHex(ccm.decrypt(nonce, 
+                        pattern(300, 7), hex("6ab694cf377dbc742aaec2577000"
+                        + "304e2cd8b8924a7123d29283d6f9991bccf9afe709a1e92"
+                        + "77b117d"))));
+        assertEquals("", toHex(ccm.decrypt(nonce, pattern(70000, 7), 
+                hex("e406fac187f0d5e5"))));
+        try {
+            ccm.decrypt(nonce, pattern(70001, 7), hex("e406fac187f0d5e5"));
+            fail("Wrong AAD accepted");
+        } catch (AceException e) {
+            //Expected
+        }
+    }
+    
+    /**
+     * Assert that an engine returns the payload of a message and rejects 
+     * the message with a modified tag or ciphertext.
+     * 
+     * @param what  the message type
+     * @param alg  the algorithm
+     * @param key  the key
+     * @param message  the hex encoded message
+     * 
+     * @throws AceException 
+     */
+    private static void assertProcessed(MessageTag what, int alg, byte[] key,
+            String message) throws AceException {
+        SymmetricEngine engine = new SymmetricEngine(what, key, 
+                CBORObject.FromObject(alg));
+        byte[] cose = hex(message);
+        //Twice, to use the engine after its first message
+        for (int i = 0; i < 2; i++) {
+            assertEquals(PAYLOAD, toHex(engine.process(
+                    CBORObject.DecodeFromBytes(cose))));
+        }
+        cose[cose.length - 1] ^= 1;
+        try {
+            engine.process(CBORObject.DecodeFromBytes(cose));
+            fail("Modified message accepted for algorithm " + alg);
+        } catch (AceException e) {
+            //Expected
+        }
+        cose[cose.length - 1] ^= 1;
+        assertEquals(PAYLOAD, toHex(engine.process(
+                CBORObject.DecodeFromBytes(cose))));
+    }
+    
+    /**
+     * Assert that an Encrypt0 engine cannot be created with a key.
+     * 
+     * @param alg  the algorithm
+     * @param key  the key
+     */
+    private static void assertKeyRefused(int alg, byte[] key) {
+        assertFalse(SymmetricEngine.fitsKey(MessageTag.Encrypt0, 
+                CBORObject.FromObject(alg), key));
+        try {
+            new SymmetricEngine(MessageTag.Encrypt0, key, 
+                    CBORObject.FromObject(alg));
+            fail("Key of " + key.length + " bytes accepted for algorithm " 
+                    + alg);
+        } catch (IllegalArgumentException e) {
+            //Expected
+        }
+    }
+    
+    /**
+     * @param length  the key length
+     * @return  the key 00 01 02 ...
+     */
+    private static byte[] key(int length) {
+        return pattern(length, 1);
+    }
+    
+    /**
+     * @param length  the length
+     * @param step  the difference between two bytes
+     * @return  the bytes 00, step, 2*step, ...
+     */
+    private static byte[] pattern(int length, int step) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte)(i * step);
+        }
+        return bytes;
+    }
+    
+    /**
+     * @param hex  a hex string
+     * @return  the bytes
+     */
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)Integer.parseInt(
+                    hex.substring(2*i, 2*i + 2), 16);
+        }
+        return bytes;
+    }
+    
+    /**
+     * @param bytes  the bytes
+     * @return  the lower case hex string
+     */
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
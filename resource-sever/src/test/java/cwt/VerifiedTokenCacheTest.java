@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package cwt;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.CoseException;
+import COSE.OneKey;
+
+/**
+ * Tests for <code>VerifiedTokenCache</code>.
+ */
+public class VerifiedTokenCacheTest extends TestCase {
+    
+    /**
+     * The public key of test 1 of RFC 8032, section 7.1
+     */
+    private static final String X = "d75a980182b10ab7d54bfed3c964073a"
+            + "0ee172f3daa62325af021a68f707511a";
+    
+    /**
+     * An EdDSA Sign1 CWT, signed with the key of test 1 of RFC 8032 and 
+     * expiring at 1700000000
+     */
+    private static final String TOKEN = "d28443a10127a1044231315825a50169"
+            + "636f61703a2f2f61730363727331041a6553f1000966725f74656d7007440102"
+            + "0304584045d2282cb47a0ba31a9f973bab4052672f34f26fd013f8e4eba50c52"
+            + "d162aa0f3792a60f926c1261ffe45996d20a129b067f9d3600a8c638ea31ce4e"
+            + "f2ebf501";
+    
+    /**
+     * A time before the token expires
+     */
+    private static final long NOW = 1600000000L;
+    
+    /**
+     * Decode a hex string.
+     * 
+     * @param hex  the hex string
+     * @return  the bytes
+     */
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)Integer.parseInt(
+                    hex.substring(2*i, 2*i + 2), 16);
+        }
+        return bytes;
+    }
+    
+    /**
+     * @return  the Ed25519 public key of the token, with kid "11"
+     * @throws CoseException 
+     */
+    private static OneKey key() throws CoseException {
+        CBORObject map = CBORObject.NewMap();
+        map.Add(1, EdDSAVerifier.KEY_TYPE_OKP);
+        map.Add(2, new byte[] {0x31, 0x31});
+        map.Add(-1, EdDSAVerifier.CURVE_ED25519);
+        map.Add(-2, hex(X));
+        return new OneKey(map);
+    }
+    
+    /**
+     * A key ring that adds a key while a token is being verified, like a
+     * key rotation racing a verification.
+     */
+    private static class RotatingKeyRing extends KeyRing {
+        private boolean rotate = false;
+        
+        @Override
+        public List<Entry> lookup(CBORObject kid, CBORObject alg) {
+            if (this.rotate) {
+                this.rotate = false;
+                addSymmetricKey(CBORObject.FromObject(new byte[] {0x32}), 
+                        CBORObject.FromObject(5), new byte[32]);
+            }
+            return super.lookup(kid, alg);
+        }
+    }
+    
+    /**
+     * Test that a cached token is not verified again.
+     * 
+     * @throws Exception 
+     */
+    public void testHit() throws Exception {
+        VerifiedTokenCache cache = new VerifiedTokenCache();
+        CwtCryptoCtx ctx = CwtCryptoCtx.sign1Verify(key(), 
+                EdDSAVerifier.EDDSA);
+        byte[] token = hex(TOKEN);
+        CWT cwt = cache.processCOSE(token, ctx, NOW);
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.size());
+        
+        assertEquals(cwt.getClaims(), 
+                cache.processCOSE(token, ctx, NOW).getClaims());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        
+        //The same token as a slice of a larger array
+        byte[] buffer = new byte[token.length + 4];
+        System.arraycopy(token, 0, buffer, 2, token.length);
+        cache.processCOSE(buffer, 2, token.length, ctx, NOW);
+        assertEquals(2, cache.getHits());
+    }
+    
+    /**
+     * Test that an expired token is not taken from the cache.
+     * 
+     * @throws Exception 
+     */
+    public void testExpired() throws Exception {
+        VerifiedTokenCache cache = new VerifiedTokenCache();
+        CwtCryptoCtx ctx = CwtCryptoCtx.sign1Verify(key(), 
+                EdDSAVerifier.EDDSA);
+        cache.processCOSE(hex(TOKEN), ctx, NOW);
+        cache.processCOSE(hex(TOKEN), ctx, 1700000001L);
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+    
+    /**
+     * Test that a change of the key ring drops the cached tokens.
+     * 
+     * @throws Exception 
+     */
+    public void testKeyRingChange() throws Exception {
+        VerifiedTokenCache cache = new VerifiedTokenCache();
+        KeyRing ring = new KeyRing();
+        ring.addPublicKey(null, EdDSAVerifier.EDDSA, key());
+        CwtCryptoCtx ctx = CwtCryptoCtx.sign1Verify(ring, 
+                EdDSAVerifier.EDDSA);
+        cache.processCOSE(hex(TOKEN), ctx, NOW);
+        cache.processCOSE(hex(TOKEN), ctx, NOW);
+        assertEquals(1, cache.getHits());
+        
+        ring.retire(CBORObject.FromObject(new byte[] {0x31, 0x31}));
+        cache.processCOSE(hex(TOKEN), ctx, NOW);
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+    
+    /**
+     * Test that a token is not cached if the key ring changed while it 
+     * was verified.
+     * 
+     * @throws Exception 
+     */
+    public void testKeyRingChangeWhileVerifying() throws Exception {
+        VerifiedTokenCache cache = new VerifiedTokenCache();
+        RotatingKeyRing ring = new RotatingKeyRing();
+        ring.addPublicKey(null, EdDSAVerifier.EDDSA, key());
+        CwtCryptoCtx ctx = CwtCryptoCtx.sign1Verify(ring, 
+                EdDSAVerifier.EDDSA);
+        ring.rotate = true;
+        cache.processCOSE(hex(TOKEN), ctx, NOW);
+        assertEquals(0, cache.size());
+        
+        cache.processCOSE(hex(TOKEN), ctx, NOW);
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.size());
+    }
+    
+    /**
+     * Test that a token is only taken from the cache for the crypto 
+     * context it was verified with.
+     * 
+     * @throws Exception 
+     */
+    public void testOtherContext() throws Exception {
+        VerifiedTokenCache cache = new VerifiedTokenCache();
+        OneKey key = key();
+        CwtCryptoCtx ctx1 = CwtCryptoCtx.sign1Verify(key, 
+                EdDSAVerifier.EDDSA);
+        CwtCryptoCtx ctx2 = CwtCryptoCtx.sign1Verify(key, 
+                EdDSAVerifier.EDDSA);
+        cache.processCOSE(hex(TOKEN), ctx1, NOW);
+        cache.processCOSE(hex(TOKEN), ctx2, NOW);
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+}
@@ -0,0 +1,729 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package rs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.AlgorithmID;
+import COSE.Attribute;
+import COSE.Encrypt0Message;
+import COSE.HeaderKeys;
+import COSE.KeyKeys;
+import COSE.OneKey;
+import ace.Constants;
+import cwt.CWT;
+import cwt.CwtCryptoCtx;
+import utility.KissTime;
+
+/**
+ * Mints large, reproducible sets of access tokens for load testing the 
+ * resource server.
+ * 
+ * The claims and the key material of the n-th token depend only on the 
+ * seed, the issuing time and the configuration, so two runs with the 
+ * same arguments, including <code>-now</code>, produce the same token 
+ * set.  Without <code>-now</code> the tokens are issued at the current 
+ * time, which is logged so that the run can be repeated.  Note that the 
+ * COSE wrapper of Encrypt0 and ECDSA signed tokens contains a random IV 
+ * or signature nonce, so their bytes differ between runs while their 
+ * content does not.
+ * 
+ * Tokens are written as a stream of records, each one a 4-byte big-endian
+ * length followed by the record bytes.  A record is either the encoded 
+ * COSE object (the payload of a POST to /authz-info) or a psk_identity 
+ * value carrying the token (see <code>DtlspPskStore</code>).
+ * 
+ * Usage from the command line, with the test classpath:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -cp target/classes:target/test-classes:$(cat cp.txt) \
+ *     rs.TokenMinter -count 1000000 -out tokens.bin [-seed 42] 
+ *     [-now 1500000000000] [-format raw|psk] [-type mac0|encrypt0|sign1]
+ *     [-key base64] [-cnfkey base64] [-iss AS] [-aud rs1] 
+ *     [-scope r_temp=1,r_helloWorld=1] 
+ *     [-cnf symmetric=1,encrypted=0,kid=0,ec2=0] 
+ *     [-lifetime 3600000-7200000] [-expired 0.0]
+ * </pre>
+ * With <code>-type sign1</code> the public key of the seed-derived 
+ * ES256 signing key is written as a COSE_Key to the output file name 
+ * with the suffix <code>.pub</code>.
+ */
+public class TokenMinter {
+    
+    /**
+     * The logger
+     */
+    private static final Logger LOGGER 
+        = Logger.getLogger(TokenMinter.class.getName());
+    
+    /**
+     * The variants of the cnf claim
+     */
+    public enum CnfType {
+        /**
+         * A symmetric COSE_Key in the clear
+         */
+        SYMMETRIC,
+        /**
+         * A symmetric COSE_Key wrapped in a COSE_Encrypt0
+         */
+        ENCRYPTED,
+        /**
+         * A reference to the kid of a key minted earlier in the same set
+         */
+        KID,
+        /**
+         * An EC2 P-256 public key
+         */
+        EC2
+    }
+    
+    /**
+     * The record formats of the output
+     */
+    public enum Format {
+        /**
+         * The encoded COSE object, as POSTed to /authz-info
+         */
+        RAW,
+        /**
+         * The psk_identity value, the Base64 encoding of the map 
+         * {access_token: token}
+         */
+        PSK_IDENTITY
+    }
+    
+    /**
+     * The number of minted kids remembered for cnf kid references
+     */
+    public static final int KID_POOL = 1024;
+    
+    /**
+     * The default token and cnf encryption key, matching the key of 
+     * <code>DtlspServer</code>
+     */
+    private static final byte[] DEFAULT_KEY = {'A', 'A', 'A', 'A', 'A', 'A', 
+        'A', 'A', 'A', 'A', 'A', 'A', 'A', 'A', 'A', 'A', 'A', 'A', 'A', 'A', 
+        'A', 'A', 'A', 'A', 'A', 'A', 'A', 'A', 'A', 'A', 'A', 'A'};
+    
+    /**
+     * The crypto context used to wrap the tokens
+     */
+    private final CwtCryptoCtx ctx;
+    
+    /**
+     * The key used to encrypt cnf claims, null if none
+     */
+    private final byte[] cnfKey;
+    
+    /**
+     * The seed of this token set
+     */
+    private final long seed;
+    
+    /**
+     * The source of the claim choices
+     */
+    private final Random random;
+    
+    /**
+     * The source of the key material
+     */
+    private final SecureRandom keyRandom;
+    
+    /**
+     * The EC key pair generator for EC2 cnf keys, created on first use
+     */
+    private KeyPairGenerator ecGen = null;
+    
+    /**
+     * The issuers to pick from, weighted
+     */
+    private Weighted<String> issuers 
+        = Weighted.of(Collections.singletonMap("AS", 1));
+    
+    /**
+     * The audiences to pick from, weighted
+     */
+    private Weighted<String> audiences 
+        = Weighted.of(Collections.singletonMap("rs1", 1));
+    
+    /**
+     * The scopes to pick from, weighted
+     */
+    private Weighted<String> scopes 
+        = Weighted.of(Collections.singletonMap("r_helloWorld", 1));
+    
+    /**
+     * The cnf variants to pick from, weighted
+     */
+    private Weighted<CnfType> cnfTypes 
+        = Weighted.of(Collections.singletonMap(CnfType.SYMMETRIC, 1));
+    
+    /**
+     * The time the tokens are issued at
+     */
+    private long now;
+    
+    /**
+     * The minimum lifetime of a token
+     */
+    private long minLifetime = 3600000L;
+    
+    /**
+     * The maximum lifetime of a token
+     */
+    private long maxLifetime = 3600000L;
+    
+    /**
+     * The fraction of tokens that are already expired
+     */
+    private double expiredFraction = 0.0;
+    
+    /**
+     * The kids of minted cnf keys, for cnf kid references
+     */
+    private final List<byte[]> kids = new ArrayList<>();
+    
+    /**
+     * The index of the next token
+     */
+    private int index = 0;
+    
+    /**
+     * Constructor.
+     * 
+     * @param ctx  the crypto context used to wrap the tokens
+     * @param cnfKey  the symmetric key used to encrypt cnf claims, 
+     *     may be null if no ENCRYPTED cnf variant is minted
+     * @param seed  the seed of the token set
+     * @param now  the time the tokens are issued at, in the unit of the 
+     *     resource server's <code>TimeProvider</code>
+     */
+    public TokenMinter(CwtCryptoCtx ctx, byte[] cnfKey, long seed, 
+            long now) {
+        this.ctx = ctx;
+        this.cnfKey = cnfKey;
+        this.seed = seed;
+        this.random = new Random(seed);
+        this.keyRandom = seededRandom(seed);
+        this.now = now;
+    }
+    
+    /**
+     * Create a SecureRandom whose output is determined by a seed.
+     * 
+     * @param seed  the seed
+     * @return  the deterministic SecureRandom
+     */
+    private static SecureRandom seededRandom(long seed) {
+        try {
+            SecureRandom sr = SecureRandom.getInstance("SHA1PRNG");
+            sr.setSeed(seed);
+            return sr;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(
+                    "SHA1PRNG not available: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Derive an ES256 signing key from a seed, for use with 
+     * <code>CwtCryptoCtx.sign1Create()</code>.
+     * 
+     * @param seed  the seed
+     * @return  the key pair as COSE key
+     * @throws GeneralSecurityException 
+     * @throws COSE.CoseException 
+     */
+    public static OneKey signingKey(long seed) 
+            throws GeneralSecurityException, COSE.CoseException {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("EC");
+        gen.initialize(new ECGenParameterSpec("secp256r1"), 
+                seededRandom(~seed));
+        KeyPair kp = gen.generateKeyPair();
+        return new OneKey(kp.getPublic(), kp.getPrivate());
+    }
+    
+    /**
+     * @param issuers  the issuers and their weights, empty for no iss claim
+     */
+    public void setIssuers(Map<String, Integer> issuers) {
+        this.issuers = Weighted.of(issuers);
+    }
+    
+    /**
+     * @param audiences  the audiences and their weights, empty for no 
+     *     aud claim
+     */
+    public void setAudiences(Map<String, Integer> audiences) {
+        this.audiences = Weighted.of(audiences);
+    }
+    
+    /**
+     * @param scopes  the scopes and their weights, empty for no scope claim
+     */
+    public void setScopes(Map<String, Integer> scopes) {
+        this.scopes = Weighted.of(scopes);
+    }
+    
+    /**
+     * @param cnfTypes  the cnf variants and their weights, empty for no 
+     *     cnf claim
+     */
+    public void setCnfTypes(Map<CnfType, Integer> cnfTypes) {
+        if (cnfTypes.containsKey(CnfType.ENCRYPTED) 
+                && cnfTypes.get(CnfType.ENCRYPTED) > 0 
+                && this.cnfKey == null) {
+            throw new IllegalArgumentException(
+                    "Encrypted cnf claims require a cnf key");
+        }
+        this.cnfTypes = Weighted.of(cnfTypes);
+    }
+    
+    /**
+     * Set the issuing time and the lifetimes of the tokens, in the unit 
+     * of the resource server's <code>TimeProvider</code>.
+     * 
+     * @param now  the time the tokens are issued at
+     * @param minLifetime  the minimum lifetime
+     * @param maxLifetime  the maximum lifetime
+     */
+    public void setLifetime(long now, long minLifetime, long maxLifetime) {
+        if (minLifetime < 0 || maxLifetime < minLifetime) {
+            throw new IllegalArgumentException("Invalid lifetime range");
+        }
+        this.now = now;
+        this.minLifetime = minLifetime;
+        this.maxLifetime = maxLifetime;
+    }
+    
+    /**
+     * @param expiredFraction  the fraction of tokens in [0,1] that are 
+     *     minted already expired
+     */
+    public void setExpiredFraction(double expiredFraction) {
+        if (expiredFraction < 0.0 || expiredFraction > 1.0) {
+            throw new IllegalArgumentException(
+                    "Expired fraction must be in [0,1]");
+        }
+        this.expiredFraction = expiredFraction;
+    }
+    
+    /**
+     * Pick the claims of the next token.
+     * 
+     * @return  the claims
+     * @throws Exception 
+     */
+    public Map<Short, CBORObject> nextClaims() throws Exception {
+        Map<Short, CBORObject> claims = new HashMap<>();
+        byte[] cti = ByteBuffer.allocate(12).putLong(this.seed)
+                .putInt(this.index++).array();
+        claims.put(Constants.CTI, CBORObject.FromObject(cti));
+        String iss = this.issuers.pick(this.random);
+        if (iss != null) {
+            claims.put(Constants.ISS, CBORObject.FromObject(iss));
+        }
+        String aud = this.audiences.pick(this.random);
+        if (aud != null) {
+            claims.put(Constants.AUD, CBORObject.FromObject(aud));
+        }
+        String scope = this.scopes.pick(this.random);
+        if (scope != null) {
+            claims.put(Constants.SCOPE, CBORObject.FromObject(scope));
+        }
+        long lifetime = this.minLifetime;
+        if (this.maxLifetime > this.minLifetime) {
+            lifetime += (long)(this.random.nextDouble() 
+                    * (this.maxLifetime - this.minLifetime));
+        }
+        if (this.random.nextDouble() < this.expiredFraction) {
+            lifetime = -lifetime - 1;
+        }
+        claims.put(Constants.IAT, CBORObject.FromObject(this.now));
+        claims.put(Constants.EXP, CBORObject.FromObject(this.now + lifetime));
+        CnfType cnfType = this.cnfTypes.pick(this.random);
+        if (cnfType != null) {
+            claims.put(Constants.CNF, cnf(cnfType, cti));
+        }
+        return claims;
+    }
+    
+    /**
+     * Mint the next token.
+     * 
+     * @return  the token as COSE object
+     * @throws Exception 
+     */
+    public CBORObject next() throws Exception {
+        return new CWT(nextClaims()).encode(this.ctx);
+    }
+    
+    /**
+     * Mint tokens and write them as length-prefixed records.
+     * 
+     * @param count  the number of tokens
+     * @param out  the output stream, not closed by this method
+     * @param format  the record format
+     * @return  the number of bytes written
+     * @throws Exception 
+     */
+    public long write(int count, OutputStream out, Format format) 
+            throws Exception {
+        DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(out, 1 << 16));
+        long bytes = 0L;
+        for (int i = 0; i < count; i++) {
+            byte[] record = record(next(), format);
+            dos.writeInt(record.length);
+            dos.write(record);
+            bytes += 4 + record.length;
+        }
+        dos.flush();
+        return bytes;
+    }
+    
+    /**
+     * Encode a token as record.
+     * 
+     * @param token  the token
+     * @param format  the record format
+     * @return  the record bytes
+     */
+    private static byte[] record(CBORObject token, Format format) {
+        if (format == Format.RAW) {
+            return token.EncodeToBytes();
+        }
+        CBORObject identity = CBORObject.NewMap();
+        identity.Add(CBORObject.FromObject(Constants.ACCESS_TOKEN), token);
+        return Base64.getEncoder().encodeToString(identity.EncodeToBytes())
+                .getBytes(StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Create a cnf claim of the given variant.
+     * 
+     * @param type  the cnf variant
+     * @param kid  the kid for a newly minted key
+     * @return  the cnf claim
+     * @throws Exception 
+     */
+    private CBORObject cnf(CnfType type, byte[] kid) throws Exception {
+        CBORObject cnf = CBORObject.NewMap();
+        switch (type) {
+        case KID:
+            if (!this.kids.isEmpty()) {
+                cnf.Add(Constants.COSE_KID_CBOR, CBORObject.FromObject(
+                        this.kids.get(this.random.nextInt(
+                                this.kids.size()))));
+                return cnf;
+            }
+            //Nothing to refer to yet, mint a key
+            cnf.Add(Constants.COSE_KEY_CBOR, symmetricKey(kid));
+            return cnf;
+        case ENCRYPTED:
+            Encrypt0Message enc = new Encrypt0Message();
+            AlgorithmID alg = this.cnfKey.length == 16 
+                    ? AlgorithmID.AES_CCM_16_64_128 
+                    : AlgorithmID.AES_CCM_16_64_256;
+            enc.addAttribute(HeaderKeys.Algorithm, alg.AsCBOR(), 
+                    Attribute.PROTECTED);
+            enc.SetContent(symmetricKey(kid).EncodeToBytes());
+            enc.encrypt(this.cnfKey);
+            cnf.Add(Constants.COSE_ENCRYPTED_CBOR, enc.EncodeToCBORObject());
+            return cnf;
+        case EC2:
+            if (this.ecGen == null) {
+                this.ecGen = KeyPairGenerator.getInstance("EC");
+                this.ecGen.initialize(new ECGenParameterSpec("secp256r1"), 
+                        this.keyRandom);
+            }
+            CBORObject key = new OneKey(
+                    this.ecGen.generateKeyPair().getPublic(), null).AsCBOR();
+            key.Add(KeyKeys.KeyId.AsCBOR(), kid);
+            cnf.Add(Constants.COSE_KEY_CBOR, key);
+            return cnf;
+        case SYMMETRIC:
+        default:
+            cnf.Add(Constants.COSE_KEY_CBOR, symmetricKey(kid));
+            return cnf;
+        }
+    }
+    
+    /**
+     * Mint a 128 bit symmetric COSE_Key and remember its kid.
+     * 
+     * @param kid  the kid
+     * @return  the key as CBOR map
+     */
+    private CBORObject symmetricKey(byte[] kid) {
+        byte[] k = new byte[16];
+        this.keyRandom.nextBytes(k);
+        CBORObject key = CBORObject.NewMap();
+        key.Add(KeyKeys.KeyType.AsCBOR(), KeyKeys.KeyType_Octet);
+        key.Add(KeyKeys.KeyId.AsCBOR(), kid);
+        key.Add(KeyKeys.Octet_K.AsCBOR(), k);
+        if (this.kids.size() < KID_POOL) {
+            this.kids.add(kid);
+        }
+        return key;
+    }
+    
+    /**
+     * A weighted choice between values.
+     * 
+     * @param <T>  the type of the values
+     */
+    private static final class Weighted<T> {
+        
+        /**
+         * The values
+         */
+        private final List<T> values = new ArrayList<>();
+        
+        /**
+         * The cumulative weights of the values
+         */
+        private final List<Integer> bounds = new ArrayList<>();
+        
+        /**
+         * The sum of the weights
+         */
+        private int total = 0;
+        
+        /**
+         * Create a weighted choice, values with weight 0 are never picked.
+         * 
+         * @param weights  the values and their weights
+         * @return  the weighted choice
+         */
+        static <T> Weighted<T> of(Map<T, Integer> weights) {
+            Weighted<T> w = new Weighted<>();
+            for (Map.Entry<T, Integer> e : weights.entrySet()) {
+                if (e.getValue() < 0) {
+                    throw new IllegalArgumentException(
+                            "Negative weight for " + e.getKey());
+                }
+                if (e.getValue() == 0) {
+                    continue;
+                }
+                w.total += e.getValue();
+                w.values.add(e.getKey());
+                w.bounds.add(w.total);
+            }
+            return w;
+        }
+        
+        /**
+         * @param random  the source of randomness
+         * @return  a value picked according to the weights or null if 
+         *     there are none
+         */
+        T pick(Random random) {
+            if (this.total == 0) {
+                return null;
+            }
+            if (this.values.size() == 1) {
+                return this.values.get(0);
+            }
+            int r = random.nextInt(this.total);
+            for (int i = 0; i < this.bounds.size(); i++) {
+                if (r < this.bounds.get(i)) {
+                    return this.values.get(i);
+                }
+            }
+            return this.values.get(this.values.size() - 1);
+        }
+    }
+    
+    /**
+     * Parse a weighted list of the form <code>a=2,b=1,c</code>, where a 
+     * missing weight counts as 1.
+     * 
+     * @param arg  the argument
+     * @return  the values and their weights, in order
+     */
+    private static Map<String, Integer> weights(String arg) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        if (arg.isEmpty()) {
+            return weights;
+        }
+        for (String item : arg.split(",")) {
+            int eq = item.lastIndexOf('=');
+            if (eq < 0) {
+                weights.put(item, 1);
+            } else {
+                weights.put(item.substring(0, eq), 
+                        Integer.parseInt(item.substring(eq + 1)));
+            }
+        }
+        return weights;
+    }
+    
+    /**
+     * Mint a token set from the command line, see the class 
+     * documentation for the arguments.
+     * 
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("-")) {
+                usage("Unexpected argument " + args[i]);
+            }
+            opts.put(args[i].substring(1), args[i + 1]);
+        }
+        if (args.length % 2 != 0 || !opts.containsKey("count") 
+                || !opts.containsKey("out")) {
+            usage(null);
+            return;
+        }
+        int count = Integer.parseInt(opts.get("count"));
+        String out = opts.get("out");
+        long seed = Long.parseLong(opts.getOrDefault("seed", "0"));
+        long now = opts.containsKey("now") 
+                ? Long.parseLong(opts.get("now")) 
+                : new KissTime().getCurrentTime();
+        Format format = opts.getOrDefault("format", "raw").equals("psk") 
+                ? Format.PSK_IDENTITY : Format.RAW;
+        byte[] key = opts.containsKey("key") 
+                ? Base64.getDecoder().decode(opts.get("key")) : DEFAULT_KEY;
+        byte[] cnfKey = opts.containsKey("cnfkey") 
+                ? Base64.getDecoder().decode(opts.get("cnfkey")) : key;
+        
+        CwtCryptoCtx ctx;
+        String type = opts.getOrDefault("type", "mac0");
+        switch (type) {
+        case "mac0":
+            ctx = CwtCryptoCtx.mac0(key, 
+                    AlgorithmID.HMAC_SHA_256.AsCBOR());
+            break;
+        case "encrypt0":
+            ctx = CwtCryptoCtx.encrypt0(key, key.length == 16 
+                    ? AlgorithmID.AES_CCM_16_64_128.AsCBOR()
+                    : AlgorithmID.AES_CCM_16_64_256.AsCBOR());
+            break;
+        case "sign1":
+            OneKey signKey = signingKey(seed);
+            ctx = CwtCryptoCtx.sign1Create(signKey, 
+                    AlgorithmID.ECDSA_256.AsCBOR());
+            try (OutputStream pub = new FileOutputStream(out + ".pub")) {
+                pub.write(signKey.PublicKey().AsCBOR().EncodeToBytes());
+            }
+            break;
+        default:
+            usage("Unknown token type " + type);
+            return;
+        }
+        
+        TokenMinter minter = new TokenMinter(ctx, cnfKey, seed, now);
+        if (opts.containsKey("iss")) {
+            minter.setIssuers(weights(opts.get("iss")));
+        }
+        if (opts.containsKey("aud")) {
+            minter.setAudiences(weights(opts.get("aud")));
+        }
+        if (opts.containsKey("scope")) {
+            minter.setScopes(weights(opts.get("scope")));
+        }
+        if (opts.containsKey("cnf")) {
+            Map<CnfType, Integer> cnfTypes = new LinkedHashMap<>();
+            for (Map.Entry<String, Integer> e 
+                    : weights(opts.get("cnf")).entrySet()) {
+                cnfTypes.put(CnfType.valueOf(e.getKey().toUpperCase()), 
+                        e.getValue());
+            }
+            minter.setCnfTypes(cnfTypes);
+        }
+        if (opts.containsKey("lifetime")) {
+            String[] range = opts.get("lifetime").split("-");
+            long min = Long.parseLong(range[0]);
+            long max = range.length > 1 ? Long.parseLong(range[1]) : min;
+            minter.setLifetime(now, min, max);
+        }
+        if (opts.containsKey("expired")) {
+            minter.setExpiredFraction(
+                    Double.parseDouble(opts.get("expired")));
+        }
+        
+        long start = System.nanoTime();
+        long bytes;
+        try (OutputStream os = new FileOutputStream(out)) {
+            bytes = minter.write(count, os, format);
+        }
+        LOGGER.info("Minted " + count + " tokens (" + bytes + " bytes) to " 
+                + out + " in " + (System.nanoTime() - start) / 1000000L 
+                + " ms, repeat with -seed " + seed + " -now " + now);
+    }
+    
+    /**
+     * Print the usage and exit.
+     * 
+     * @param error  the error to print first or null
+     */
+    private static void usage(String error) {
+        if (error != null) {
+            System.err.println(error);
+        }
+        System.err.println("Usage: TokenMinter -count n -out file [-seed s]"
+                + " [-now time] [-format raw|psk] [-type mac0|encrypt0|sign1]"
+                + " [-key base64] [-cnfkey base64] [-iss a=w,...]"
+                + " [-aud a=w,...] [-scope s=w,...]"
+                + " [-cnf symmetric=w,encrypted=w,kid=w,ec2=w]"
+                + " [-lifetime min[-max]] [-expired fraction]");
+        System.exit(1);
+    }
+}
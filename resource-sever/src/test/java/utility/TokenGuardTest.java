@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package utility;
+
+import junit.framework.TestCase;
+
+import com.upokecenter.cbor.CBORObject;
+
+import ace.AceException;
+
+/**
+ * Tests for the structural token check of <code>TokenGuard</code>.
+ */
+public class TokenGuardTest extends TestCase {
+
+    /**
+     * The guard under test, using the default limits
+     */
+    private final TokenGuard guard = new TokenGuard();
+    
+    /**
+     * Decode a hex string.
+     * 
+     * @param hex  the hex string
+     * @return  the bytes
+     */
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)Integer.parseInt(
+                    hex.substring(2*i, 2*i + 2), 16);
+        }
+        return bytes;
+    }
+    
+    /**
+     * Assert that the guard rejects a token.
+     * 
+     * @param hex  the hex encoded token
+     */
+    private void assertRejected(String hex) {
+        try {
+            this.guard.check(hex(hex));
+            fail("Token accepted: " + hex);
+        } catch (AceException e) {
+            //Expected
+        }
+    }
+    
+    /**
+     * Assert that the guard accepts a token and that it can be decoded.
+     * 
+     * @param hex  the hex encoded token
+     * @throws AceException 
+     */
+    private void assertAccepted(String hex) throws AceException {
+        this.guard.check(hex(hex));
+        assertNotNull(CBORObject.DecodeFromBytes(hex(hex)));
+    }
+    
+    /**
+     * Test well-formed tokens.
+     * 
+     * @throws AceException 
+     */
+    public void testWellFormed() throws AceException {
+        assertAccepted("00");
+        assertAccepted("F820");
+        assertAccepted("8301A10203F6");
+        assertAccepted("D28443A10126A104420001F640");
+        assertAccepted("9FD20102FF");
+        assertAccepted("5F4101420203FF");
+        assertAccepted("7F61616162FF");
+        assertAccepted("BF0102FF");
+    }
+    
+    /**
+     * Test that an overlong simple value is rejected.
+     */
+    public void testOverlongSimpleValue() {
+        assertRejected("F810");
+        assertRejected("F81F");
+    }
+    
+    /**
+     * Test that a break directly after a tag is rejected.
+     */
+    public void testBreakAfterTag() {
+        assertRejected("9FC1FF");
+        assertRejected("BF01D2FF");
+    }
+    
+    /**
+     * Test that indefinite length strings only contain definite length 
+     * chunks of the same major type.
+     */
+    public void testIndefiniteStringChunks() {
+        assertRejected("7F4100FF");
+        assertRejected("5F6161FF");
+        assertRejected("5F5F4101FFFF");
+        assertRejected("5F01FF");
+        assertRejected("7FC16161FF");
+    }
+    
+    /**
+     * Test that an indefinite length map with a key but no value is 
+     * rejected.
+     */
+    public void testIndefiniteMapOddItems() {
+        assertRejected("BF01FF");
+        assertRejected("BF010203FF");
+    }
+    
+    /**
+     * Test the size, depth, length and tag limits.
+     */
+    public void testLimits() {
+        assertRejected("");
+        assertRejected(repeat("81", TokenGuard.DEFAULT_MAX_DEPTH + 1) + "00");
+        assertRejected("9818" + repeat("00", 
+                TokenGuard.DEFAULT_MAX_LENGTH + 1));
+        assertRejected("C200");
+        byte[] big = new byte[TokenGuard.DEFAULT_MAX_SIZE + 1];
+        big[0] = 0x5A;
+        try {
+            this.guard.check(big);
+            fail("Oversized token accepted");
+        } catch (AceException e) {
+            //Expected
+        }
+    }
+    
+    /**
+     * Test truncated tokens and trailing data.
+     */
+    public void testTruncated() {
+        assertRejected("82");
+        assertRejected("4201");
+        assertRejected("19");
+        assertRejected("9F00");
+        assertRejected("0000");
+        assertRejected("FF");
+    }
+    
+    /**
+     * Test checking a token that is a slice of a larger array, e.g. of a 
+     * reassembly buffer.
+     * 
+     * @throws AceException 
+     */
+    public void testSlice() throws AceException {
+        byte[] buffer = hex("FFFF8301A10203F6FFFF");
+        this.guard.check(buffer, 2, 6);
+        try {
+            this.guard.check(buffer, 2, 5);
+            fail("Truncated slice accepted");
+        } catch (AceException e) {
+            //Expected
+        }
+        try {
+            this.guard.check(buffer, 2, 7);
+            fail("Slice with trailing data accepted");
+        } catch (AceException e) {
+            //Expected
+        }
+    }
+    
+    /**
+     * Repeat a string.
+     * 
+     * @param s  the string
+     * @param count  the number of repetitions
+     * @return  the repeated string
+     */
+    private static String repeat(String s, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2017, RISE SICS AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package utility;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.upokecenter.cbor.CBORObject;
+
+import ace.AceException;
+import ace.Constants;
+import cwt.EdDSAVerifier;
+
+/**
+ * Tests for the handling of OKP proof-of-possession keys by 
+ * <code>TokenRepository</code>.
+ */
+public class TokenRepositoryTest extends TestCase {
+    
+    /**
+     * The public key of test 1 of RFC 8032, section 7.1
+     */
+    private static final byte[] X = new byte[] {
+            (byte)0xd7, 0x5a, (byte)0x98, 0x01, (byte)0x82, (byte)0xb1, 0x0a,
+            (byte)0xb7, (byte)0xd5, 0x4b, (byte)0xfe, (byte)0xd3, (byte)0xc9,
+            0x64, 0x07, 0x3a, 0x0e, (byte)0xe1, 0x72, (byte)0xf3, (byte)0xda,
+            (byte)0xa6, 0x23, 0x25, (byte)0xaf, 0x02, 0x1a, 0x68, (byte)0xf7,
+            0x07, 0x51, 0x1a};
+    
+    /**
+     * The file the repository under test persists its tokens in
+     */
+    private File tokenFile;
+    
+    /**
+     * The repository under test
+     */
+    private TokenRepository tr;
+    
+    @Override
+    protected void setUp() throws Exception {
+        this.tokenFile = File.createTempFile("tokens", ".json");
+        this.tokenFile.delete();
+        this.tr = new TokenRepository(null, this.tokenFile.getPath(), null);
+    }
+    
+    @Override
+    protected void tearDown() throws Exception {
+        this.tokenFile.delete();
+    }
+    
+    /**
+     * Create the claims of a token with an OKP key as cnf.
+     * 
+     * @param cti  the cti
+     * @param curve  the curve of the key
+     * @param x  the public key
+     * @return  the claims
+     */
+    private static Map<Short, CBORObject> claims(int cti, CBORObject curve, 
+            byte[] x) {
+        CBORObject key = CBORObject.NewMap();
+        key.Add(1, EdDSAVerifier.KEY_TYPE_OKP);
+        key.Add(2, new byte[] {(byte)cti});
+        key.Add(-1, curve);
+        key.Add(-2, x);
+        CBORObject cnf = CBORObject.NewMap();
+        cnf.Add(Constants.COSE_KEY_CBOR, key);
+        Map<Short, CBORObject> claims = new HashMap<>();
+        claims.put(Constants.SCOPE, CBORObject.FromObject("r_temp"));
+        claims.put(Constants.CTI, CBORObject.FromObject(new byte[] {
+                (byte)cti}));
+        claims.put(Constants.CNF, cnf);
+        return claims;
+    }
+    
+    /**
+     * Test that an Ed25519 key is accepted as proof-of-possession key.
+     * 
+     * @throws Exception 
+     */
+    public void testEd25519Key() throws Exception {
+        this.tr.addToken(claims(1, EdDSAVerifier.CURVE_ED25519, X), null, 
+                null);
+        assertTrue(this.tr.hasToken("AQ=="));
+        assertNotNull(this.tr.getKey("AQ=="));
+    }
+    
+    /**
+     * Test that OKP keys that are not Ed25519 public keys are rejected.
+     * 
+     * @throws Exception 
+     */
+    public void testOtherOkpKeys() throws Exception {
+        //X25519
+        assertRejected(claims(2, CBORObject.FromObject(4), X));
+        //Ed448
+        assertRejected(claims(3, CBORObject.FromObject(7), X));
+        //A public key of the wrong size
+        assertRejected(claims(4, EdDSAVerifier.CURVE_ED25519, 
+                new byte[31]));
+        assertTrue(this.tr.getCtis().isEmpty());
+    }
+    
+    /**
+     * Assert that the repository rejects a token because of its cnf key.
+     * 
+     * @param claims  the claims of the token
+     * @throws Exception 
+     */
+    private void assertRejected(Map<Short, CBORObject> claims) 
+            throws Exception {
+        try {
+            this.tr.addToken(claims, null, null);
+            fail("Unsupported OKP key accepted");
+        } catch (AceException e) {
+            assertEquals("COSE_Key is an unsupported OKP key", 
+                    e.getMessage());
+        }
+    }
+}